@@ -0,0 +1,249 @@
+package db;
+
+import global.PiCloudConstants;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import files.FileDescriptor;
+
+/**
+ * Runs the queries of <code>UserStatementMaker</code> and
+ * <code>FileStatementMaker</code> on a dedicated executor, so SSH threads do
+ * not have to wait for the database.<br>
+ * The executor has as many threads as there are pooled connections, and at
+ * most <code>PiCloudConstants.DB_EXECUTOR_QUEUE_SIZE</code> waiting tasks.
+ * When the queue is full, new tasks are not queued: their future fails
+ * immediately with a <code>RejectedExecutionException</code>.
+ *
+ * @author Dennis
+ *
+ */
+public final class AsyncDatabase {
+
+	private static final AtomicLong REJECTED = new AtomicLong();
+	private static final ThreadPoolExecutor EXECUTOR;
+
+	static {
+		AtomicInteger count = new AtomicInteger();
+		EXECUTOR = new ThreadPoolExecutor(PiCloudConstants.DB_POOL_SIZE,
+				PiCloudConstants.DB_POOL_SIZE, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(
+						PiCloudConstants.DB_EXECUTOR_QUEUE_SIZE), r -> {
+					Thread t = new Thread(r, "DB Worker "
+							+ count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+	}
+
+	private AsyncDatabase() {
+	}
+
+	/**
+	 * Runs a task on the database executor.
+	 *
+	 * @param task
+	 *            The task to run
+	 * @return A future which completes with the task's result, or
+	 *         exceptionally with whatever the task threw, or with a
+	 *         <code>RejectedExecutionException</code> if the queue is full.
+	 *         Cancelling it skips the task if it is still queued, and
+	 *         interrupts it if it is running.
+	 */
+	public static <T> CompletableFuture<T> submit(Callable<T> task) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			Future<?> running = EXECUTOR.submit(() -> {
+				if (future.isDone())
+					return;
+				try {
+					future.complete(task.call());
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+			});
+			future.whenComplete((v, e) -> {
+				if (future.isCancelled())
+					running.cancel(true);
+			});
+		} catch (RejectedExecutionException e) {
+			REJECTED.incrementAndGet();
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * @see UserStatementMaker#getId(String)
+	 */
+	public static CompletableFuture<Integer> getId(String name) {
+		return submit(() -> UserStatementMaker.getId(name));
+	}
+
+	/**
+	 * @see UserStatementMaker#getName(int)
+	 */
+	public static CompletableFuture<String> getName(int id) {
+		return submit(() -> UserStatementMaker.getName(id));
+	}
+
+	/**
+	 * Fetches the credentials on the database executor, and hashes the
+	 * password on the <code>PasswordHasher</code> pool, so neither has to wait
+	 * for the other. Cancelling the check also cancels the query.
+	 * 
+	 * @see UserStatementMaker#checkPassword(String, byte[])
+	 */
+	public static CompletableFuture<Boolean> checkPassword(String name,
+			byte[] pass) {
+		CompletableFuture<Credentials> credentials = submit(() -> UserStatementMaker
+				.getCredentials(name));
+		CompletableFuture<Boolean> check = credentials.thenCompose(c -> PasswordHasher
+				.verifyAsync(pass, c));
+		check.whenComplete((v, e) -> {
+			if (check.isCancelled())
+				credentials.cancel(true);
+		});
+		return check;
+	}
+
+	/**
+	 * Hashes the password on the <code>PasswordHasher</code> pool, then
+	 * stores the account on the database executor.
+	 * 
+	 * @see UserStatementMaker#createAccount(String, byte[])
+	 */
+	public static CompletableFuture<Integer> createAccount(String name,
+			byte[] pass) {
+		byte[] salt = PasswordHasher.generateSalt();
+		return PasswordHasher.hashAsync(pass, salt).thenCompose(
+				hashed -> submit(() -> UserStatementMaker.storeAccount(name,
+						hashed, salt)));
+	}
+
+	/**
+	 * @see UserStatementMaker#deleteAccount(int)
+	 */
+	public static CompletableFuture<Boolean> deleteAccount(int id) {
+		return submit(() -> UserStatementMaker.deleteAccount(id));
+	}
+
+	/**
+	 * @see UserStatementMaker#getUserNameList()
+	 */
+	public static CompletableFuture<List<String>> getUserNameList() {
+		return submit(UserStatementMaker::getUserNameList);
+	}
+
+	/**
+	 * @see FileStatementMaker#getDescriptor(byte[])
+	 */
+	public static CompletableFuture<FileDescriptor> getDescriptor(
+			byte[] identifier) {
+		return submit(() -> FileStatementMaker.getDescriptor(identifier));
+	}
+
+	/**
+	 * @see FileStatementMaker#getOwnedFiles(int)
+	 */
+	public static CompletableFuture<Set<FileDescriptor>> getOwnedFiles(
+			int owner) {
+		return submit(() -> FileStatementMaker.getOwnedFiles(owner));
+	}
+
+	/**
+	 * @see FileStatementMaker#getOwnedFiles(int, String, int)
+	 */
+	public static CompletableFuture<List<FileDescriptor>> getOwnedFiles(
+			int owner, String after, int limit) {
+		return submit(() -> FileStatementMaker.getOwnedFiles(owner, after,
+				limit));
+	}
+
+	/**
+	 * @see FileStatementMaker#addDescriptor(FileDescriptor)
+	 */
+	public static CompletableFuture<Boolean> addDescriptor(FileDescriptor fd) {
+		return submit(() -> FileStatementMaker.addDescriptor(fd));
+	}
+
+	/**
+	 * @see FileStatementMaker#addDescriptors(Collection)
+	 */
+	public static CompletableFuture<Integer> addDescriptors(
+			Collection<FileDescriptor> fds) {
+		return submit(() -> FileStatementMaker.addDescriptors(fds));
+	}
+
+	/**
+	 * @see FileStatementMaker#deleteDescriptor(FileDescriptor)
+	 */
+	public static CompletableFuture<Boolean> deleteDescriptor(
+			FileDescriptor fd) {
+		return submit(() -> FileStatementMaker.deleteDescriptor(fd));
+	}
+
+	/**
+	 * @see FileStatementMaker#deleteDescriptors(Collection)
+	 */
+	public static CompletableFuture<Integer> deleteDescriptors(
+			Collection<FileDescriptor> fds) {
+		return submit(() -> FileStatementMaker.deleteDescriptors(fds));
+	}
+
+	/**
+	 * @see FileStatementMaker#hasDescriptor(FileDescriptor)
+	 */
+	public static CompletableFuture<Boolean> hasDescriptor(FileDescriptor fd) {
+		return submit(() -> FileStatementMaker.hasDescriptor(fd));
+	}
+
+	/**
+	 * @see FileStatementMaker#getUsage(int)
+	 */
+	public static CompletableFuture<Usage> getUsage(int owner) {
+		return submit(() -> FileStatementMaker.getUsage(owner));
+	}
+
+	/**
+	 * @return The amount of tasks waiting for a thread
+	 */
+	public static int getQueued() {
+		return EXECUTOR.getQueue().size();
+	}
+
+	/**
+	 * @return The amount of tasks currently running
+	 */
+	public static int getActive() {
+		return EXECUTOR.getActiveCount();
+	}
+
+	/**
+	 * @return The amount of tasks refused because the queue was full
+	 */
+	public static long getRejected() {
+		return REJECTED.get();
+	}
+
+	/**
+	 * Summarises the executor's load.
+	 */
+	public static String statistics() {
+		return "AsyncDatabase[active=" + getActive() + ", queued="
+				+ getQueued() + ", completed="
+				+ EXECUTOR.getCompletedTaskCount() + ", rejected="
+				+ getRejected() + "]";
+	}
+}
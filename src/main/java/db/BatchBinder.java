@@ -0,0 +1,18 @@
+package db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Sets the parameters of a prepared statement for one item of a batch.
+ * 
+ * @author Dennis
+ *
+ * @param <T>
+ *            The type of the items in the batch
+ */
+@FunctionalInterface
+public interface BatchBinder<T> {
+
+	void bind(PreparedStatement statement, T item) throws SQLException;
+}
@@ -0,0 +1,55 @@
+package db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Common base of the row mappers: keeps track of which columns a mapper reads
+ * and where those columns are found in the result of each query.
+ * 
+ * @author Dennis
+ *
+ */
+abstract class ColumnMapper {
+
+	private final String[] columns;
+
+	/**
+	 * The resolved column indices, per query. A mapper is only used with a
+	 * handful of fixed queries, so this stays small.
+	 */
+	private final Map<String, int[]> layouts;
+
+	ColumnMapper(String... columns) {
+		if (columns.length == 0)
+			throw new IllegalArgumentException("A mapper needs columns!");
+		this.columns = columns;
+		this.layouts = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Gets the (1-based) index of each of this mapper's columns in the result
+	 * of the given query. The indices are looked up in the result's metadata
+	 * the first time the query is seen, and cached afterwards.
+	 * 
+	 * @param sql
+	 *            The query which produced <code>result</code>
+	 * @param result
+	 *            The result to map
+	 * @return The column indices, in the order the columns were given
+	 * @throws SQLException
+	 *             If a column is missing from the result
+	 */
+	final int[] layout(String sql, ResultSet result) throws SQLException {
+		int[] layout = layouts.get(sql);
+		if (layout == null) {
+			layout = new int[columns.length];
+			for (int i = 0; i < columns.length; i++)
+				layout[i] = result.findColumn(columns[i]);
+			layouts.put(sql, layout);
+		}
+		return layout;
+	}
+}
@@ -0,0 +1,269 @@
+package db;
+
+import global.Logger;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of database connections.<br>
+ * All connections are opened when the pool is created. A connection which
+ * has been idle for a while is validated before it is leased out again, and
+ * replaced by a fresh one if the database no longer answers on it.
+ *
+ * @author Dennis
+ *
+ */
+public final class ConnectionPool {
+
+	/**
+	 * Connections idle for longer than this (in ms) are validated before use.
+	 */
+	private static final long VALIDATION_INTERVAL = 5000;
+
+	/**
+	 * Time in seconds the database may take to answer a validation request.
+	 */
+	private static final int VALIDATION_TIMEOUT = 1;
+
+	private final String url;
+	private final Properties props;
+	private final int size;
+	private final long timeout;
+
+	private final BlockingQueue<PooledConnection> idle;
+	private final Set<PooledConnection> leased;
+
+	private final AtomicInteger peakLeased = new AtomicInteger();
+	private final AtomicLong leaseCount = new AtomicLong();
+	private final AtomicLong totalWait = new AtomicLong();
+	private final AtomicLong maxWait = new AtomicLong();
+	private final AtomicLong reconnects = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a new pool and opens all of its connections.
+	 *
+	 * @param url
+	 *            The JDBC url to connect to
+	 * @param props
+	 *            The connection properties (user, password etc.)
+	 * @param size
+	 *            The maximum amount of connections
+	 * @param timeout
+	 *            The maximum time in ms to wait for a free connection
+	 * @throws SQLException
+	 *             If one of the connections cannot be opened
+	 */
+	ConnectionPool(String url, Properties props, int size, long timeout)
+			throws SQLException {
+		if (size < 1)
+			throw new IllegalArgumentException("Pool size must be positive!");
+		this.url = url;
+		this.props = props;
+		this.size = size;
+		this.timeout = timeout;
+		idle = new ArrayBlockingQueue<>(size);
+		leased = ConcurrentHashMap.newKeySet();
+		for (int i = 0; i < size; i++)
+			idle.add(open());
+	}
+
+	/**
+	 * Leases a connection from the pool, waiting for one to become available
+	 * if all are in use.<br>
+	 * <b>Every leased connection must be given back through
+	 * <code>release()</code>.</b>
+	 *
+	 * @return A valid connection, for exclusive use by the caller
+	 * @throws SQLException
+	 *             If no connection became available in time, or a broken
+	 *             connection could not be replaced
+	 */
+	PooledConnection lease() throws SQLException {
+		if (closed)
+			throw new SQLException("Connection pool is closed!");
+		long start = System.nanoTime();
+		PooledConnection conn;
+		try {
+			conn = idle.poll(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection");
+		}
+		long waited = System.nanoTime() - start;
+		if (conn == null) {
+			timeouts.incrementAndGet();
+			throw new SQLException("No database connection available after "
+					+ timeout + "ms!");
+		}
+		recordWait(waited);
+
+		try {
+			conn = validate(conn);
+		} catch (SQLException e) {
+			// Give the slot back so the pool does not shrink.
+			conn.invalidate();
+			idle.offer(conn);
+			throw e;
+		}
+		leased.add(conn);
+		int inUse = leased.size();
+		peakLeased.accumulateAndGet(inUse, Math::max);
+		return conn;
+	}
+
+	/**
+	 * Returns a leased connection to the pool.
+	 *
+	 * @param conn
+	 *            A connection obtained through <code>lease()</code>
+	 */
+	void release(PooledConnection conn) {
+		if (conn == null || !leased.remove(conn))
+			return;
+		conn.touch();
+		if (closed) {
+			conn.close();
+			return;
+		}
+		try {
+			if (!conn.getConnection().getAutoCommit())
+				conn.getConnection().setAutoCommit(true);
+		} catch (SQLException e) {
+			// Leave it; it will be replaced upon its next validation.
+			conn.invalidate();
+		}
+		idle.offer(conn);
+	}
+
+	/**
+	 * Closes all idle connections and prevents new leases. Connections which
+	 * are still leased are closed when they are released.
+	 */
+	void close() {
+		closed = true;
+		PooledConnection conn;
+		while ((conn = idle.poll()) != null)
+			conn.close();
+	}
+
+	private PooledConnection open() throws SQLException {
+		return new PooledConnection(DriverManager.getConnection(url, props));
+	}
+
+	/**
+	 * Checks whether a connection is still usable, replacing it if it isn't.
+	 */
+	private PooledConnection validate(PooledConnection conn)
+			throws SQLException {
+		if (!conn.isInvalidated()
+				&& conn.idleTime() < VALIDATION_INTERVAL)
+			return conn;
+		boolean valid;
+		try {
+			valid = !conn.isInvalidated()
+					&& conn.getConnection().isValid(VALIDATION_TIMEOUT);
+		} catch (SQLException e) {
+			valid = false;
+		}
+		if (valid) {
+			conn.touch();
+			return conn;
+		}
+		Logger.logError("Database connection lost; reconnecting...");
+		conn.close();
+		PooledConnection fresh = open();
+		reconnects.incrementAndGet();
+		return fresh;
+	}
+
+	private void recordWait(long waited) {
+		leaseCount.incrementAndGet();
+		totalWait.addAndGet(waited);
+		maxWait.accumulateAndGet(waited, Math::max);
+	}
+
+	/**
+	 * @return The maximum amount of connections in this pool
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The amount of connections currently leased
+	 */
+	public int getLeased() {
+		return leased.size();
+	}
+
+	/**
+	 * @return The highest amount of connections that were leased at once
+	 */
+	public int getPeakLeased() {
+		return peakLeased.get();
+	}
+
+	/**
+	 * @return The fraction of connections currently in use, between 0 and 1
+	 */
+	public double getUtilization() {
+		return (double) leased.size() / size;
+	}
+
+	/**
+	 * @return The total amount of successful leases
+	 */
+	public long getLeaseCount() {
+		return leaseCount.get();
+	}
+
+	/**
+	 * @return The average time in ns callers waited for a connection
+	 */
+	public long getAverageWait() {
+		long count = leaseCount.get();
+		return count == 0 ? 0 : totalWait.get() / count;
+	}
+
+	/**
+	 * @return The longest time in ns a caller waited for a connection
+	 */
+	public long getMaxWait() {
+		return maxWait.get();
+	}
+
+	/**
+	 * @return The amount of times a broken connection was replaced
+	 */
+	public long getReconnects() {
+		return reconnects.get();
+	}
+
+	/**
+	 * @return The amount of lease attempts that timed out
+	 */
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ConnectionPool[size=" + size + ", leased=" + getLeased()
+				+ ", peak=" + getPeakLeased() + ", leases=" + getLeaseCount()
+				+ ", avgWait=" + getAverageWait() / 1000 + "us, maxWait="
+				+ getMaxWait() / 1000 + "us, reconnects=" + getReconnects()
+				+ ", timeouts=" + getTimeouts() + "]";
+	}
+}
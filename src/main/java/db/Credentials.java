@@ -0,0 +1,32 @@
+package db;
+
+/**
+ * The stored login data of a single user: the salted and hashed password and
+ * the salt.
+ * 
+ * @author Dennis
+ *
+ */
+public final class Credentials {
+
+	private final byte[] pass, salt;
+
+	public Credentials(byte[] pass, byte[] salt) {
+		this.pass = pass;
+		this.salt = salt;
+	}
+
+	/**
+	 * @return The salted and hashed password
+	 */
+	public byte[] getPass() {
+		return pass;
+	}
+
+	/**
+	 * @return The salt
+	 */
+	public byte[] getSalt() {
+		return salt;
+	}
+}
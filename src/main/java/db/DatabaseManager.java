@@ -1,25 +1,20 @@
 package db;
 
 import global.Logger;
+import global.PiCloudConstants;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.List;
 import java.util.Properties;
-import java.util.Set;
+import java.util.stream.Stream;
 
 import com.sun.jna.FunctionMapper;
 import com.sun.jna.Library;
@@ -34,83 +29,181 @@ import com.sun.jna.Platform;
  */
 public class DatabaseManager {
 
-	private static final Connection DB_CONN;
-	/**
-	 * Always update activeResults when returning a ResultSet. Volatile because
-	 * WeakReferences may become invalid.
-	 */
-	private static volatile Map<ResultSet, WeakReference<PreparedStatement>> activeResults;
-
-	private static Set<PreparedStatement> activeStatements;
+	private static final ConnectionPool POOL;
 
 	/**
-	 * Initialize connection and variables. Add shutdown hook for cleanup.
+	 * Initialize connection pool. Add shutdown hook for cleanup.
 	 */
 	static {
-		Connection t = null;
+		ConnectionPool t = null;
 		try {
 			Class.forName("org.postgresql.Driver");
 			Properties props = new Properties();
 			props.setProperty("user", "postgres");
 			props.setProperty("password", "piCloud");
-			t = DriverManager.getConnection("jdbc:postgresql://localhost/piCloud", props);
+			// Use named server-side statements from the first execution on;
+			// every statement is cached per connection anyway.
+			props.setProperty("prepareThreshold", "1");
+			t = new ConnectionPool("jdbc:postgresql://localhost/piCloud",
+					props, PiCloudConstants.DB_POOL_SIZE,
+					PiCloudConstants.DB_POOL_TIMEOUT);
 		} catch (ClassNotFoundException | SQLException e) {
 			e.printStackTrace();
 			System.exit(1);
 		}
-		DB_CONN = t;
-		activeResults = new HashMap<>();
-		activeStatements = new HashSet<>();
+		POOL = t;
 		Runtime.getRuntime().addShutdownHook(new CleanupThread());
 	}
 
 	/**
-	 * Ensures a ResultSet is closed properly
+	 * Closes a ResultSet which is no longer needed.<br>
+	 * Results obtained through <code>query()</code> are closed automatically;
+	 * this is only needed for detached results such as those returned by
+	 * <code>UserStatementMaker.getUserData()</code>.
 	 * 
 	 * @param result
 	 *            The ResultSet to close
 	 * @throws SQLException
-	 *             If the ResultSet or its PreparedStatement cannot be closed
+	 *             If the ResultSet cannot be closed
 	 */
 	public static void clean(ResultSet result) throws SQLException {
-		if (!activeResults.containsKey(result))
-			return;
-		WeakReference<PreparedStatement> ref = activeResults.get(result);
-		boolean removeStatement = true;
-		for (Entry<ResultSet, WeakReference<PreparedStatement>> ent : activeResults
-				.entrySet()) {
-			if (!ent.getKey().equals(result) && ent.getValue().equals(ref))
-				removeStatement = false;
+		if (result != null)
+			result.close();
+	}
+
+	public static void init() {
+		Logger.log("Starting DatabaseManager...");
+		Logger.log("Opened " + POOL.getSize() + " database connections.");
+	}
+
+	/**
+	 * Gets the connection pool, so its wait times and utilization can be
+	 * inspected.
+	 * 
+	 * @return The pool through which all queries run
+	 */
+	public static ConnectionPool getPool() {
+		return POOL;
+	}
+
+	/**
+	 * Gets the timings of every statement that has been run, so they can be
+	 * reported or compared.
+	 * 
+	 * @return The statistics per statement
+	 */
+	public static Collection<QueryStatistics> getQueryStatistics() {
+		return QueryStatistics.all();
+	}
+
+	/**
+	 * Leases a connection for use in a try-with-resources block. All
+	 * statements run through the returned scope share the connection, which
+	 * is returned to the pool when the scope is closed.
+	 * 
+	 * @return A new scope
+	 * @throws SQLException
+	 *             If no connection is available
+	 */
+	public static QueryScope open() throws SQLException {
+		return new QueryScope(POOL);
+	}
+
+	/**
+	 * Runs a single query on a pooled connection. The statement, result and
+	 * connection are released as soon as <code>handler</code> returns.
+	 * 
+	 * @param sql
+	 *            The query to run
+	 * @param binder
+	 *            Sets the query's parameters
+	 * @param handler
+	 *            Turns the <code>ResultSet</code> into the result
+	 * @return The result of <code>handler</code>
+	 * @throws SQLException
+	 *             If the query cannot be executed
+	 */
+	public static <T> T query(String sql, StatementBinder binder,
+			ResultHandler<T> handler) throws SQLException {
+		try (QueryScope scope = open()) {
+			return scope.query(sql, binder, handler);
 		}
+	}
 
-		result.close();
-		if (removeStatement) {
-			ref.get().close();
-			activeStatements.remove(ref.get());
+	/**
+	 * Runs a single query on a pooled connection and maps its first row.
+	 * 
+	 * @see QueryScope#queryFirst(String, StatementBinder, RowMapper)
+	 */
+	public static <T> T queryFirst(String sql, StatementBinder binder,
+			RowMapper<T> mapper) throws SQLException {
+		try (QueryScope scope = open()) {
+			return scope.queryFirst(sql, binder, mapper);
 		}
-		activeResults.remove(result);
-		System.gc();
 	}
 
-	public static void init() {
-		Logger.log("Starting DatabaseManager...");
+	/**
+	 * Runs a single query on a pooled connection and maps all of its rows.
+	 * 
+	 * @see QueryScope#queryAll(String, StatementBinder, RowMapper)
+	 */
+	public static <T> List<T> queryAll(String sql, StatementBinder binder,
+			RowMapper<T> mapper) throws SQLException {
+		try (QueryScope scope = open()) {
+			return scope.queryAll(sql, binder, mapper);
+		}
 	}
-	
+
 	/**
-	 * Closes the provided PreparedStatement.<br>
-	 * Usage of this method is very risky, since any active ResultSets will
-	 * become invalid.
+	 * Runs a single query on a pooled connection and maps its first row to
+	 * an <code>int</code>.
 	 * 
-	 * @param statement
+	 * @see QueryScope#queryInt(String, StatementBinder, IntRowMapper, int)
+	 */
+	public static int queryInt(String sql, StatementBinder binder,
+			IntRowMapper mapper, int missing) throws SQLException {
+		try (QueryScope scope = open()) {
+			return scope.queryInt(sql, binder, mapper, missing);
+		}
+	}
+
+	/**
+	 * Runs a query on a pooled connection and lazily maps its rows as they
+	 * are consumed, <code>fetchSize</code> rows per round trip.<br>
+	 * <b>The stream must be closed</b> (e.g. in a try-with-resources block),
+	 * as it holds on to its connection until it is.
+	 * 
+	 * @see QueryScope#stream(String, StatementBinder, RowMapper, int)
+	 */
+	public static <T> Stream<T> stream(String sql, StatementBinder binder,
+			RowMapper<T> mapper, int fetchSize) throws SQLException {
+		QueryScope scope = open();
+		try {
+			return scope.stream(sql, binder, mapper, fetchSize).onClose(
+					scope::close);
+		} catch (SQLException | RuntimeException e) {
+			scope.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs a single INSERT, UPDATE or DELETE statement on a pooled
+	 * connection.
+	 * 
+	 * @param sql
+	 *            The statement to run
+	 * @param binder
+	 *            Sets the statement's parameters
+	 * @return The amount of affected rows
 	 * @throws SQLException
-	 *             If the <code>PreparedStatement</code> is already closed.
-	 * @deprecated Should not be used if it can be avoided
+	 *             If the statement cannot be executed
 	 */
-	@Deprecated
-	public static void forceClean(PreparedStatement statement)
+	public static int update(String sql, StatementBinder binder)
 			throws SQLException {
-		statement.close();
-		activeResults.remove(statement);
+		try (QueryScope scope = open()) {
+			return scope.update(sql, binder);
+		}
 	}
 
 	public static void main(String[] args) throws SQLException, IOException {
@@ -124,25 +217,23 @@ public class DatabaseManager {
 		fos.read(key);
 		fos.close();
 		Logger.log("Keys match: " + Arrays.equals(buf, key));
-		
-		Statement s = DB_CONN.createStatement();
-		ResultSet r = s.executeQuery("SELECT * FROM \"Users\";");
-		r.next();
-		String name = r.getString("name");
+
+		String name = query("SELECT * FROM \"Users\";", StatementBinder.NONE,
+				r -> r.next() ? r.getString("name") : null);
 		System.out.println(name);
-		r.close();
-		s.close();
 
 		try {
 			System.out.println(UserStatementMaker.getId(name));
 		} catch (UnknownUserException e1) {
 			e1.printStackTrace();
 		}
-		System.out.println(activeResults.size() + ", "
-				+ activeStatements.size());
+		System.out.println(POOL.getLeased());
 		System.out.println();
 		System.out.println(Tuple.fromResultSet(UserStatementMaker
 				.getUserData(0))[0]);
+		Logger.log(POOL.toString());
+		Logger.log(StatementCache.statistics());
+		Logger.log(QueryStatistics.report());
 		Logger.log("Done Testing");
 		try {
 			Thread.sleep(1000);
@@ -153,15 +244,6 @@ public class DatabaseManager {
 		Logger.log("Terminating...");
 	}
 
-	protected static void registerResult(ResultSet r, PreparedStatement s) {
-		activeResults.put(r, new WeakReference<PreparedStatement>(s));
-		activeStatements.add(s);
-	}
-
-	protected static PreparedStatement prepare(String sql) throws SQLException {
-		return DB_CONN.prepareStatement(sql);
-	}
-	
 	/**
 	 * Closes Remaining Connections
 	 */
@@ -170,11 +252,13 @@ public class DatabaseManager {
 			setName("DB Cleanup");
 			Logger.log("Running Cleanup...");
 			try {
-				for (ResultSet rs : activeResults.keySet())
-					clean(rs);
-				for (PreparedStatement ps : activeStatements)
-					forceClean(ps);
-				DB_CONN.close();
+				Logger.log(POOL.toString());
+				Logger.log(StatementCache.statistics());
+				Logger.log(UserCache.statistics());
+				Logger.log(AsyncDatabase.statistics());
+				Logger.log(PasswordHasher.statistics());
+				Logger.log(QueryStatistics.report());
+				POOL.close();
 			} catch (Throwable t) {
 			}
 			Logger.log("Cleanup Done.");
@@ -0,0 +1,164 @@
+package db;
+
+import global.Logger;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import files.FileDescriptor;
+
+/**
+ * In-memory copy of the stored file descriptors, by identifier and by owner,
+ * so existence checks and lookups do not need a query.<br>
+ * The index is loaded once and from then on updated by
+ * <code>FileStatementMaker</code> right after every change it makes to the
+ * storage. It holds at most <code>capacity</code> descriptors. If there are
+ * more, the index is <i>partial</i>: it still answers lookups for the
+ * descriptors it has, but a miss no longer proves that a descriptor does not
+ * exist, so the caller has to ask the storage.
+ *
+ * @author Dennis
+ *
+ */
+final class DescriptorIndex {
+
+	private final int capacity;
+	private final Map<String, FileDescriptor> descriptors;
+	private final Map<Integer, Set<String>> owned;
+	private volatile boolean loaded = false;
+	private volatile boolean complete = false;
+
+	/**
+	 * @param capacity
+	 *            The maximum amount of descriptors to hold; 0 disables the
+	 *            index
+	 */
+	DescriptorIndex(int capacity) {
+		this.capacity = capacity;
+		descriptors = new ConcurrentHashMap<>();
+		owned = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Loads all descriptors from the storage, unless this was done already.
+	 * Must be called before every change to the storage.
+	 *
+	 * @throws SQLException
+	 *             If the descriptors cannot be loaded
+	 */
+	void load() throws SQLException {
+		if (loaded)
+			return;
+		synchronized (this) {
+			if (loaded || capacity <= 0) {
+				loaded = true;
+				return;
+			}
+			boolean fits = true;
+			try (Stream<FileDescriptor> all = Storage.files().streamFiles()) {
+				Iterator<FileDescriptor> it = all.iterator();
+				while (it.hasNext()) {
+					if (descriptors.size() >= capacity) {
+						fits = false;
+						break;
+					}
+					put(it.next());
+				}
+			}
+			complete = fits;
+			loaded = true;
+			Logger.log("Indexed " + descriptors.size() + " file descriptors"
+					+ (fits ? "." : " (partial, capacity is " + capacity + ")."));
+		}
+	}
+
+	/**
+	 * @return true if the index holds every stored descriptor, so a miss
+	 *         means the descriptor does not exist
+	 */
+	boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return A copy of the indexed descriptor with this identifier, or null
+	 */
+	FileDescriptor get(String identifier) {
+		return copy(descriptors.get(identifier));
+	}
+
+	/**
+	 * @return true if a descriptor with this identifier is indexed
+	 */
+	boolean contains(String identifier) {
+		return descriptors.containsKey(identifier);
+	}
+
+	/**
+	 * Only meaningful if the index is complete.
+	 *
+	 * @return Copies of the indexed descriptors of this owner
+	 */
+	List<FileDescriptor> getOwned(int owner) {
+		Set<String> ids = owned.getOrDefault(owner, Collections.emptySet());
+		List<FileDescriptor> fds = new ArrayList<>(ids.size());
+		for (String id : ids) {
+			FileDescriptor fd = get(id);
+			if (fd != null)
+				fds.add(fd);
+		}
+		return fds;
+	}
+
+	/**
+	 * Must be called after descriptors were stored.
+	 */
+	void added(Collection<FileDescriptor> fds) {
+		for (FileDescriptor fd : fds) {
+			if (descriptors.size() >= capacity) {
+				complete = false;
+				return;
+			}
+			put(fd);
+		}
+	}
+
+	/**
+	 * Must be called after descriptors were deleted.
+	 */
+	void deleted(Collection<FileDescriptor> fds) {
+		for (FileDescriptor fd : fds) {
+			FileDescriptor removed = descriptors.remove(fd.getIdentifier());
+			if (removed == null)
+				continue;
+			Set<String> ids = owned.get(removed.getOwner());
+			if (ids != null)
+				ids.remove(removed.getIdentifier());
+		}
+	}
+
+	private void put(FileDescriptor fd) {
+		descriptors.put(fd.getIdentifier(), copy(fd));
+		owned.computeIfAbsent(fd.getOwner(),
+				o -> ConcurrentHashMap.newKeySet()).add(fd.getIdentifier());
+	}
+
+	/**
+	 * FileDescriptors are mutable, so the index only stores and hands out
+	 * copies.
+	 */
+	private static FileDescriptor copy(FileDescriptor fd) {
+		if (fd == null)
+			return null;
+		return new FileDescriptor(fd.getIdentifier(), fd.getOwner(),
+				fd.getSize());
+	}
+}
@@ -0,0 +1,575 @@
+package db;
+
+import global.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+
+import files.FileDescriptor;
+
+/**
+ * In-process storage for users and file descriptors, for nodes that cannot
+ * spare the memory for a PostgreSQL server.<br>
+ * All data is kept in concurrent maps, so lookups never block and take
+ * microseconds. Every change is appended to a journal file before it becomes
+ * visible, and synced to disk; on startup the journal is replayed, and
+ * rewritten if it contains many outdated records. A change that cannot be
+ * written is cut off the journal again, so it is neither persisted later
+ * nor followed by other records.<br>
+ * User ids are never reused, even after the user with the highest id is
+ * deleted: a compacted journal starts with the next free id.
+ *
+ * @author Dennis
+ *
+ */
+final class EmbeddedRepository implements UserRepository, FileRepository {
+
+	private static final byte USER_ADD = 1, USER_DEL = 2, FILE_ADD = 3,
+			FILE_DEL = 4, NEXT_ID = 5;
+
+	private final File journalFile;
+	private FileChannel journal;
+
+	private final Map<Integer, User> users;
+	private final Map<String, Integer> userIds;
+	private final Map<String, FileDescriptor> files;
+	private final Map<Integer, NavigableMap<String, FileDescriptor>> filesByOwner;
+	private int nextId = 1;
+
+	private EmbeddedRepository(File journalFile) {
+		this.journalFile = journalFile;
+		users = new ConcurrentHashMap<>();
+		userIds = new ConcurrentHashMap<>();
+		files = new ConcurrentHashMap<>();
+		filesByOwner = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Opens (or creates) the store backed by the given journal.
+	 *
+	 * @param journalFile
+	 *            The file to keep the data in
+	 * @return The opened store
+	 * @throws IOException
+	 *             If the journal cannot be read or written
+	 */
+	static EmbeddedRepository open(File journalFile) throws IOException {
+		EmbeddedRepository repo = new EmbeddedRepository(journalFile);
+		long records = repo.replay();
+		long live = repo.users.size() + repo.files.size();
+		if (records > 2 * live + 1024)
+			repo.compact();
+		repo.journal = FileChannel.open(journalFile.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		Logger.log("Opened embedded storage at "
+				+ journalFile.getAbsolutePath() + " (" + repo.users.size()
+				+ " users, " + repo.files.size() + " files)");
+		return repo;
+	}
+
+	/**
+	 * Closes the journal.
+	 */
+	synchronized void close() {
+		try {
+			journal.close();
+		} catch (IOException e) {
+			Logger.logError(e);
+		}
+	}
+
+	@Override
+	public int findId(String name) {
+		Integer id = userIds.get(name);
+		return id == null ? NO_USER : id;
+	}
+
+	@Override
+	public String findName(int id) {
+		User user = users.get(id);
+		return user == null ? null : user.name;
+	}
+
+	@Override
+	public ResultSet getUserData(int id) throws SQLException {
+		CachedRowSet rows = RowSetProvider.newFactory().createCachedRowSet();
+		RowSetMetaDataImpl meta = new RowSetMetaDataImpl();
+		meta.setColumnCount(4);
+		meta.setColumnName(1, "id");
+		meta.setColumnType(1, Types.INTEGER);
+		meta.setColumnName(2, "pass");
+		meta.setColumnType(2, Types.BINARY);
+		meta.setColumnName(3, "salt");
+		meta.setColumnType(3, Types.BINARY);
+		meta.setColumnName(4, "name");
+		meta.setColumnType(4, Types.VARCHAR);
+		rows.setMetaData(meta);
+		User user = users.get(id);
+		if (user != null) {
+			rows.moveToInsertRow();
+			rows.updateInt(1, user.id);
+			rows.updateBytes(2, user.pass);
+			rows.updateBytes(3, user.salt);
+			rows.updateString(4, user.name);
+			rows.insertRow();
+			rows.moveToCurrentRow();
+		}
+		rows.beforeFirst();
+		return rows;
+	}
+
+	@Override
+	public byte[] getPass(int id) {
+		User user = users.get(id);
+		return user == null ? null : user.pass;
+	}
+
+	@Override
+	public byte[] getSalt(int id) {
+		User user = users.get(id);
+		return user == null ? null : user.salt;
+	}
+
+	@Override
+	public Credentials getCredentials(String name) {
+		Integer id = userIds.get(name);
+		User user = id == null ? null : users.get(id);
+		return user == null ? null : new Credentials(user.pass, user.salt);
+	}
+
+	@Override
+	public synchronized int createAccount(String name, byte[] pass,
+			byte[] salt) throws SQLException {
+		if (userIds.containsKey(name))
+			throw new IllegalArgumentException(
+					"A user with this name already exists!");
+		User user = new User(nextId, name, pass, salt);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			writeUser(new DataOutputStream(bytes), user);
+			append(bytes);
+		} catch (IOException e) {
+			throw new SQLException("Could not write to journal", e);
+		}
+		addUser(user);
+		return user.id;
+	}
+
+	@Override
+	public synchronized boolean deleteAccount(int id) throws SQLException {
+		if (!users.containsKey(id))
+			return false;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream record = new DataOutputStream(bytes);
+			record.writeByte(USER_DEL);
+			record.writeInt(id);
+			append(bytes);
+		} catch (IOException e) {
+			throw new SQLException("Could not write to journal", e);
+		}
+		removeUser(id);
+		return true;
+	}
+
+	@Override
+	public List<String> getUserNames() {
+		return new ArrayList<>(userIds.keySet());
+	}
+
+	@Override
+	public FileDescriptor getDescriptor(byte[] identifier) {
+		return copy(files.get(new String(identifier)));
+	}
+
+	@Override
+	public List<FileDescriptor> getOwnedFiles(int owner) {
+		NavigableMap<String, FileDescriptor> owned = filesByOwner.get(owner);
+		if (owned == null)
+			return new ArrayList<>();
+		return owned.values().stream().map(EmbeddedRepository::copy)
+				.collect(Collectors.toList());
+	}
+
+	@Override
+	public Stream<FileDescriptor> streamFiles() {
+		return files.values().stream().map(EmbeddedRepository::copy);
+	}
+
+	/**
+	 * The stream is weakly consistent: it reflects some, but not necessarily
+	 * all, changes made while it is being consumed.
+	 */
+	@Override
+	public Stream<FileDescriptor> streamOwnedFiles(int owner) {
+		NavigableMap<String, FileDescriptor> owned = filesByOwner.get(owner);
+		if (owned == null)
+			return Stream.empty();
+		return owned.values().stream().map(EmbeddedRepository::copy);
+	}
+
+	@Override
+	public List<FileDescriptor> getOwnedFiles(int owner, String after,
+			int limit) {
+		NavigableMap<String, FileDescriptor> owned = filesByOwner.get(owner);
+		if (owned == null)
+			return new ArrayList<>();
+		if (after != null)
+			owned = owned.tailMap(after, false);
+		return owned.values().stream().limit(limit)
+				.map(EmbeddedRepository::copy).collect(Collectors.toList());
+	}
+
+	@Override
+	public synchronized boolean addDescriptor(FileDescriptor fd)
+			throws SQLException {
+		return !addDescriptors(Collections.singletonList(fd)).isEmpty();
+	}
+
+	/**
+	 * All records are written before any of them is flushed, so the batch
+	 * costs a single write to the journal.
+	 */
+	@Override
+	public synchronized List<FileDescriptor> addDescriptors(
+			Collection<FileDescriptor> fds) throws SQLException {
+		List<FileDescriptor> added = new ArrayList<>();
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream records = new DataOutputStream(bytes);
+			for (FileDescriptor fd : fds) {
+				if (files.containsKey(fd.getIdentifier())
+						|| added.contains(fd))
+					continue;
+				writeFile(records, fd);
+				added.add(copy(fd));
+			}
+			append(bytes);
+		} catch (IOException e) {
+			throw new SQLException("Could not write to journal", e);
+		}
+		added.forEach(this::addFile);
+		return added.stream().map(EmbeddedRepository::copy)
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * A single record, which replaces the old descriptor when it is replayed.
+	 */
+	@Override
+	public synchronized FileDescriptor putDescriptor(FileDescriptor fd)
+			throws SQLException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			writeFile(new DataOutputStream(bytes), fd);
+			append(bytes);
+		} catch (IOException e) {
+			throw new SQLException("Could not write to journal", e);
+		}
+		FileDescriptor old = removeFile(fd.getIdentifier());
+		addFile(copy(fd));
+		return copy(old);
+	}
+
+	@Override
+	public synchronized FileDescriptor deleteDescriptor(FileDescriptor fd)
+			throws SQLException {
+		List<FileDescriptor> deleted = deleteDescriptors(Collections
+				.singletonList(fd));
+		return deleted.isEmpty() ? null : deleted.get(0);
+	}
+
+	@Override
+	public synchronized List<FileDescriptor> deleteDescriptors(
+			Collection<FileDescriptor> fds) throws SQLException {
+		List<String> deleted = new ArrayList<>();
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream records = new DataOutputStream(bytes);
+			for (FileDescriptor fd : fds) {
+				String identifier = fd.getIdentifier();
+				if (!files.containsKey(identifier)
+						|| deleted.contains(identifier))
+					continue;
+				records.writeByte(FILE_DEL);
+				records.writeUTF(identifier);
+				deleted.add(identifier);
+			}
+			append(bytes);
+		} catch (IOException e) {
+			throw new SQLException("Could not write to journal", e);
+		}
+		return deleted.stream().map(this::removeFile)
+				.map(EmbeddedRepository::copy).collect(Collectors.toList());
+	}
+
+	@Override
+	public boolean hasDescriptor(FileDescriptor fd) {
+		return files.containsKey(fd.getIdentifier());
+	}
+
+	@Override
+	public Map<Integer, Usage> getUsage() {
+		Map<Integer, Usage> usage = new HashMap<>();
+		for (FileDescriptor fd : files.values())
+			usage.merge(fd.getOwner(), new Usage(fd.getSize(), 1), Usage::plus);
+		return usage;
+	}
+
+	/**
+	 * Appends records to the journal in a single write, and syncs them to
+	 * disk. If that fails, the journal is cut back to where it was, so it
+	 * does not end in a partial record that later records would follow.
+	 */
+	private void append(ByteArrayOutputStream records) throws IOException {
+		if (records.size() == 0)
+			return;
+		ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+		long end = journal.size();
+		try {
+			while (buffer.hasRemaining())
+				journal.write(buffer);
+			journal.force(false);
+		} catch (IOException e) {
+			try {
+				journal.truncate(end);
+			} catch (IOException f) {
+				e.addSuppressed(f);
+			}
+			throw e;
+		}
+	}
+
+	private void addUser(User user) {
+		users.put(user.id, user);
+		userIds.put(user.name, user.id);
+		nextId = Math.max(nextId, user.id + 1);
+	}
+
+	private void removeUser(int id) {
+		User user = users.remove(id);
+		if (user != null)
+			userIds.remove(user.name);
+	}
+
+	private void addFile(FileDescriptor fd) {
+		files.put(fd.getIdentifier(), fd);
+		filesByOwner.computeIfAbsent(fd.getOwner(),
+				o -> new ConcurrentSkipListMap<>()).put(fd.getIdentifier(), fd);
+	}
+
+	private FileDescriptor removeFile(String identifier) {
+		FileDescriptor fd = files.remove(identifier);
+		if (fd == null)
+			return null;
+		NavigableMap<String, FileDescriptor> owned = filesByOwner.get(fd
+				.getOwner());
+		if (owned != null)
+			owned.remove(identifier);
+		return fd;
+	}
+
+	/**
+	 * Applies all records in the journal. A partially written record at the
+	 * end (e.g. after a power failure) is cut off.
+	 *
+	 * @return The amount of records read
+	 */
+	private long replay() throws IOException {
+		if (!journalFile.exists())
+			return 0;
+		long records = 0;
+		long valid = 0;
+		try (CountingInputStream counter = new CountingInputStream(
+				new BufferedInputStream(new FileInputStream(journalFile)));
+				DataInputStream in = new DataInputStream(counter)) {
+			while (true) {
+				int op = in.read();
+				if (op == -1)
+					break;
+				switch (op) {
+				case USER_ADD:
+					int id = in.readInt();
+					String name = in.readUTF();
+					byte[] pass = readBytes(in);
+					byte[] salt = readBytes(in);
+					addUser(new User(id, name, pass, salt));
+					break;
+				case USER_DEL:
+					removeUser(in.readInt());
+					break;
+				case FILE_ADD:
+					String identifier = in.readUTF();
+					FileDescriptor fd = new FileDescriptor(identifier,
+							in.readInt(), in.readLong());
+					removeFile(identifier);
+					addFile(fd);
+					break;
+				case FILE_DEL:
+					removeFile(in.readUTF());
+					break;
+				case NEXT_ID:
+					nextId = Math.max(nextId, in.readInt());
+					break;
+				default:
+					throw new IOException("Corrupt journal record " + op
+							+ " at " + valid);
+				}
+				records++;
+				valid = counter.count;
+			}
+		} catch (EOFException e) {
+			Logger.logError("Journal ends in an incomplete record; truncating to "
+					+ valid + " bytes.");
+			try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+				raf.setLength(valid);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Rewrites the journal so it only contains the current data.
+	 */
+	private void compact() throws IOException {
+		File tmp = new File(journalFile.getPath() + ".tmp");
+		try (FileOutputStream file = new FileOutputStream(tmp);
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(file))) {
+			// Deleted users are dropped, but their ids must stay taken.
+			out.writeByte(NEXT_ID);
+			out.writeInt(nextId);
+			for (User user : users.values())
+				writeUser(out, user);
+			for (FileDescriptor fd : files.values())
+				writeFile(out, fd);
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(tmp.toPath(), journalFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		Logger.log("Compacted embedded storage journal.");
+	}
+
+	private static void writeUser(DataOutputStream out, User user)
+			throws IOException {
+		out.writeByte(USER_ADD);
+		out.writeInt(user.id);
+		out.writeUTF(user.name);
+		out.writeInt(user.pass.length);
+		out.write(user.pass);
+		out.writeInt(user.salt.length);
+		out.write(user.salt);
+	}
+
+	private static void writeFile(DataOutputStream out, FileDescriptor fd)
+			throws IOException {
+		out.writeByte(FILE_ADD);
+		out.writeUTF(fd.getIdentifier());
+		out.writeInt(fd.getOwner());
+		out.writeLong(fd.getSize());
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * FileDescriptors are mutable, so callers only ever get copies.
+	 */
+	private static FileDescriptor copy(FileDescriptor fd) {
+		if (fd == null)
+			return null;
+		return new FileDescriptor(fd.getIdentifier(), fd.getOwner(),
+				fd.getSize());
+	}
+
+	/**
+	 * Small bean for a user.
+	 */
+	private static final class User {
+		private final int id;
+		private final String name;
+		private final byte[] pass, salt;
+
+		private User(int id, String name, byte[] pass, byte[] salt) {
+			this.id = id;
+			this.name = name;
+			this.pass = pass;
+			this.salt = salt;
+		}
+	}
+
+	/**
+	 * Keeps track of how many bytes have been read, to find the end of the
+	 * last complete record.
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+
+		private CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1)
+				count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0)
+				count += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package db;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import files.FileDescriptor;
+
+/**
+ * Stores file metadata, as <code>FileDescriptor</code>s.
+ * 
+ * @author Dennis
+ *
+ */
+public interface FileRepository {
+
+	/**
+	 * @return The descriptor with this identifier, or null
+	 */
+	FileDescriptor getDescriptor(byte[] identifier) throws SQLException;
+
+	/**
+	 * @return All descriptors owned by this user
+	 */
+	List<FileDescriptor> getOwnedFiles(int owner) throws SQLException;
+
+	/**
+	 * @return A lazily consumed stream of all descriptors. <b>Must be
+	 *         closed.</b>
+	 */
+	Stream<FileDescriptor> streamFiles() throws SQLException;
+
+	/**
+	 * @return A lazily consumed stream of the descriptors owned by this user,
+	 *         ordered by identifier. <b>Must be closed.</b>
+	 */
+	Stream<FileDescriptor> streamOwnedFiles(int owner) throws SQLException;
+
+	/**
+	 * @return At most <code>limit</code> descriptors owned by this user,
+	 *         ordered by identifier, starting after identifier
+	 *         <code>after</code> (or at the start if it is null)
+	 */
+	List<FileDescriptor> getOwnedFiles(int owner, String after, int limit)
+			throws SQLException;
+
+	/**
+	 * @return true if the descriptor was stored, false if its identifier was
+	 *         already present
+	 */
+	boolean addDescriptor(FileDescriptor fd) throws SQLException;
+
+	/**
+	 * Stores many descriptors at once; all or none are stored.
+	 * 
+	 * @return The descriptors that were stored, i.e. were not present yet
+	 */
+	List<FileDescriptor> addDescriptors(Collection<FileDescriptor> fds)
+			throws SQLException;
+
+	/**
+	 * Stores a descriptor, replacing the one with the same identifier if
+	 * there is one, in a single transaction.
+	 * 
+	 * @return The stored descriptor that was replaced, or null if there was
+	 *         none
+	 */
+	FileDescriptor putDescriptor(FileDescriptor fd) throws SQLException;
+
+	/**
+	 * @return The stored descriptor that was deleted, or null if there was
+	 *         none with the same identifier
+	 */
+	FileDescriptor deleteDescriptor(FileDescriptor fd) throws SQLException;
+
+	/**
+	 * @return The stored descriptors that were deleted
+	 */
+	List<FileDescriptor> deleteDescriptors(Collection<FileDescriptor> fds)
+			throws SQLException;
+
+	/**
+	 * @return true if a descriptor with the same identifier is stored
+	 */
+	boolean hasDescriptor(FileDescriptor fd) throws SQLException;
+
+	/**
+	 * Adds up the sizes of all stored files, in a single pass.
+	 * 
+	 * @return The usage of every owner that has at least one file
+	 */
+	Map<Integer, Usage> getUsage() throws SQLException;
+}
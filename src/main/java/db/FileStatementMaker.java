@@ -1,12 +1,15 @@
 package db;
 
+import global.PiCloudConstants;
+
 import java.io.FileNotFoundException;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.stream.Stream;
 
 import javax.sql.rowset.serial.SerialException;
 
@@ -14,68 +17,223 @@ import files.FileDescriptor;
 
 public class FileStatementMaker {
 
+	private static final UsageCounters USAGE = new UsageCounters();
+	private static final DescriptorIndex INDEX = new DescriptorIndex(
+			Storage.isEmbedded() ? 0 : PiCloudConstants.DESCRIPTOR_INDEX_SIZE);
+
+	/**
+	 * Loads the storage usage and the descriptor index, so the first request
+	 * does not have to wait for it.
+	 * 
+	 * @throws SQLException
+	 *             If the data cannot be loaded
+	 */
+	static void load() throws SQLException {
+		INDEX.load();
+		USAGE.load();
+	}
+
+	/**
+	 * Gets the descriptor with the given identifier. Answered from memory if
+	 * the descriptor is indexed, or if the index is complete.
+	 * 
+	 * @param identifier
+	 *            The file's identifier
+	 * @return The descriptor
+	 * @throws SQLException
+	 *             If the generated statements cannot be executed
+	 * @throws FileNotFoundException
+	 *             If there is no descriptor with this identifier
+	 */
 	public static FileDescriptor getDescriptor(byte[] identifier)
 			throws SQLException, FileNotFoundException {
-		PreparedStatement statement = DatabaseManager
-				.prepare("SELECT * FROM \"File\" WHERE \"identifier\" = ?;");
-		statement.setBytes(1, identifier);
-		ResultSet result = statement.executeQuery();
-		DatabaseManager.registerResult(result, statement);
-		Tuple[] tuples = Tuple.fromResultSet(result);
-		if (tuples.length > 0)
-			return FileDescriptor.forTuple(tuples[0]);
+		INDEX.load();
+		FileDescriptor fd = INDEX.get(new String(identifier));
+		if (fd == null && !INDEX.isComplete())
+			fd = Storage.files().getDescriptor(identifier);
+		if (fd != null)
+			return fd;
 		throw new FileNotFoundException("Identifier not in database!");
 	}
 
 	public static Set<FileDescriptor> getOwnedFiles(int owner)
 			throws SQLException {
-		PreparedStatement statement = DatabaseManager
-				.prepare("SELECT * FROM \"File\" WHERE \"owner\" = ?;");
-		statement.setInt(1, owner);
-		ResultSet result = statement.executeQuery();
-		DatabaseManager.registerResult(result, statement);
-		Tuple[] tuples = Tuple.fromResultSet(result);
-		Set<FileDescriptor> descriptors = new HashSet<>();
-		Arrays.stream(tuples).forEach(
-				t -> descriptors.add(FileDescriptor.forTuple(t)));
-		return descriptors;
+		INDEX.load();
+		if (INDEX.isComplete())
+			return new HashSet<>(INDEX.getOwned(owner));
+		return new HashSet<>(Storage.files().getOwnedFiles(owner));
+	}
+
+	/**
+	 * Streams all files owned by a user, so listings of any size take
+	 * constant memory.<br>
+	 * <b>The stream must be closed</b>, preferably with try-with-resources.
+	 * 
+	 * @param owner
+	 *            The owner's id
+	 * @return A lazily consumed stream of the owner's files, ordered by
+	 *         identifier
+	 * @throws SQLException
+	 *             If the generated statements cannot be executed
+	 */
+	public static Stream<FileDescriptor> streamOwnedFiles(int owner)
+			throws SQLException {
+		return Storage.files().streamOwnedFiles(owner);
 	}
 
+	/**
+	 * Gets a single page of the files owned by a user, ordered by identifier.
+	 * To get the next page, pass the identifier of the last file on this
+	 * page as <code>after</code>.
+	 * 
+	 * @param owner
+	 *            The owner's id
+	 * @param after
+	 *            The identifier to start after, or null for the first page
+	 * @param limit
+	 *            The maximum amount of files on the page
+	 * @return The files on the page; fewer than <code>limit</code> if this is
+	 *         the last page
+	 * @throws SQLException
+	 *             If the generated statements cannot be executed
+	 */
+	public static List<FileDescriptor> getOwnedFiles(int owner, String after,
+			int limit) throws SQLException {
+		return Storage.files().getOwnedFiles(owner, after, limit);
+	}
+
+	/**
+	 * Stores a file descriptor, unless a file with the same identifier is
+	 * already stored.
+	 * 
+	 * @param fd
+	 *            The descriptor to store
+	 * @return true if the descriptor was stored, false if it already existed
+	 * @throws SQLException
+	 *             If the generated statements cannot be executed
+	 */
 	public static boolean addDescriptor(FileDescriptor fd)
 			throws SerialException, SQLException {
-		if (hasDescriptor(fd))
-			return false;
-		PreparedStatement statement = DatabaseManager
-				.prepare("INSERT INTO \"File\" (\"identifier\", \"owner\", \"size\") VALUES(?, ?, ?);");
-		statement.setBytes(1, fd.getIdentifier().getBytes());
-		statement.setInt(2, fd.getOwner());
-		statement.setLong(3, fd.getSize());
-		boolean result = statement.executeUpdate() > 0;
-		statement.close();
-		return result;
+		load();
+		boolean added = Storage.files().addDescriptor(fd);
+		if (added) {
+			INDEX.added(Collections.singletonList(fd));
+			USAGE.added(fd);
+		}
+		return added;
 	}
 
+	/**
+	 * Stores a file descriptor, replacing the one with the same identifier if
+	 * there is one. The replacement is a single transaction.
+	 * 
+	 * @param fd
+	 *            The descriptor to store
+	 * @return true if a descriptor was replaced, false if it was new
+	 * @throws SQLException
+	 *             If the generated statements cannot be executed
+	 */
+	public static boolean putDescriptor(FileDescriptor fd)
+			throws SQLException {
+		load();
+		FileDescriptor old = Storage.files().putDescriptor(fd);
+		if (old != null) {
+			INDEX.deleted(Collections.singletonList(old));
+			USAGE.deleted(old);
+		}
+		INDEX.added(Collections.singletonList(fd));
+		USAGE.added(fd);
+		return old != null;
+	}
+
+	/**
+	 * Stores many file descriptors at once, in a single transaction.
+	 * Descriptors whose identifier is already stored are skipped.
+	 * 
+	 * @param fds
+	 *            The descriptors to store
+	 * @return The amount of descriptors that were actually stored
+	 * @throws SQLException
+	 *             If the generated statements cannot be executed; nothing is
+	 *             stored in that case
+	 */
+	public static int addDescriptors(Collection<FileDescriptor> fds)
+			throws SQLException {
+		load();
+		List<FileDescriptor> added = Storage.files().addDescriptors(fds);
+		INDEX.added(added);
+		USAGE.added(added);
+		return added.size();
+	}
+
+	/**
+	 * Deletes a file descriptor.
+	 * 
+	 * @param fd
+	 *            The descriptor to delete
+	 * @return true if the descriptor was deleted, false if it was not stored
+	 * @throws SQLException
+	 *             If the generated statements cannot be executed
+	 */
 	public static boolean deleteDescriptor(FileDescriptor fd)
 			throws SerialException, SQLException {
-		if (!hasDescriptor(fd))
+		load();
+		FileDescriptor deleted = Storage.files().deleteDescriptor(fd);
+		if (deleted == null)
 			return false;
-		PreparedStatement statement = DatabaseManager
-				.prepare("DELETE FROM \"File\" WHERE \"identifier\" = ?;");
-		statement.setBytes(1, fd.getIdentifier().getBytes());
-		boolean result = statement.executeUpdate() > 0;
-		statement.close();
-		return result;
+		INDEX.deleted(Collections.singletonList(deleted));
+		USAGE.deleted(deleted);
+		return true;
 	}
 
+	/**
+	 * Deletes many file descriptors at once.
+	 * 
+	 * @param fds
+	 *            The descriptors to delete
+	 * @return The amount of descriptors that were actually deleted
+	 * @throws SQLException
+	 *             If the generated statements cannot be executed
+	 */
+	public static int deleteDescriptors(Collection<FileDescriptor> fds)
+			throws SQLException {
+		load();
+		List<FileDescriptor> deleted = Storage.files().deleteDescriptors(fds);
+		INDEX.deleted(deleted);
+		USAGE.deleted(deleted);
+		return deleted.size();
+	}
+
+	/**
+	 * Checks whether a descriptor with the same identifier is stored. This is
+	 * a map lookup if the descriptor is indexed, or if the index is complete.
+	 * 
+	 * @param fd
+	 *            The descriptor to look for
+	 * @return true if it is stored
+	 * @throws SQLException
+	 *             If the generated statements cannot be executed
+	 */
 	public static boolean hasDescriptor(FileDescriptor fd)
 			throws SerialException, SQLException {
-		PreparedStatement statement = DatabaseManager
-				.prepare("SELECT \"owner\" FROM \"File\" WHERE \"identifier\" = ?;");
-		statement.setBytes(1, fd.getIdentifier().getBytes());
-		ResultSet result = statement.executeQuery();
-		DatabaseManager.registerResult(result, statement);
-		Tuple[] tuples = Tuple.fromResultSet(result);
-		return tuples.length > 0;
+		INDEX.load();
+		if (INDEX.contains(fd.getIdentifier()))
+			return true;
+		return !INDEX.isComplete() && Storage.files().hasDescriptor(fd);
 	}
 
+	/**
+	 * Gets the storage used by a user. This does not look at the user's files:
+	 * the totals of all users are loaded once, and kept up to date as files
+	 * are stored and deleted.
+	 * 
+	 * @param owner
+	 *            The owner's id
+	 * @return The total size and amount of the owner's files
+	 * @throws SQLException
+	 *             If the totals have not been loaded yet, and cannot be
+	 */
+	public static Usage getUsage(int owner) throws SQLException {
+		return USAGE.get(owner);
+	}
 }
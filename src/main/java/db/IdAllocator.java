@@ -0,0 +1,81 @@
+package db;
+
+import java.sql.SQLException;
+
+/**
+ * Hands out user ids from a database sequence, a block at a time.<br>
+ * The sequence increments by the block size, so a single
+ * <code>nextval()</code> reserves a whole block of ids for this process. If
+ * the block size is changed, the increment of the sequence is changed with
+ * it at startup.
+ * Ids from a block that is not used up before shutdown are skipped; ids are
+ * unique, not consecutive.
+ *
+ * @author Dennis
+ *
+ */
+final class IdAllocator {
+
+	private static final String SEQUENCE = "\"Users_id_block_seq\"";
+	private static final IntRowMapper VALUE = IntRowMapper.column("value");
+
+	private final int blockSize;
+	private boolean initialised = false;
+	private int next = 0, end = 0;
+
+	/**
+	 * @param blockSize
+	 *            The amount of ids to reserve per database round trip
+	 */
+	IdAllocator(int blockSize) {
+		if (blockSize < 1)
+			throw new IllegalArgumentException("Block size must be positive!");
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Gets a new, unused id. Only queries the database when the current block
+	 * is used up.
+	 *
+	 * @param scope
+	 *            The scope to run queries in, if needed
+	 * @return The id
+	 * @throws SQLException
+	 *             If a new block cannot be reserved
+	 */
+	synchronized int next(QueryScope scope) throws SQLException {
+		if (next >= end) {
+			if (!initialised)
+				initialise(scope);
+			int start = scope.queryInt("SELECT nextval('" + SEQUENCE
+					+ "') AS \"value\";", StatementBinder.NONE, VALUE, 0);
+			next = start;
+			end = start + blockSize;
+		}
+		return next++;
+	}
+
+	/**
+	 * Creates the sequence if it does not exist yet, sets its increment to the
+	 * block size, and moves it past all ids that are already in use (e.g. ids
+	 * given out before the sequence existed).
+	 */
+	private void initialise(QueryScope scope) throws SQLException {
+		scope.update("CREATE SEQUENCE IF NOT EXISTS " + SEQUENCE
+				+ " INCREMENT BY " + blockSize + " MINVALUE 1;",
+				StatementBinder.NONE);
+		// The sequence may have been created with another block size. One
+		// more nextval() with the old increment reserves a block past all
+		// blocks reserved before, whatever their size was.
+		int reserved = scope.queryInt("SELECT nextval('" + SEQUENCE
+				+ "') AS \"value\";", StatementBinder.NONE, VALUE, 1);
+		scope.update("ALTER SEQUENCE " + SEQUENCE + " INCREMENT BY "
+				+ blockSize + ";", StatementBinder.NONE);
+		// With is_called = false the next nextval() returns exactly this
+		// value, which is past both the highest id and the reserved blocks.
+		scope.query("SELECT setval('" + SEQUENCE + "', GREATEST("
+				+ "(SELECT COALESCE(MAX(\"id\"), 0) FROM \"Users\") + 1, ?), "
+				+ "false);", s -> s.setInt(1, reserved), r -> null);
+		initialised = true;
+	}
+}
@@ -0,0 +1,53 @@
+package db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps a single row of a query result to an <code>int</code>, without
+ * boxing.
+ * 
+ * @author Dennis
+ *
+ */
+public abstract class IntRowMapper extends ColumnMapper {
+
+	/**
+	 * @param columns
+	 *            The names of the columns this mapper reads
+	 */
+	protected IntRowMapper(String... columns) {
+		super(columns);
+	}
+
+	/**
+	 * Maps the current row of <code>row</code>.
+	 * 
+	 * @param row
+	 *            A result, positioned on the row to map
+	 * @param columns
+	 *            The index of each column given to the constructor, in the
+	 *            same order
+	 * @return The mapped row
+	 * @throws SQLException
+	 *             If a column cannot be read
+	 */
+	protected abstract int map(ResultSet row, int[] columns)
+			throws SQLException;
+
+	/**
+	 * Creates a mapper which reads a single integer column.
+	 * 
+	 * @param column
+	 *            The name of the column
+	 */
+	public static IntRowMapper column(String column) {
+		return new IntRowMapper(column) {
+			@Override
+			protected int map(ResultSet row, int[] columns)
+					throws SQLException {
+				return row.getInt(columns[0]);
+			}
+		};
+	}
+}
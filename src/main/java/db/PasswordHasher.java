@@ -0,0 +1,237 @@
+package db;
+
+import global.PiCloudConstants;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.crypto.digests.SHA3Digest;
+
+/**
+ * Salts and hashes passwords with SHA3-512, optionally iterated.<br>
+ * A stored hash is <code>HASH_LENGTH</code> bytes: the digest, followed by
+ * the cost it was made with, followed by zeroes. A cost of 1 is stored as 0,
+ * so hashes of cost 1 are the same as those made before the cost was
+ * configurable. Verification always uses the cost stored in the hash, so
+ * <code>PiCloudConstants.PASSWORD_HASH_COST</code> can be raised without
+ * invalidating existing passwords.<br>
+ * Hashing can be done on the calling thread, or on a bounded pool of
+ * <code>PiCloudConstants.HASH_THREADS</code> threads, which refuses work
+ * once <code>PiCloudConstants.HASH_QUEUE_SIZE</code> hashes are waiting.
+ * Each thread reuses its own digest and buffer.
+ *
+ * @author Dennis
+ *
+ */
+public final class PasswordHasher {
+
+	/**
+	 * The length of a stored hash.
+	 */
+	public static final int HASH_LENGTH = 512;
+
+	private static final int DIGEST_LENGTH = 64;
+	private static final int SALT_LENGTH = 256;
+
+	private static final ThreadLocal<State> STATE = ThreadLocal
+			.withInitial(State::new);
+	private static final SecureRandom RANDOM = new SecureRandom();
+	private static final AtomicLong HASHED = new AtomicLong();
+	private static final AtomicLong REJECTED = new AtomicLong();
+	private static final ThreadPoolExecutor POOL;
+
+	static {
+		AtomicInteger count = new AtomicInteger();
+		POOL = new ThreadPoolExecutor(PiCloudConstants.HASH_THREADS,
+				PiCloudConstants.HASH_THREADS, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(PiCloudConstants.HASH_QUEUE_SIZE),
+				r -> {
+					Thread t = new Thread(r, "Hasher " + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+	}
+
+	private PasswordHasher() {
+	}
+
+	/**
+	 * Hashes a password on the calling thread, with the configured cost.
+	 *
+	 * @param pass
+	 *            The password
+	 * @param salt
+	 *            The salt
+	 * @return The hash to store
+	 */
+	public static byte[] hash(byte[] pass, byte[] salt) {
+		return hash(pass, salt, PiCloudConstants.PASSWORD_HASH_COST);
+	}
+
+	/**
+	 * Hashes a password on the calling thread.
+	 *
+	 * @param pass
+	 *            The password
+	 * @param salt
+	 *            The salt
+	 * @param cost
+	 *            The amount of SHA3 rounds
+	 * @return The hash to store
+	 */
+	public static byte[] hash(byte[] pass, byte[] salt, int cost) {
+		byte[] out = new byte[HASH_LENGTH];
+		STATE.get().hash(pass, salt, cost, out);
+		return out;
+	}
+
+	/**
+	 * Checks a password against stored credentials on the calling thread,
+	 * using the cost stored with the hash. The comparison takes constant
+	 * time.
+	 *
+	 * @param pass
+	 *            The password to check
+	 * @param credentials
+	 *            The stored hash and salt
+	 * @return true if the password is correct
+	 */
+	public static boolean verify(byte[] pass, Credentials credentials) {
+		byte[] stored = credentials.getPass();
+		if (stored == null || stored.length != HASH_LENGTH)
+			return false;
+		State state = STATE.get();
+		state.hash(pass, credentials.getSalt(), costOf(stored), state.out);
+		return MessageDigest.isEqual(state.out, stored);
+	}
+
+	/**
+	 * Hashes a password on the hashing pool.
+	 *
+	 * @return A future of the hash, which fails with a
+	 *         <code>RejectedExecutionException</code> if too many hashes are
+	 *         waiting already
+	 * @see #hash(byte[], byte[])
+	 */
+	public static CompletableFuture<byte[]> hashAsync(byte[] pass, byte[] salt) {
+		CompletableFuture<byte[]> future = new CompletableFuture<>();
+		submit(future, () -> future.complete(hash(pass, salt)));
+		return future;
+	}
+
+	/**
+	 * Checks a password on the hashing pool.
+	 *
+	 * @return A future of the result, which fails with a
+	 *         <code>RejectedExecutionException</code> if too many hashes are
+	 *         waiting already
+	 * @see #verify(byte[], Credentials)
+	 */
+	public static CompletableFuture<Boolean> verifyAsync(byte[] pass,
+			Credentials credentials) {
+		CompletableFuture<Boolean> future = new CompletableFuture<>();
+		submit(future, () -> future.complete(verify(pass, credentials)));
+		return future;
+	}
+
+	/**
+	 * @return A new random salt
+	 */
+	public static byte[] generateSalt() {
+		byte[] salt = new byte[SALT_LENGTH];
+		RANDOM.nextBytes(salt);
+		return salt;
+	}
+
+	/**
+	 * @return The amount of passwords hashed or checked
+	 */
+	public static long getHashed() {
+		return HASHED.get();
+	}
+
+	/**
+	 * @return The amount of hashes refused because the queue was full
+	 */
+	public static long getRejected() {
+		return REJECTED.get();
+	}
+
+	/**
+	 * @return The amount of hashes waiting for a thread
+	 */
+	public static int getQueued() {
+		return POOL.getQueue().size();
+	}
+
+	/**
+	 * Summarises the pool's load.
+	 */
+	public static String statistics() {
+		return "PasswordHasher[hashed=" + getHashed() + ", queued="
+				+ getQueued() + ", rejected=" + getRejected() + ", cost="
+				+ PiCloudConstants.PASSWORD_HASH_COST + "]";
+	}
+
+	private static void submit(CompletableFuture<?> future, Runnable task) {
+		try {
+			POOL.execute(() -> {
+				try {
+					task.run();
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			REJECTED.incrementAndGet();
+			future.completeExceptionally(e);
+		}
+	}
+
+	private static int costOf(byte[] hash) {
+		int cost = (hash[DIGEST_LENGTH] & 0xFF) << 24
+				| (hash[DIGEST_LENGTH + 1] & 0xFF) << 16
+				| (hash[DIGEST_LENGTH + 2] & 0xFF) << 8
+				| (hash[DIGEST_LENGTH + 3] & 0xFF);
+		return Math.max(cost, 1);
+	}
+
+	/**
+	 * The digest and output buffer of a single thread.
+	 */
+	private static final class State {
+		private final SHA3Digest sha3 = new SHA3Digest(512);
+		private final byte[] out = new byte[HASH_LENGTH];
+
+		/**
+		 * Writes <code>H(pass + salt)</code>, rehashed as
+		 * <code>H(previous + salt)</code> until <code>cost</code> rounds are
+		 * done, into <code>dest</code>, followed by the cost.
+		 */
+		private void hash(byte[] pass, byte[] salt, int cost, byte[] dest) {
+			if (cost < 1)
+				throw new IllegalArgumentException("Cost must be positive!");
+			sha3.update(pass, 0, pass.length);
+			sha3.update(salt, 0, salt.length);
+			sha3.doFinal(dest, 0);
+			for (int i = 1; i < cost; i++) {
+				sha3.update(dest, 0, DIGEST_LENGTH);
+				sha3.update(salt, 0, salt.length);
+				sha3.doFinal(dest, 0);
+			}
+			int stored = cost == 1 ? 0 : cost;
+			dest[DIGEST_LENGTH] = (byte) (stored >>> 24);
+			dest[DIGEST_LENGTH + 1] = (byte) (stored >>> 16);
+			dest[DIGEST_LENGTH + 2] = (byte) (stored >>> 8);
+			dest[DIGEST_LENGTH + 3] = (byte) stored;
+			HASHED.incrementAndGet();
+		}
+	}
+}
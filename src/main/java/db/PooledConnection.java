@@ -0,0 +1,84 @@
+package db;
+
+import global.PiCloudConstants;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A connection owned by a <code>ConnectionPool</code>.
+ *
+ * @author Dennis
+ *
+ */
+final class PooledConnection {
+
+	private final Connection conn;
+	private final StatementCache statements;
+	private volatile long lastUsed;
+	private volatile boolean invalidated = false;
+
+	PooledConnection(Connection conn) {
+		this.conn = conn;
+		this.statements = new StatementCache(conn,
+				PiCloudConstants.DB_STATEMENT_CACHE_SIZE);
+		touch();
+	}
+
+	Connection getConnection() {
+		return conn;
+	}
+
+	/**
+	 * Gets a prepared statement for the given SQL from this connection's
+	 * statement cache.<br>
+	 * The statement is owned by the cache and must not be closed by the
+	 * caller.
+	 * 
+	 * @param sql
+	 *            The SQL to prepare
+	 * @return An open statement, with its parameters cleared
+	 * @throws SQLException
+	 *             If the SQL cannot be prepared
+	 */
+	PreparedStatement prepare(String sql) throws SQLException {
+		return statements.prepare(sql);
+	}
+
+	/**
+	 * Marks this connection as used just now.
+	 */
+	void touch() {
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return The time in ms since this connection was last used
+	 */
+	long idleTime() {
+		return System.currentTimeMillis() - lastUsed;
+	}
+
+	/**
+	 * Marks this connection as broken, so that the pool replaces it.
+	 */
+	void invalidate() {
+		invalidated = true;
+	}
+
+	boolean isInvalidated() {
+		return invalidated;
+	}
+
+	/**
+	 * Closes the underlying connection, ignoring any errors.
+	 */
+	void close() {
+		statements.clear();
+		try {
+			conn.close();
+		} catch (SQLException e) {
+		}
+	}
+}
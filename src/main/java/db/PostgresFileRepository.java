@@ -0,0 +1,231 @@
+package db;
+
+import global.PiCloudConstants;
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import files.FileDescriptor;
+
+/**
+ * Stores file descriptors in the <i>"File"</i> table of the PostgreSQL
+ * database.
+ *
+ * @author Dennis
+ *
+ */
+final class PostgresFileRepository implements FileRepository {
+
+	private static final RowMapper<FileDescriptor> DESCRIPTOR = new RowMapper<FileDescriptor>(
+			"identifier", "owner", "size") {
+		@Override
+		protected FileDescriptor map(ResultSet row, int[] columns)
+				throws SQLException {
+			return new FileDescriptor(new String(row.getBytes(columns[0])),
+					row.getInt(columns[1]), row.getLong(columns[2]));
+		}
+	};
+
+	private static final RowMapper<Usage> USAGE = new RowMapper<Usage>(
+			"bytes", "files") {
+		@Override
+		protected Usage map(ResultSet row, int[] columns) throws SQLException {
+			return new Usage(row.getLong(columns[0]), row.getInt(columns[1]));
+		}
+	};
+	private static final IntRowMapper OWNER = IntRowMapper.column("owner");
+
+	private static final String INSERT = "INSERT INTO \"File\" (\"identifier\", \"owner\", \"size\") VALUES(?, ?, ?)"
+			+ " ON CONFLICT (\"identifier\") DO NOTHING;";
+
+	private static final String PUT = "WITH \"old\" AS (SELECT * FROM \"File\" WHERE \"identifier\" = ? FOR UPDATE),"
+			+ " \"new\" AS (INSERT INTO \"File\" (\"identifier\", \"owner\", \"size\") VALUES(?, ?, ?)"
+			+ " ON CONFLICT (\"identifier\") DO UPDATE SET \"owner\" = EXCLUDED.\"owner\", \"size\" = EXCLUDED.\"size\")"
+			+ " SELECT * FROM \"old\";";
+
+	private static final String USAGE_SQL = "SELECT \"owner\", SUM(\"size\") AS \"bytes\", COUNT(*) AS \"files\""
+			+ " FROM \"File\" GROUP BY \"owner\";";
+
+	@Override
+	public FileDescriptor getDescriptor(byte[] identifier)
+			throws SQLException {
+		return DatabaseManager.queryFirst(
+				"SELECT * FROM \"File\" WHERE \"identifier\" = ?;",
+				s -> s.setBytes(1, identifier), DESCRIPTOR);
+	}
+
+	@Override
+	public List<FileDescriptor> getOwnedFiles(int owner) throws SQLException {
+		return DatabaseManager.queryAll(
+				"SELECT * FROM \"File\" WHERE \"owner\" = ?;",
+				s -> s.setInt(1, owner), DESCRIPTOR);
+	}
+
+	@Override
+	public Stream<FileDescriptor> streamFiles() throws SQLException {
+		return DatabaseManager.stream("SELECT * FROM \"File\";",
+				StatementBinder.NONE, DESCRIPTOR,
+				PiCloudConstants.DB_FETCH_SIZE);
+	}
+
+	/**
+	 * Fetches the files from the database in batches of
+	 * <code>PiCloudConstants.DB_FETCH_SIZE</code> through a cursor, so
+	 * listings of any size take constant memory.
+	 */
+	@Override
+	public Stream<FileDescriptor> streamOwnedFiles(int owner)
+			throws SQLException {
+		return DatabaseManager.stream(
+				"SELECT * FROM \"File\" WHERE \"owner\" = ? ORDER BY \"identifier\";",
+				s -> s.setInt(1, owner), DESCRIPTOR,
+				PiCloudConstants.DB_FETCH_SIZE);
+	}
+
+	@Override
+	public List<FileDescriptor> getOwnedFiles(int owner, String after,
+			int limit) throws SQLException {
+		if (after == null)
+			return DatabaseManager.queryAll(
+					"SELECT * FROM \"File\" WHERE \"owner\" = ? ORDER BY \"identifier\" LIMIT ?;",
+					s -> {
+						s.setInt(1, owner);
+						s.setInt(2, limit);
+					}, DESCRIPTOR);
+		return DatabaseManager.queryAll(
+				"SELECT * FROM \"File\" WHERE \"owner\" = ? AND \"identifier\" > ? ORDER BY \"identifier\" LIMIT ?;",
+				s -> {
+					s.setInt(1, owner);
+					s.setBytes(2, after.getBytes());
+					s.setInt(3, limit);
+				}, DESCRIPTOR);
+	}
+
+	@Override
+	public boolean addDescriptor(FileDescriptor fd) throws SQLException {
+		return DatabaseManager.update(INSERT, s -> bindInsert(s, fd)) > 0;
+	}
+
+	/**
+	 * Uses JDBC batches of <code>PiCloudConstants.DB_BATCH_SIZE</code> in a
+	 * single transaction.
+	 */
+	@Override
+	public List<FileDescriptor> addDescriptors(Collection<FileDescriptor> fds)
+			throws SQLException {
+		int[] counts;
+		try (QueryScope scope = DatabaseManager.open()) {
+			counts = scope.batch(INSERT, fds,
+					PostgresFileRepository::bindInsert,
+					PiCloudConstants.DB_BATCH_SIZE);
+		}
+		List<FileDescriptor> stored = new ArrayList<>();
+		Iterator<FileDescriptor> it = fds.iterator();
+		for (int count : counts) {
+			FileDescriptor fd = it.next();
+			if (count > 0)
+				stored.add(fd);
+		}
+		return stored;
+	}
+
+	/**
+	 * The old row is read and the new one written by a single statement.
+	 */
+	@Override
+	public FileDescriptor putDescriptor(FileDescriptor fd)
+			throws SQLException {
+		return DatabaseManager.queryFirst(PUT, s -> {
+			s.setBytes(1, fd.getIdentifier().getBytes());
+			s.setBytes(2, fd.getIdentifier().getBytes());
+			s.setInt(3, fd.getOwner());
+			s.setLong(4, fd.getSize());
+		}, DESCRIPTOR);
+	}
+
+	@Override
+	public FileDescriptor deleteDescriptor(FileDescriptor fd)
+			throws SQLException {
+		return DatabaseManager.queryFirst(
+				"DELETE FROM \"File\" WHERE \"identifier\" = ? RETURNING *;",
+				s -> s.setBytes(1, fd.getIdentifier().getBytes()), DESCRIPTOR);
+	}
+
+	/**
+	 * Each statement deletes up to <code>PiCloudConstants.DB_BATCH_SIZE</code>
+	 * descriptors, passed as a single array parameter.
+	 */
+	@Override
+	public List<FileDescriptor> deleteDescriptors(
+			Collection<FileDescriptor> fds) throws SQLException {
+		List<FileDescriptor> deleted = new ArrayList<>();
+		try (QueryScope scope = DatabaseManager.open()) {
+			Iterator<FileDescriptor> it = fds.iterator();
+			while (it.hasNext()) {
+				List<String> ids = new ArrayList<>();
+				while (it.hasNext() && ids.size() < PiCloudConstants.DB_BATCH_SIZE)
+					ids.add(toHex(it.next().getIdentifier().getBytes()));
+				Array array = scope.createArray("bytea", ids.toArray());
+				deleted.addAll(scope.queryAll(
+						"DELETE FROM \"File\" WHERE \"identifier\" = ANY(?) RETURNING *;",
+						s -> s.setArray(1, array), DESCRIPTOR));
+				array.free();
+			}
+		}
+		return deleted;
+	}
+
+	@Override
+	public boolean hasDescriptor(FileDescriptor fd) throws SQLException {
+		return DatabaseManager.query(
+				"SELECT \"owner\" FROM \"File\" WHERE \"identifier\" = ?;",
+				s -> s.setBytes(1, fd.getIdentifier().getBytes()),
+				ResultSet::next);
+	}
+
+	@Override
+	public Map<Integer, Usage> getUsage() throws SQLException {
+		return DatabaseManager.query(USAGE_SQL, StatementBinder.NONE, r -> {
+			Map<Integer, Usage> usage = new HashMap<>();
+			if (r.next()) {
+				int[] owner = OWNER.layout(USAGE_SQL, r);
+				int[] totals = USAGE.layout(USAGE_SQL, r);
+				do {
+					usage.put(OWNER.map(r, owner), USAGE.map(r, totals));
+				} while (r.next());
+			}
+			return usage;
+		});
+	}
+
+	private static void bindInsert(PreparedStatement statement,
+			FileDescriptor fd) throws SQLException {
+		statement.setBytes(1, fd.getIdentifier().getBytes());
+		statement.setInt(2, fd.getOwner());
+		statement.setLong(3, fd.getSize());
+	}
+
+	/**
+	 * Writes bytes in PostgreSQL's hex format for bytea, e.g.
+	 * <code>\x0a1b</code>.
+	 */
+	private static String toHex(byte[] bytes) {
+		char[] hex = new char[2 + bytes.length * 2];
+		hex[0] = '\\';
+		hex[1] = 'x';
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 + i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+			hex[3 + i * 2] = Character.forDigit(bytes[i] & 0xF, 16);
+		}
+		return new String(hex);
+	}
+}
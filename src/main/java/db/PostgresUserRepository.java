@@ -0,0 +1,123 @@
+package db;
+
+import global.PiCloudConstants;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetProvider;
+
+/**
+ * Stores users in the <i>"Users"</i> table of the PostgreSQL database.
+ *
+ * @author Dennis
+ *
+ */
+final class PostgresUserRepository implements UserRepository {
+
+	private static final IntRowMapper ID = IntRowMapper.column("id");
+	private static final RowMapper<byte[]> PASS = RowMapper.bytes("pass");
+	private static final RowMapper<byte[]> SALT = RowMapper.bytes("salt");
+	private static final RowMapper<String> NAME = RowMapper.string("name");
+	private static final RowMapper<Credentials> CREDENTIALS = new RowMapper<Credentials>(
+			"pass", "salt") {
+		@Override
+		protected Credentials map(ResultSet row, int[] columns)
+				throws SQLException {
+			return new Credentials(row.getBytes(columns[0]),
+					row.getBytes(columns[1]));
+		}
+	};
+
+	private final IdAllocator ids = new IdAllocator(
+			PiCloudConstants.USER_ID_BLOCK_SIZE);
+
+	@Override
+	public int findId(String name) throws SQLException {
+		return DatabaseManager.queryInt(
+				"SELECT id FROM \"Users\" WHERE \"name\" = ?;",
+				s -> s.setString(1, name), ID, NO_USER);
+	}
+
+	@Override
+	public String findName(int id) throws SQLException {
+		return DatabaseManager.queryFirst(
+				"SELECT \"name\" FROM \"Users\" WHERE \"id\" = ?;",
+				s -> s.setInt(1, id), NAME);
+	}
+
+	@Override
+	public ResultSet getUserData(int id) throws SQLException {
+		return DatabaseManager.query(
+				"SELECT * FROM \"Users\" WHERE \"id\" = ?;",
+				s -> s.setInt(1, id), r -> {
+					CachedRowSet rows = RowSetProvider.newFactory()
+							.createCachedRowSet();
+					rows.populate(r);
+					return rows;
+				});
+	}
+
+	@Override
+	public byte[] getPass(int id) throws SQLException {
+		return DatabaseManager.queryFirst(
+				"SELECT \"pass\" FROM \"Users\" WHERE \"id\" = ?;",
+				s -> s.setInt(1, id), PASS);
+	}
+
+	@Override
+	public byte[] getSalt(int id) throws SQLException {
+		return DatabaseManager.queryFirst(
+				"SELECT \"salt\" FROM \"Users\" WHERE \"id\" = ?;",
+				s -> s.setInt(1, id), SALT);
+	}
+
+	@Override
+	public Credentials getCredentials(String name) throws SQLException {
+		return DatabaseManager.queryFirst(
+				"SELECT \"pass\", \"salt\" FROM \"Users\" WHERE \"name\" = ?;",
+				s -> s.setString(1, name), CREDENTIALS);
+	}
+
+	@Override
+	public int createAccount(String name, byte[] pass, byte[] salt)
+			throws SQLException {
+		try (QueryScope scope = DatabaseManager.open()) {
+			boolean exists = scope.query(
+					"SELECT id FROM \"Users\" WHERE \"name\" = ?;",
+					s -> s.setString(1, name), ResultSet::next);
+			if (exists)
+				throw new IllegalArgumentException(
+						"A user with this name already exists!");
+
+			int id = ids.next(scope);
+			int inserted = scope.update(
+					"INSERT INTO \"Users\" (\"id\", \"name\", \"pass\", \"salt\")"
+							+ " VALUES (?, ?, ?, ?);", s -> {
+						s.setInt(1, id);
+						s.setString(2, name);
+						s.setBytes(3, pass);
+						s.setBytes(4, salt);
+					});
+			if (inserted <= 0)
+				throw new RuntimeException(
+						"Create Account statement failed to create new account!");
+			return id;
+		}
+	}
+
+	@Override
+	public boolean deleteAccount(int id) throws SQLException {
+		return DatabaseManager.update(
+				"DELETE FROM \"Users\" WHERE \"id\" = ?;",
+				s -> s.setInt(1, id)) > 0;
+	}
+
+	@Override
+	public List<String> getUserNames() throws SQLException {
+		return DatabaseManager.queryAll("SELECT \"name\" FROM \"Users\";",
+				StatementBinder.NONE, NAME);
+	}
+}
@@ -0,0 +1,413 @@
+package db;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import db.QueryStatistics.Sample;
+
+/**
+ * A connection leased from the pool for the duration of a try-with-resources
+ * block. Every statement run through the scope uses the same connection, and
+ * all resources are released when the scope is closed:
+ *
+ * <pre>
+ * try (QueryScope scope = DatabaseManager.open()) {
+ * 	int id = scope.query(sql, s -&gt; s.setString(1, name), r -&gt; ...);
+ * 	scope.update(otherSql, s -&gt; s.setInt(1, id));
+ * }
+ * </pre>
+ *
+ * @author Dennis
+ *
+ */
+public final class QueryScope implements AutoCloseable {
+
+	private final ConnectionPool pool;
+	private PooledConnection conn;
+
+	QueryScope(ConnectionPool pool) throws SQLException {
+		this.pool = pool;
+		this.conn = pool.lease();
+	}
+
+	/**
+	 * Runs a query and hands its result to <code>handler</code>. The
+	 * <code>ResultSet</code> is closed as soon as the handler returns.
+	 *
+	 * @param sql
+	 *            The query to run
+	 * @param binder
+	 *            Sets the query's parameters
+	 * @param handler
+	 *            Turns the <code>ResultSet</code> into the result
+	 * @return The result of <code>handler</code>
+	 * @throws SQLException
+	 *             If the query cannot be executed
+	 */
+	public <T> T query(String sql, StatementBinder binder,
+			ResultHandler<T> handler) throws SQLException {
+		return run(sql, binder, handler, QueryStatistics.start(sql));
+	}
+
+	/**
+	 * Runs a query and maps its first row.
+	 *
+	 * @param sql
+	 *            The query to run
+	 * @param binder
+	 *            Sets the query's parameters
+	 * @param mapper
+	 *            Maps the row
+	 * @return The mapped first row, or null if there are no rows
+	 * @throws SQLException
+	 *             If the query cannot be executed
+	 */
+	public <T> T queryFirst(String sql, StatementBinder binder,
+			RowMapper<T> mapper) throws SQLException {
+		Sample sample = QueryStatistics.start(sql);
+		return run(sql, binder, r -> {
+			if (!r.next())
+				return null;
+			sample.rows(1);
+			return mapper.map(r, mapper.layout(sql, r));
+		}, sample);
+	}
+
+	/**
+	 * Runs a query and maps all of its rows.
+	 *
+	 * @param sql
+	 *            The query to run
+	 * @param binder
+	 *            Sets the query's parameters
+	 * @param mapper
+	 *            Maps each row
+	 * @return The mapped rows, in order
+	 * @throws SQLException
+	 *             If the query cannot be executed
+	 */
+	public <T> List<T> queryAll(String sql, StatementBinder binder,
+			RowMapper<T> mapper) throws SQLException {
+		Sample sample = QueryStatistics.start(sql);
+		return run(sql, binder, r -> {
+			List<T> rows = new ArrayList<>();
+			if (r.next()) {
+				int[] columns = mapper.layout(sql, r);
+				do {
+					rows.add(mapper.map(r, columns));
+				} while (r.next());
+			}
+			sample.rows(rows.size());
+			return rows;
+		}, sample);
+	}
+
+	/**
+	 * Runs a query and maps its first row to an <code>int</code>.
+	 *
+	 * @param sql
+	 *            The query to run
+	 * @param binder
+	 *            Sets the query's parameters
+	 * @param mapper
+	 *            Maps the row
+	 * @param missing
+	 *            The value to return if there are no rows
+	 * @return The mapped first row, or <code>missing</code>
+	 * @throws SQLException
+	 *             If the query cannot be executed
+	 */
+	public int queryInt(String sql, StatementBinder binder,
+			IntRowMapper mapper, int missing) throws SQLException {
+		Sample sample = QueryStatistics.start(sql);
+		try {
+			PreparedStatement statement = prepare(sql);
+			binder.bind(statement);
+			sample.prepared();
+			try (ResultSet result = statement.executeQuery()) {
+				sample.executed();
+				int value = missing;
+				if (result.next()) {
+					sample.rows(1);
+					value = mapper.map(result, mapper.layout(sql, result));
+				}
+				sample.finished();
+				return value;
+			}
+		} catch (SQLException | RuntimeException e) {
+			sample.failed();
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs a query and lazily maps its rows as they are consumed. Rows are
+	 * fetched from the database <code>fetchSize</code> at a time through a
+	 * server-side cursor, so only that many rows are held in memory at once.
+	 * <br>
+	 * <b>The stream must be closed</b>; until it is, this scope's connection
+	 * is in a transaction and cannot be used for anything else.
+	 *
+	 * @param sql
+	 *            The query to run
+	 * @param binder
+	 *            Sets the query's parameters
+	 * @param mapper
+	 *            Maps each row
+	 * @param fetchSize
+	 *            The amount of rows to fetch per round trip
+	 * @return A stream of the mapped rows, in order
+	 * @throws SQLException
+	 *             If the query cannot be executed
+	 */
+	public <T> Stream<T> stream(String sql, StatementBinder binder,
+			RowMapper<T> mapper, int fetchSize) throws SQLException {
+		if (conn == null)
+			throw new SQLException("QueryScope is already closed!");
+		Sample sample = QueryStatistics.start(sql);
+		PooledConnection leased = conn;
+		Connection c = leased.getConnection();
+		// PostgreSQL only uses a cursor inside a transaction. The statement
+		// is not taken from the cache, because its fetch size is changed.
+		c.setAutoCommit(false);
+		PreparedStatement statement = null;
+		ResultSet result;
+		try {
+			statement = c.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+					ResultSet.CONCUR_READ_ONLY);
+			statement.setFetchSize(fetchSize);
+			binder.bind(statement);
+			sample.prepared();
+			result = statement.executeQuery();
+			sample.executed();
+		} catch (SQLException e) {
+			sample.failed();
+			if (statement != null)
+				statement.close();
+			c.rollback();
+			c.setAutoCommit(true);
+			throw e;
+		}
+		PreparedStatement cursor = statement;
+		Cursor<T> rows = new Cursor<>(sql, result, mapper, sample);
+		return StreamSupport.stream(rows, false).onClose(() -> {
+			try {
+				result.close();
+				cursor.close();
+				c.commit();
+				c.setAutoCommit(true);
+			} catch (SQLException e) {
+				leased.invalidate();
+				if (!rows.failed)
+					sample.failed();
+				throw new RuntimeException("Could not close cursor", e);
+			}
+			// A failed read was recorded already.
+			if (!rows.failed)
+				sample.finished();
+		});
+	}
+
+	/**
+	 * Runs an INSERT, UPDATE or DELETE statement.
+	 *
+	 * @param sql
+	 *            The statement to run
+	 * @param binder
+	 *            Sets the statement's parameters
+	 * @return The amount of affected rows
+	 * @throws SQLException
+	 *             If the statement cannot be executed
+	 */
+	public int update(String sql, StatementBinder binder) throws SQLException {
+		Sample sample = QueryStatistics.start(sql);
+		try {
+			PreparedStatement statement = prepare(sql);
+			binder.bind(statement);
+			sample.prepared();
+			int count = statement.executeUpdate();
+			sample.rows(count);
+			sample.updated();
+			return count;
+		} catch (SQLException | RuntimeException e) {
+			sample.failed();
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs the same INSERT, UPDATE or DELETE statement once for every item,
+	 * sending the statements to the database in batches of
+	 * <code>batchSize</code>. All items are processed in a single
+	 * transaction: if one fails, none are applied.
+	 *
+	 * @param sql
+	 *            The statement to run
+	 * @param items
+	 *            The items to run the statement for
+	 * @param binder
+	 *            Sets the statement's parameters for an item
+	 * @param batchSize
+	 *            The maximum amount of statements per round trip
+	 * @return The amount of rows affected for each item, in iteration order.
+	 *         <code>Statement.SUCCESS_NO_INFO</code> if the driver does not
+	 *         know.
+	 * @throws SQLException
+	 *             If the statements cannot be executed
+	 */
+	public <T> int[] batch(String sql, Collection<? extends T> items,
+			BatchBinder<? super T> binder, int batchSize) throws SQLException {
+		int[] counts = new int[items.size()];
+		if (items.isEmpty())
+			return counts;
+		Sample sample = QueryStatistics.start(sql);
+		PreparedStatement statement = prepare(sql);
+		sample.prepared();
+		Connection c = conn.getConnection();
+		c.setAutoCommit(false);
+		try {
+			int done = 0, pending = 0;
+			for (T item : items) {
+				binder.bind(statement, item);
+				statement.addBatch();
+				if (++pending == batchSize) {
+					int[] result = statement.executeBatch();
+					System.arraycopy(result, 0, counts, done, result.length);
+					done += pending;
+					pending = 0;
+				}
+			}
+			if (pending > 0) {
+				int[] result = statement.executeBatch();
+				System.arraycopy(result, 0, counts, done, result.length);
+			}
+			c.commit();
+			for (int count : counts)
+				if (count > 0)
+					sample.rows(count);
+			sample.updated();
+		} catch (SQLException | RuntimeException e) {
+			// Restoring autocommit would commit the batches sent so far.
+			sample.failed();
+			statement.clearBatch();
+			c.rollback();
+			throw e;
+		} finally {
+			c.setAutoCommit(true);
+		}
+		return counts;
+	}
+
+	/**
+	 * Creates a SQL array to pass as a single parameter, e.g. for
+	 * <code>= ANY(?)</code>.
+	 *
+	 * @param type
+	 *            The SQL name of the element type
+	 * @param elements
+	 *            The elements of the array
+	 * @return The array, valid as long as this scope is open
+	 * @throws SQLException
+	 *             If the array cannot be created
+	 */
+	public Array createArray(String type, Object[] elements)
+			throws SQLException {
+		if (conn == null)
+			throw new SQLException("QueryScope is already closed!");
+		return conn.getConnection().createArrayOf(type, elements);
+	}
+
+	/**
+	 * Prepares, executes and reads a query, timing each step.
+	 */
+	private <T> T run(String sql, StatementBinder binder,
+			ResultHandler<T> handler, Sample sample) throws SQLException {
+		try {
+			PreparedStatement statement = prepare(sql);
+			binder.bind(statement);
+			sample.prepared();
+			try (ResultSet result = statement.executeQuery()) {
+				sample.executed();
+				T value = handler.handle(result);
+				sample.finished();
+				return value;
+			}
+		} catch (SQLException | RuntimeException e) {
+			sample.failed();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gets the (cached) prepared statement for this SQL on this scope's
+	 * connection. It must not be closed by the caller.
+	 */
+	PreparedStatement prepare(String sql) throws SQLException {
+		if (conn == null)
+			throw new SQLException("QueryScope is already closed!");
+		return conn.prepare(sql);
+	}
+
+	/**
+	 * Walks through a ResultSet one row at a time, mapping each row.
+	 */
+	private static final class Cursor<T> extends
+			Spliterators.AbstractSpliterator<T> {
+
+		private final String sql;
+		private final ResultSet result;
+		private final RowMapper<T> mapper;
+		private final Sample sample;
+		private int[] columns;
+		private boolean failed = false;
+
+		private Cursor(String sql, ResultSet result, RowMapper<T> mapper,
+				Sample sample) {
+			super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+			this.sql = sql;
+			this.result = result;
+			this.mapper = mapper;
+			this.sample = sample;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super T> action) {
+			try {
+				if (!result.next())
+					return false;
+				if (columns == null)
+					columns = mapper.layout(sql, result);
+				sample.rows(1);
+				action.accept(mapper.map(result, columns));
+				return true;
+			} catch (SQLException e) {
+				if (!failed)
+					sample.failed();
+				failed = true;
+				throw new RuntimeException("Could not read next row", e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the connection to the pool.
+	 */
+	@Override
+	public void close() {
+		if (conn != null) {
+			pool.release(conn);
+			conn = null;
+		}
+	}
+}
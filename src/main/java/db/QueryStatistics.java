@@ -0,0 +1,338 @@
+package db;
+
+import global.Logger;
+import global.PiCloudConstants;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings of a single SQL statement, over every time it was run through a
+ * <code>QueryScope</code>.<br>
+ * Preparing, executing and fetching the results are timed separately, each
+ * in a histogram with power-of-two buckets. Runs which take longer than
+ * <code>PiCloudConstants.DB_SLOW_QUERY_THRESHOLD</code> in total are logged.
+ * All times are in nanoseconds.
+ *
+ * @author Dennis
+ *
+ */
+public final class QueryStatistics {
+
+	/**
+	 * The maximum amount of distinct statements to keep statistics for. All
+	 * statements are constants, so this is only reached if SQL is built from
+	 * input somewhere.
+	 */
+	private static final int MAX_STATEMENTS = 1024;
+	private static final String OTHER = "<other statements>";
+
+	private static final Map<String, QueryStatistics> STATISTICS = new ConcurrentHashMap<>();
+
+	private final String sql;
+	private final Histogram prepare = new Histogram();
+	private final Histogram execute = new Histogram();
+	private final Histogram fetch = new Histogram();
+	private final LongAdder rows = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder slow = new LongAdder();
+
+	private QueryStatistics(String sql) {
+		this.sql = sql;
+	}
+
+	/**
+	 * Starts timing a run of a statement.
+	 */
+	static Sample start(String sql) {
+		QueryStatistics stats = STATISTICS.get(sql);
+		if (stats == null) {
+			if (STATISTICS.size() >= MAX_STATEMENTS)
+				sql = OTHER;
+			stats = STATISTICS.computeIfAbsent(sql, QueryStatistics::new);
+		}
+		return new Sample(stats);
+	}
+
+	/**
+	 * @return The statistics of this statement, or null if it has not been
+	 *         run
+	 */
+	public static QueryStatistics of(String sql) {
+		return STATISTICS.get(sql);
+	}
+
+	/**
+	 * @return The statistics of all statements that have been run
+	 */
+	public static Collection<QueryStatistics> all() {
+		return Collections.unmodifiableCollection(STATISTICS.values());
+	}
+
+	/**
+	 * Forgets all statistics.
+	 */
+	public static void reset() {
+		STATISTICS.clear();
+	}
+
+	/**
+	 * Summarises all statements, the one that took the most time in total
+	 * first.
+	 */
+	public static String report() {
+		List<QueryStatistics> sorted = new ArrayList<>(STATISTICS.values());
+		sorted.sort(Comparator.comparingLong(QueryStatistics::getTotalTime)
+				.reversed());
+		StringBuilder sb = new StringBuilder("QueryStatistics:");
+		for (QueryStatistics stats : sorted)
+			sb.append("\n\t").append(stats);
+		return sb.toString();
+	}
+
+	/**
+	 * @return The statement
+	 */
+	public String getSql() {
+		return sql;
+	}
+
+	/**
+	 * @return The time taken to get a prepared statement, including looking
+	 *         it up in the statement cache and binding the parameters
+	 */
+	public Histogram getPrepare() {
+		return prepare;
+	}
+
+	/**
+	 * @return The time taken to execute the statement, up to the first result
+	 */
+	public Histogram getExecute() {
+		return execute;
+	}
+
+	/**
+	 * @return The time taken to read and map the results
+	 */
+	public Histogram getFetch() {
+		return fetch;
+	}
+
+	/**
+	 * @return The amount of times the statement was run successfully
+	 */
+	public long getExecutions() {
+		return execute.getCount();
+	}
+
+	/**
+	 * @return The total amount of rows returned or affected
+	 */
+	public long getRows() {
+		return rows.sum();
+	}
+
+	/**
+	 * @return The amount of runs that failed with an exception
+	 */
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	/**
+	 * @return The amount of runs which were slower than the threshold
+	 */
+	public long getSlow() {
+		return slow.sum();
+	}
+
+	/**
+	 * @return The time taken by all runs together
+	 */
+	public long getTotalTime() {
+		return prepare.getTotal() + execute.getTotal() + fetch.getTotal();
+	}
+
+	public String toString() {
+		return String.format(
+				"n=%d mean=%.3fms p99=%.3fms max=%.3fms rows=%d errors=%d slow=%d: %s",
+				getExecutions(), ms(getExecutions() == 0 ? 0 : getTotalTime()
+						/ getExecutions()), ms(execute.getPercentile(0.99)),
+				ms(execute.getMax()), getRows(), getErrors(), getSlow(), sql);
+	}
+
+	private static double ms(long nanos) {
+		return nanos / 1e6;
+	}
+
+	/**
+	 * The distribution of durations of one phase of a statement. Bucket
+	 * <code>i</code> counts durations of less than <code>2^(i+1)</code>
+	 * nanoseconds, but at least <code>2^i</code>.
+	 */
+	public static final class Histogram {
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder total = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		private Histogram() {
+		}
+
+		private void record(long nanos) {
+			buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos | 1));
+			count.increment();
+			total.add(nanos);
+			max.accumulateAndGet(nanos, Math::max);
+		}
+
+		/**
+		 * @return The amount of recorded durations
+		 */
+		public long getCount() {
+			return count.sum();
+		}
+
+		/**
+		 * @return The sum of all recorded durations
+		 */
+		public long getTotal() {
+			return total.sum();
+		}
+
+		/**
+		 * @return The longest recorded duration
+		 */
+		public long getMax() {
+			return max.get();
+		}
+
+		/**
+		 * @return The average recorded duration
+		 */
+		public long getMean() {
+			long n = getCount();
+			return n == 0 ? 0 : getTotal() / n;
+		}
+
+		/**
+		 * @return The amount of durations in each bucket
+		 */
+		public long[] getBuckets() {
+			long[] copy = new long[buckets.length()];
+			for (int i = 0; i < copy.length; i++)
+				copy[i] = buckets.get(i);
+			return copy;
+		}
+
+		/**
+		 * Estimates a percentile from the buckets.
+		 *
+		 * @param fraction
+		 *            The percentile, e.g. 0.99
+		 * @return The upper bound of the bucket the percentile falls in, at
+		 *         most twice the actual value
+		 */
+		public long getPercentile(double fraction) {
+			long[] counts = getBuckets();
+			long n = 0;
+			for (long c : counts)
+				n += c;
+			long rank = (long) Math.ceil(fraction * n);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && counts[i] > 0)
+					return Math.min(getMax(), i >= 62 ? Long.MAX_VALUE
+							: (2L << i) - 1);
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * A single run of a statement, timed from its creation.
+	 */
+	static final class Sample {
+		private final QueryStatistics stats;
+		private final long start;
+		private long prepared, executed;
+		private long rows = 0;
+
+		private Sample(QueryStatistics stats) {
+			this.stats = stats;
+			start = System.nanoTime();
+		}
+
+		/**
+		 * The statement is prepared and its parameters are bound.
+		 */
+		void prepared() {
+			prepared = System.nanoTime();
+		}
+
+		/**
+		 * The statement has been executed.
+		 */
+		void executed() {
+			executed = System.nanoTime();
+		}
+
+		/**
+		 * Counts rows that were returned or affected.
+		 */
+		void rows(long count) {
+			rows += count;
+		}
+
+		/**
+		 * All results have been read; records the run.
+		 */
+		void finished() {
+			long now = System.nanoTime();
+			record(prepared - start, executed - prepared, now - executed, true);
+		}
+
+		/**
+		 * The statement had no results to fetch; records the run.
+		 */
+		void updated() {
+			long now = System.nanoTime();
+			record(prepared - start, now - prepared, 0, false);
+		}
+
+		/**
+		 * The run failed with an exception.
+		 */
+		void failed() {
+			stats.errors.increment();
+		}
+
+		private void record(long prepare, long execute, long fetch,
+				boolean fetched) {
+			stats.prepare.record(prepare);
+			stats.execute.record(execute);
+			if (fetched)
+				stats.fetch.record(fetch);
+			stats.rows.add(rows);
+			long total = prepare + execute + fetch;
+			if (total >= PiCloudConstants.DB_SLOW_QUERY_THRESHOLD * 1000000L) {
+				stats.slow.increment();
+				Logger.log("Slow query (" + String.format("%.3f", ms(total))
+						+ "ms: prepare=" + String.format("%.3f", ms(prepare))
+						+ ", execute=" + String.format("%.3f", ms(execute))
+						+ ", fetch=" + String.format("%.3f", ms(fetch))
+						+ ", rows=" + rows + "): " + stats.sql);
+			}
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Turns the <code>ResultSet</code> of a query into a result. The
+ * <code>ResultSet</code> is only valid for the duration of the call.
+ * 
+ * @author Dennis
+ *
+ * @param <T>
+ *            The type of the result
+ */
+@FunctionalInterface
+public interface ResultHandler<T> {
+
+	T handle(ResultSet result) throws SQLException;
+}
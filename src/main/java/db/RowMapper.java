@@ -0,0 +1,73 @@
+package db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps a single row of a query result straight to an object.<br>
+ * Columns are referred to by name when the mapper is created; their
+ * positions are resolved once per query, so <code>map</code> only reads
+ * columns by index.
+ * 
+ * @author Dennis
+ *
+ * @param <T>
+ *            The type rows are mapped to
+ */
+public abstract class RowMapper<T> extends ColumnMapper {
+
+	/**
+	 * @param columns
+	 *            The names of the columns this mapper reads
+	 */
+	protected RowMapper(String... columns) {
+		super(columns);
+	}
+
+	/**
+	 * Maps the current row of <code>row</code>.
+	 * 
+	 * @param row
+	 *            A result, positioned on the row to map
+	 * @param columns
+	 *            The index of each column given to the constructor, in the
+	 *            same order
+	 * @return The mapped row
+	 * @throws SQLException
+	 *             If a column cannot be read
+	 */
+	protected abstract T map(ResultSet row, int[] columns)
+			throws SQLException;
+
+	/**
+	 * Creates a mapper which reads a single <code>bytea</code> column.
+	 * 
+	 * @param column
+	 *            The name of the column
+	 */
+	public static RowMapper<byte[]> bytes(String column) {
+		return new RowMapper<byte[]>(column) {
+			@Override
+			protected byte[] map(ResultSet row, int[] columns)
+					throws SQLException {
+				return row.getBytes(columns[0]);
+			}
+		};
+	}
+
+	/**
+	 * Creates a mapper which reads a single text column.
+	 * 
+	 * @param column
+	 *            The name of the column
+	 */
+	public static RowMapper<String> string(String column) {
+		return new RowMapper<String>(column) {
+			@Override
+			protected String map(ResultSet row, int[] columns)
+					throws SQLException {
+				return row.getString(columns[0]);
+			}
+		};
+	}
+}
@@ -0,0 +1,22 @@
+package db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Sets the parameters of a prepared statement before it is executed.
+ * 
+ * @author Dennis
+ *
+ */
+@FunctionalInterface
+public interface StatementBinder {
+
+	/**
+	 * Binds nothing; for statements without parameters.
+	 */
+	StatementBinder NONE = s -> {
+	};
+
+	void bind(PreparedStatement statement) throws SQLException;
+}
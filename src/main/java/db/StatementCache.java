@@ -0,0 +1,119 @@
+package db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least-recently-used cache of prepared statements for a single
+ * connection, keyed by their SQL text.<br>
+ * Not thread safe: a connection, and therefore its cache, is only ever used
+ * by the thread which leased it.
+ *
+ * @author Dennis
+ *
+ */
+public final class StatementCache {
+
+	private static final AtomicLong HITS = new AtomicLong();
+	private static final AtomicLong MISSES = new AtomicLong();
+	private static final AtomicLong EVICTIONS = new AtomicLong();
+
+	private final Connection conn;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+
+	/**
+	 * @param conn
+	 *            The connection to prepare statements on
+	 * @param capacity
+	 *            The maximum amount of statements to keep open
+	 */
+	StatementCache(Connection conn, final int capacity) {
+		this.conn = conn;
+		statements = new LinkedHashMap<String, PreparedStatement>(capacity,
+				0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= capacity)
+					return false;
+				EVICTIONS.incrementAndGet();
+				try {
+					eldest.getValue().close();
+				} catch (SQLException e) {
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Gets the prepared statement for the given SQL, preparing it if it is
+	 * not cached yet.
+	 *
+	 * @param sql
+	 *            The SQL to prepare
+	 * @return An open statement, with its parameters cleared
+	 * @throws SQLException
+	 *             If the SQL cannot be prepared
+	 */
+	PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement statement = statements.get(sql);
+		if (statement != null && !statement.isClosed()) {
+			HITS.incrementAndGet();
+			statement.clearParameters();
+			return statement;
+		}
+		MISSES.incrementAndGet();
+		statement = conn.prepareStatement(sql);
+		statements.put(sql, statement);
+		return statement;
+	}
+
+	/**
+	 * Closes all cached statements.
+	 */
+	void clear() {
+		for (PreparedStatement statement : statements.values()) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+			}
+		}
+		statements.clear();
+	}
+
+	/**
+	 * @return The amount of statements served from a cache
+	 */
+	public static long getHits() {
+		return HITS.get();
+	}
+
+	/**
+	 * @return The amount of statements which had to be prepared
+	 */
+	public static long getMisses() {
+		return MISSES.get();
+	}
+
+	/**
+	 * @return The amount of statements closed to make room for others
+	 */
+	public static long getEvictions() {
+		return EVICTIONS.get();
+	}
+
+	/**
+	 * Summarises the hit, miss and eviction counts of all statement caches.
+	 */
+	public static String statistics() {
+		return "StatementCache[hits=" + getHits() + ", misses=" + getMisses()
+				+ ", evictions=" + getEvictions() + "]";
+	}
+}
@@ -0,0 +1,86 @@
+package db;
+
+import global.Logger;
+import global.PiCloudConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Selects where users and file descriptors are stored.<br>
+ * By default this is the PostgreSQL database; start with
+ * <code>-Dpicloud.storage=embedded</code> to keep everything in a journal
+ * file in the working directory instead (see
+ * <code>PiCloudConstants.EMBEDDED_STORAGE_FILE</code>), which needs no
+ * database server.
+ *
+ * @author Dennis
+ *
+ */
+public final class Storage {
+
+	private static final UserRepository USERS;
+	private static final FileRepository FILES;
+
+	static {
+		if ("embedded".equals(PiCloudConstants.STORAGE_BACKEND)) {
+			EmbeddedRepository embedded = null;
+			try {
+				embedded = EmbeddedRepository.open(new File(
+						PiCloudConstants.EMBEDDED_STORAGE_FILE));
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+			USERS = embedded;
+			FILES = embedded;
+			Runtime.getRuntime().addShutdownHook(
+					new Thread(embedded::close, "Storage-Cleanup"));
+		} else {
+			USERS = new PostgresUserRepository();
+			FILES = new PostgresFileRepository();
+		}
+	}
+
+	private Storage() {
+	}
+
+	/**
+	 * Triggers the static initialisation, and connects to the database if it
+	 * is used.
+	 */
+	public static void init() {
+		Logger.log("Using " + PiCloudConstants.STORAGE_BACKEND + " storage.");
+		if (!isEmbedded())
+			DatabaseManager.init();
+		try {
+			FileStatementMaker.load();
+		} catch (SQLException e) {
+			// Not fatal: it is retried when the data is first needed.
+			Logger.logError("Could not load file metadata: " + e);
+		}
+	}
+
+	/**
+	 * @return true if the data is kept in memory by the embedded store, so
+	 *         there is no point in caching it
+	 */
+	static boolean isEmbedded() {
+		return USERS instanceof EmbeddedRepository;
+	}
+
+	/**
+	 * @return The storage for user accounts
+	 */
+	static UserRepository users() {
+		return USERS;
+	}
+
+	/**
+	 * @return The storage for file descriptors
+	 */
+	static FileRepository files() {
+		return FILES;
+	}
+}
@@ -7,6 +7,9 @@ import java.util.Arrays;
 import java.util.List;
 
 /**
+ * Untyped row container, kept for compatibility. New queries should map
+ * their rows directly with a <code>RowMapper</code> or
+ * <code>IntRowMapper</code>.
  * 
  * @author Dennis (Copied from Data & Informatie project - di07)
  *
@@ -28,34 +31,33 @@ public final class Tuple {
 	}
 
 	/**
-	 * Boxes the names of primitive types
+	 * Boxes primitive types
 	 * 
-	 * @param i
-	 *            The name of an arbitrary class
-	 * @return The boxed variant of the supplied name if it exists, or the name
-	 *         itself otherwise
+	 * @param c
+	 *            An arbitrary class
+	 * @return The boxed variant of the supplied class if it is primitive, or
+	 *         the class itself otherwise
 	 */
-	private static String box(String i) {
-		switch (i) {
-		case "int":
-			return "Integer";
-		case "boolean":
-			return "Boolean";
-		case "char":
-			return "Character";
-		case "long":
-			return "Long";
-		case "short":
-			return "Short";
-		case "byte":
-			return "Byte";
-		case "float":
-			return "Float";
-		case "double":
-			return "Double";
-		default:
-			return i;
-		}
+	private static Class<?> box(Class<?> c) {
+		if (!c.isPrimitive())
+			return c;
+		if (c == int.class)
+			return Integer.class;
+		if (c == boolean.class)
+			return Boolean.class;
+		if (c == char.class)
+			return Character.class;
+		if (c == long.class)
+			return Long.class;
+		if (c == short.class)
+			return Short.class;
+		if (c == byte.class)
+			return Byte.class;
+		if (c == float.class)
+			return Float.class;
+		if (c == double.class)
+			return Double.class;
+		return c;
 	}
 
 	/**
@@ -124,15 +126,11 @@ public final class Tuple {
 		for (int i = 0; i < size; i++) {
 			if (items[i] == null)
 				continue;
-			String inTuple = box(items[i].getClass().toString()
-					.replaceAll("java.lang.", "").replaceAll("class", "")
-					.replaceAll(" ", ""));
-			String inClass = box(classes[i].toString()
-					.replaceAll("java.lang.", "").replaceAll("class", "")
-					.replaceAll(" ", ""));
-			if (!inTuple.equalsIgnoreCase(inClass)
-					&& !(items[i].getClass().isAssignableFrom(classes[i]) || classes[i]
-							.isAssignableFrom(items[i].getClass())))
+			Class<?> inTuple = items[i].getClass();
+			Class<?> inClass = box(classes[i]);
+			if (inTuple != inClass
+					&& !(inTuple.isAssignableFrom(inClass) || inClass
+							.isAssignableFrom(inTuple)))
 				return false;
 		}
 		return true;
@@ -185,7 +183,7 @@ public final class Tuple {
 	/**
 	 * Generates an array of <code>Tuple</code>s from the given
 	 * <code>ResultSet</code>.<br>
-	 * Also calls <code>DatabaseMaker.clean(ResultSet)</code>.
+	 * Also calls <code>DatabaseManager.clean(ResultSet)</code>.
 	 * 
 	 * @param in
 	 *            An untouched <code>ResultSet</code> (such that
@@ -0,0 +1,49 @@
+package db;
+
+/**
+ * The storage used by a single user: the total size and the amount of their
+ * files.
+ *
+ * @author Dennis
+ *
+ */
+public final class Usage {
+
+	/**
+	 * The usage of a user without files.
+	 */
+	public static final Usage NONE = new Usage(0, 0);
+
+	private final long bytes;
+	private final int files;
+
+	public Usage(long bytes, int files) {
+		this.bytes = bytes;
+		this.files = files;
+	}
+
+	/**
+	 * @return The total size of the user's files
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return The amount of files the user owns
+	 */
+	public int getFiles() {
+		return files;
+	}
+
+	/**
+	 * @return The sum of this usage and another
+	 */
+	public Usage plus(Usage other) {
+		return new Usage(bytes + other.bytes, files + other.files);
+	}
+
+	public String toString() {
+		return "Usage:[" + bytes + " bytes, " + files + " files]";
+	}
+}
@@ -0,0 +1,87 @@
+package db;
+
+import global.Logger;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import files.FileDescriptor;
+
+/**
+ * Keeps the storage usage of every user up to date, so it never has to be
+ * computed from all of their files.<br>
+ * The totals are loaded with a single aggregate query the first time they are
+ * needed, and from then on adjusted whenever <code>FileStatementMaker</code>
+ * stores or deletes descriptors. <code>load()</code> must be called before
+ * every change, so no change can happen between loading and tracking.
+ *
+ * @author Dennis
+ *
+ */
+final class UsageCounters {
+
+	private final Map<Integer, Usage> usage = new ConcurrentHashMap<>();
+	private volatile boolean loaded = false;
+
+	/**
+	 * Loads the totals from storage, unless this was done already.
+	 *
+	 * @throws SQLException
+	 *             If the totals cannot be loaded
+	 */
+	void load() throws SQLException {
+		if (loaded)
+			return;
+		synchronized (this) {
+			if (loaded)
+				return;
+			usage.putAll(Storage.files().getUsage());
+			loaded = true;
+			Logger.log("Loaded storage usage of " + usage.size() + " users.");
+		}
+	}
+
+	/**
+	 * @return The current usage of this user
+	 */
+	Usage get(int owner) throws SQLException {
+		load();
+		return usage.getOrDefault(owner, Usage.NONE);
+	}
+
+	/**
+	 * Must be called after a descriptor was stored.
+	 */
+	void added(FileDescriptor fd) {
+		usage.merge(fd.getOwner(), new Usage(fd.getSize(), 1), Usage::plus);
+	}
+
+	/**
+	 * Must be called after descriptors were stored.
+	 */
+	void added(Collection<FileDescriptor> fds) {
+		fds.forEach(this::added);
+	}
+
+	/**
+	 * Must be called after a descriptor was deleted.
+	 *
+	 * @param fd
+	 *            The descriptor as it was stored, with its stored size
+	 */
+	void deleted(FileDescriptor fd) {
+		usage.computeIfPresent(fd.getOwner(), (owner, current) -> {
+			Usage left = current.plus(new Usage(-fd.getSize(), -1));
+			return left.getFiles() > 0 ? left : null;
+		});
+	}
+
+	/**
+	 * Must be called after descriptors were deleted.
+	 */
+	void deleted(Collection<FileDescriptor> fds) {
+		fds.forEach(this::deleted);
+	}
+}
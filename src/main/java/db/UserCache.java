@@ -0,0 +1,185 @@
+package db;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache of the user directory: name to id, id to name and the
+ * list of all user names.<br>
+ * Entries never go stale on their own, since users are only created and
+ * deleted through <code>UserStatementMaker</code>, which invalidates this
+ * cache when it does so. Lookups do not lock; changes are made under the
+ * cache's lock, and keep both directions in step.<br>
+ * A value read from the database before a user was created or deleted may be
+ * outdated by the time it is cached. Callers therefore take the
+ * <code>generation()</code> before they query the database, and values from
+ * an older generation are not cached.
+ *
+ * @author Dennis
+ *
+ */
+public final class UserCache {
+
+	private static final AtomicLong HITS = new AtomicLong();
+	private static final AtomicLong MISSES = new AtomicLong();
+	private static final AtomicLong EVICTIONS = new AtomicLong();
+
+	private final int capacity;
+	private final Map<String, Integer> ids;
+	private final Map<Integer, String> names;
+	private volatile List<String> userNames;
+	private volatile long generation = 0;
+
+	/**
+	 * @param capacity
+	 *            The maximum amount of users to remember
+	 */
+	UserCache(int capacity) {
+		this.capacity = capacity;
+		ids = new ConcurrentHashMap<>();
+		names = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * @return The cached id of this user, or null if it is not cached
+	 */
+	Integer getId(String name) {
+		return count(ids.get(name));
+	}
+
+	/**
+	 * @return The cached name of this user, or null if it is not cached
+	 */
+	String getName(int id) {
+		return count(names.get(id));
+	}
+
+	/**
+	 * @return The cached list of all user names, or null if it is not cached
+	 */
+	List<String> getUserNames() {
+		return count(userNames);
+	}
+
+	/**
+	 * @return The current generation, which changes whenever a user is
+	 *         created or deleted
+	 */
+	long generation() {
+		return generation;
+	}
+
+	/**
+	 * Remembers the name and id of a user, unless a user was created or
+	 * deleted since <code>generation</code>.
+	 */
+	synchronized void put(String name, int id, long generation) {
+		if (generation != this.generation)
+			return;
+		evict();
+		ids.put(name, id);
+		names.put(id, name);
+	}
+
+	/**
+	 * Remembers the list of all user names, unless a user was created or
+	 * deleted since <code>generation</code>.
+	 * 
+	 * @return The unmodifiable list
+	 */
+	synchronized List<String> putUserNames(List<String> userNames,
+			long generation) {
+		List<String> cached = Collections.unmodifiableList(userNames);
+		if (generation == this.generation)
+			this.userNames = cached;
+		return cached;
+	}
+
+	/**
+	 * Must be called when a user is created.
+	 */
+	synchronized void created(String name, int id) {
+		generation++;
+		userNames = null;
+		put(name, id, generation);
+	}
+
+	/**
+	 * Must be called when a user is deleted.
+	 */
+	synchronized void deleted(int id) {
+		generation++;
+		userNames = null;
+		names.remove(id);
+		// Also catches a name whose id was evicted on its own.
+		ids.values().removeIf(v -> v == id);
+	}
+
+	/**
+	 * Forgets everything.
+	 */
+	synchronized void clear() {
+		generation++;
+		userNames = null;
+		ids.clear();
+		names.clear();
+	}
+
+	private <T> T count(T cached) {
+		if (cached == null)
+			MISSES.incrementAndGet();
+		else
+			HITS.incrementAndGet();
+		return cached;
+	}
+
+	/**
+	 * Makes room for one more user by dropping an arbitrary one, in both
+	 * directions, if the cache is full.
+	 */
+	private void evict() {
+		if (names.size() < capacity)
+			return;
+		Iterator<Entry<Integer, String>> it = names.entrySet().iterator();
+		if (it.hasNext()) {
+			Entry<Integer, String> e = it.next();
+			it.remove();
+			ids.remove(e.getValue(), e.getKey());
+			EVICTIONS.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return The amount of lookups answered from the cache
+	 */
+	public static long getHits() {
+		return HITS.get();
+	}
+
+	/**
+	 * @return The amount of lookups that had to go to the database
+	 */
+	public static long getMisses() {
+		return MISSES.get();
+	}
+
+	/**
+	 * @return The amount of entries dropped to stay within capacity
+	 */
+	public static long getEvictions() {
+		return EVICTIONS.get();
+	}
+
+	/**
+	 * Summarises the hit, miss and eviction counts.
+	 */
+	public static String statistics() {
+		return "UserCache[hits=" + getHits() + ", misses=" + getMisses()
+				+ ", evictions=" + getEvictions() + "]";
+	}
+}
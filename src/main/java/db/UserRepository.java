@@ -0,0 +1,79 @@
+package db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Stores user accounts. Implementations do no caching or hashing of their
+ * own; <code>UserStatementMaker</code> takes care of that.
+ * 
+ * @author Dennis
+ *
+ */
+public interface UserRepository {
+
+	/**
+	 * Returned by the id lookups when there is no matching user.
+	 */
+	int NO_USER = Integer.MIN_VALUE;
+
+	/**
+	 * @return The id of the user with this name, or <code>NO_USER</code>
+	 */
+	int findId(String name) throws SQLException;
+
+	/**
+	 * @return The name of the user with this id, or null
+	 */
+	String findName(int id) throws SQLException;
+
+	/**
+	 * @return All columns of the user with this id (id, pass, salt, name),
+	 *         detached from the storage; empty if there is no such user
+	 */
+	ResultSet getUserData(int id) throws SQLException;
+
+	/**
+	 * @return The salted and hashed password of the user with this id, or
+	 *         null
+	 */
+	byte[] getPass(int id) throws SQLException;
+
+	/**
+	 * @return The salt of the user with this id, or null
+	 */
+	byte[] getSalt(int id) throws SQLException;
+
+	/**
+	 * @return The salted and hashed password and the salt of the user with
+	 *         this name, or null
+	 */
+	Credentials getCredentials(String name) throws SQLException;
+
+	/**
+	 * Stores a new user.
+	 * 
+	 * @param name
+	 *            The user's name
+	 * @param pass
+	 *            The salted and hashed password
+	 * @param salt
+	 *            The salt
+	 * @return The new user's id
+	 * @throws IllegalArgumentException
+	 *             If there already is a user with this name
+	 */
+	int createAccount(String name, byte[] pass, byte[] salt)
+			throws SQLException;
+
+	/**
+	 * @return true if a user was deleted
+	 */
+	boolean deleteAccount(int id) throws SQLException;
+
+	/**
+	 * @return The names of all users
+	 */
+	List<String> getUserNames() throws SQLException;
+}
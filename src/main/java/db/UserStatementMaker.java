@@ -1,17 +1,16 @@
 package db;
 
-import java.security.SecureRandom;
-import java.sql.PreparedStatement;
+import global.PiCloudConstants;
+
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
-
-import org.bouncycastle.crypto.digests.SHA3Digest;
 
 public class UserStatementMaker {
 
+	private static final UserCache CACHE = new UserCache(
+			PiCloudConstants.USER_CACHE_SIZE);
+
 	/**
 	 * Gets the ID of a user with the given name.
 	 * 
@@ -25,21 +24,48 @@ public class UserStatementMaker {
 	 */
 	public static int getId(String name) throws SQLException,
 			UnknownUserException {
-		PreparedStatement statement = DatabaseManager
-				.prepare("SELECT id FROM \"Users\" WHERE \"name\" = ?;");
-		statement.setString(1, name);
-		ResultSet result = statement.executeQuery();
-		DatabaseManager.registerResult(result, statement);
-		Tuple[] tuples = Tuple.fromResultSet(result);
-		if (tuples.length > 0)
-			return (int) tuples[0].getItem(0);
+		Integer cached = CACHE.getId(name);
+		if (cached != null)
+			return cached;
+		long generation = CACHE.generation();
+		int id = Storage.users().findId(name);
+		if (id != UserRepository.NO_USER) {
+			CACHE.put(name, id, generation);
+			return id;
+		}
 		throw new UnknownUserException("For Name: " + name);
 	}
 
+	/**
+	 * Gets the name of the user with the given ID.
+	 * 
+	 * @param id
+	 *            The id to find the name for
+	 * @return The name corresponding to the id
+	 * @throws SQLException
+	 *             If the generated statements cannot be executed
+	 * @throws UnknownUserException
+	 *             If there is no user with this id
+	 */
+	public static String getName(int id) throws SQLException,
+			UnknownUserException {
+		String name = CACHE.getName(id);
+		if (name != null)
+			return name;
+		long generation = CACHE.generation();
+		name = Storage.users().findName(id);
+		if (name != null) {
+			CACHE.put(name, id, generation);
+			return name;
+		}
+		throw new UnknownUserException("For ID: " + id);
+	}
+
 	/**
 	 * Gets all data information about the user corresponding to id.<br>
-	 * <b>Do not forget to call DatabaseManager.clean() on the result!</b>
-	 * Tuple.fromResultSet() will also do this.
+	 * The result is detached from the database, so no connection is held
+	 * while it is open. DatabaseManager.clean() or Tuple.fromResultSet()
+	 * will close it.
 	 * 
 	 * @param id
 	 *            The user's id
@@ -49,12 +75,7 @@ public class UserStatementMaker {
 	 *             If the generated statements cannot be executed
 	 */
 	public static ResultSet getUserData(int id) throws SQLException {
-		PreparedStatement statement = DatabaseManager
-				.prepare("SELECT * FROM \"Users\" WHERE \"id\" = ?;");
-		statement.setInt(1, id);
-		ResultSet result = statement.executeQuery();
-		DatabaseManager.registerResult(result, statement);
-		return result;
+		return Storage.users().getUserData(id);
 	}
 
 	/**
@@ -70,14 +91,9 @@ public class UserStatementMaker {
 	 */
 	public static byte[] getPass(int id) throws SQLException,
 			UnknownUserException {
-		PreparedStatement statement = DatabaseManager
-				.prepare("SELECT \"pass\" FROM \"Users\" WHERE \"id\" = ?;");
-		statement.setInt(1, id);
-		ResultSet result = statement.executeQuery();
-		DatabaseManager.registerResult(result, statement);
-		Tuple[] tuples = Tuple.fromResultSet(result);
-		if (tuples.length > 0)
-			return (byte[]) tuples[0].getItem(0);
+		byte[] pass = Storage.users().getPass(id);
+		if (pass != null)
+			return pass;
 		throw new UnknownUserException("For ID: " + id);
 	}
 
@@ -96,22 +112,51 @@ public class UserStatementMaker {
 	 */
 	public static byte[] saltPass(int id, byte[] pass) throws SQLException,
 			UnknownUserException {
-		PreparedStatement statement = DatabaseManager
-				.prepare("SELECT \"salt\" FROM \"Users\" WHERE \"id\" = ?;");
-		statement.setInt(1, id);
-		ResultSet result = statement.executeQuery();
-		DatabaseManager.registerResult(result, statement);
-		Tuple[] tuples = Tuple.fromResultSet(result);
-		if (tuples.length > 0) {
-			byte[] salt = (byte[]) tuples[0].getItem(0);
-			byte[] salted = new byte[pass.length + salt.length];
-			System.arraycopy(pass, 0, salted, 0, pass.length);
-			System.arraycopy(salt, 0, salted, pass.length, salt.length);
-			return hash(salted);
-		}
+		byte[] salt = Storage.users().getSalt(id);
+		if (salt != null)
+			return PasswordHasher.hash(pass, salt);
 		throw new UnknownUserException("For Id: " + id);
 	}
 
+	/**
+	 * Checks a user's password. The user's salt and stored hash are fetched
+	 * in a single query, and the supplied password is salted, hashed
+	 * and compared in memory, on the calling thread.
+	 * 
+	 * @param name
+	 *            The user's name
+	 * @param pass
+	 *            The password to check
+	 * @return true if the password is correct
+	 * @throws SQLException
+	 *             If the generated statements cannot be executed
+	 * @throws UnknownUserException
+	 *             If there is no user with this name
+	 */
+	public static boolean checkPassword(String name, byte[] pass)
+			throws SQLException, UnknownUserException {
+		return PasswordHasher.verify(pass, getCredentials(name));
+	}
+
+	/**
+	 * Gets the stored hash and salt of a user, to check a password against.
+	 * 
+	 * @param name
+	 *            The user's name
+	 * @return The user's credentials
+	 * @throws SQLException
+	 *             If the generated statements cannot be executed
+	 * @throws UnknownUserException
+	 *             If there is no user with this name
+	 */
+	static Credentials getCredentials(String name) throws SQLException,
+			UnknownUserException {
+		Credentials credentials = Storage.users().getCredentials(name);
+		if (credentials == null)
+			throw new UnknownUserException("For Name: " + name);
+		return credentials;
+	}
+
 	/**
 	 * Convenience method to get a password:
 	 * <code>return getPass(getId(name));</code>
@@ -139,95 +184,57 @@ public class UserStatementMaker {
 	 * @throws SQLException
 	 */
 	public static boolean deleteAccount(int id) throws SQLException {
-		PreparedStatement statement = DatabaseManager
-				.prepare("DELETE FROM \"Users\" WHERE \"id\" = ?;");
-		statement.setInt(1, id);
-		boolean result = statement.executeUpdate() > 0;
-		statement.close();
-		return result;
-	}
-
-	public static int createAccount(String name, byte[] pass)
-			throws SQLException {
-		PreparedStatement checkStatement = DatabaseManager
-				.prepare("SELECT * FROM \"Users\" WHERE \"name\" = ?;");
-		checkStatement.setString(1, name);
-		ResultSet checkResult = checkStatement.executeQuery();
-		DatabaseManager.registerResult(checkResult, checkStatement);
-		Tuple[] checkTuples = Tuple.fromResultSet(checkResult);
-		if (checkTuples.length != 0)
-			throw new IllegalArgumentException(
-					"A user with this name already exists!");
-		DatabaseManager.clean(checkResult);
-
-		byte[] salt = generateSalt();
-
-		PreparedStatement statement = DatabaseManager
-				.prepare("INSERT INTO \"Users\" (\"id\", \"name\", \"pass\", \"salt\")"
-						+ " VALUES (?, ?, ?, ?);");
-
-		byte[] salted = new byte[512];
-		byte[] raw = new byte[pass.length + salt.length];
-		System.arraycopy(pass, 0, raw, 0, pass.length);
-		System.arraycopy(salt, 0, raw, pass.length, salt.length);
-		SHA3Digest sha3 = new SHA3Digest(512);
-		sha3.update(raw, 0, raw.length);
-		sha3.doFinal(salted, 0);
-
-		statement.setInt(1, getNextId());
-		statement.setString(2, name);
-		statement.setBytes(3, salted);
-		statement.setBytes(4, salt);
-
-		if (statement.executeUpdate() <= 0)
-			throw new RuntimeException(
-					"Create Account statement failed to create new account!");
-
-		statement.close();
 		try {
-			return getId(name);
-		} catch (UnknownUserException e) {
-			throw new RuntimeException(
-					"Create Account statement failed to create account!");
+			return Storage.users().deleteAccount(id);
+		} finally {
+			CACHE.deleted(id);
 		}
 	}
 
-	public static List<String> getUserNameList() throws SQLException {
-		PreparedStatement statement = DatabaseManager.prepare("SELECT \"name\" FROM \"Users\";");
-		ResultSet result = statement.executeQuery();
-		DatabaseManager.registerResult(result, statement);
-		Tuple[] tuples = Tuple.fromResultSet(result);
-		List<String> names = new ArrayList<>();
-		for (Tuple t : tuples) {
-			names.add((String) t.getItem(0));
-		}
-		return names;
-	}
-	
-	private static final int getNextId() throws SQLException {
-		PreparedStatement statement = DatabaseManager
-				.prepare("SELECT MAX(\"id\") FROM \"Users\";");
-		ResultSet result = statement.executeQuery();
-		DatabaseManager.registerResult(result, statement);
-		Tuple[] tuples = Tuple.fromResultSet(result);
-		if (tuples.length > 0)
-			return (int) tuples[0].getItem(0) + 1;
-		throw new Error("User database is empty!");
+	/**
+	 * Creates a new account, hashing the password on the calling thread.
+	 * 
+	 * @param name
+	 *            The new user's name
+	 * @param pass
+	 *            The new user's password
+	 * @return The new user's id
+	 * @throws SQLException
+	 *             If the generated statements cannot be executed
+	 * @throws IllegalArgumentException
+	 *             If a user with this name already exists
+	 */
+	public static int createAccount(String name, byte[] pass)
+			throws SQLException {
+		byte[] salt = PasswordHasher.generateSalt();
+		return storeAccount(name, PasswordHasher.hash(pass, salt), salt);
 	}
 
-	private static final byte[] hash(byte[] in) {
-		SHA3Digest sha3 = new SHA3Digest(512);
-		byte[] out = new byte[512];
-		sha3.update(in, 0, in.length);
-		sha3.doFinal(out, 0);
-		return out;
+	/**
+	 * Creates a new account with an already hashed password.
+	 * 
+	 * @see #createAccount(String, byte[])
+	 */
+	static int storeAccount(String name, byte[] hashed, byte[] salt)
+			throws SQLException {
+		int id = Storage.users().createAccount(name, hashed, salt);
+		CACHE.created(name, id);
+		return id;
 	}
 
-	private static final byte[] generateSalt() {
-		byte[] salt = new byte[256];
-		SecureRandom sr = new SecureRandom();
-		sr.setSeed(new Random().nextLong());
-		sr.nextBytes(salt);
-		return salt;
+	/**
+	 * Gets the names of all users. The list is cached until a user is created
+	 * or deleted.
+	 * 
+	 * @return An unmodifiable list of all user names
+	 * @throws SQLException
+	 *             If the generated statements cannot be executed
+	 */
+	public static List<String> getUserNameList() throws SQLException {
+		List<String> names = CACHE.getUserNames();
+		if (names != null)
+			return names;
+		long generation = CACHE.generation();
+		return CACHE.putUserNames(Storage.users().getUserNames(), generation);
 	}
 }
\ No newline at end of file
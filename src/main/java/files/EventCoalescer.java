@@ -0,0 +1,181 @@
+package files;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import files.FolderMonitor.Event;
+
+import java.io.File;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Merges the events for each file until the file has been quiet for a
+ * while, and hands them out in batches.<br>
+ * An event is held until no new event for its file arrived for
+ * <code>window</code> milliseconds, or until it is <code>maxDelay</code>
+ * milliseconds old, whichever comes first. Events for the same file are
+ * merged in the meantime:
+ * <ul>
+ * <li>CREATE followed by MODIFY stays a CREATE</li>
+ * <li>anything followed by DELETE becomes a DELETE</li>
+ * <li>DELETE or MODIFY followed by CREATE becomes a MODIFY, as the file was
+ * replaced</li>
+ * </ul>
+ * A CREATE followed by a DELETE is not dropped: a CREATE does not prove the
+ * file is new, as moving a file over an existing one is reported as a
+ * CREATE as well. Deleting a file that was never known costs little, while
+ * dropping the DELETE of a known file would leave its chunks and descriptor
+ * behind.
+ *
+ * @author Dennis
+ *
+ */
+final class EventCoalescer {
+
+	private static final AtomicLong RECEIVED = new AtomicLong();
+	private static final AtomicLong EMITTED = new AtomicLong();
+
+	private final long window, maxDelay;
+	private final int batchSize;
+	private final Map<File, Pending> pending = new LinkedHashMap<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+
+	/**
+	 * @param window
+	 *            How long a file must be quiet before its event is handed out
+	 *            (ms)
+	 * @param maxDelay
+	 *            How long an event may be held at most (ms)
+	 * @param batchSize
+	 *            The maximum amount of events per batch
+	 */
+	EventCoalescer(long window, long maxDelay, int batchSize) {
+		this.window = TimeUnit.MILLISECONDS.toNanos(window);
+		this.maxDelay = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Adds an event, merging it with the pending event for the same file.
+	 */
+	void add(Event event) {
+		RECEIVED.incrementAndGet();
+		long now = System.nanoTime();
+		lock.lock();
+		try {
+			Pending p = pending.get(event.getFile());
+			if (p == null) {
+				pending.put(event.getFile(), new Pending(event, now));
+				changed.signal();
+				return;
+			}
+			WatchEvent.Kind<?> merged = merge(p.event.getType(),
+					event.getType());
+			p.event = merged == p.event.getType() ? p.event : event
+					.withType(merged);
+			p.last = now;
+			p.merged++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until at least one event is due, and takes all due events, in
+	 * the order their files were first seen.
+	 *
+	 * @return Between 1 and <code>batchSize</code> events
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting
+	 */
+	List<Event> take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (true) {
+				long now = System.nanoTime();
+				long wait = Long.MAX_VALUE;
+				List<Event> batch = new ArrayList<>();
+				Iterator<Pending> it = pending.values().iterator();
+				while (it.hasNext() && batch.size() < batchSize) {
+					Pending p = it.next();
+					long due = p.due(window, maxDelay) - now;
+					if (due <= 0) {
+						batch.add(p.event);
+						it.remove();
+					} else
+						wait = Math.min(wait, due);
+				}
+				if (!batch.isEmpty()) {
+					EMITTED.addAndGet(batch.size());
+					return batch;
+				}
+				if (wait == Long.MAX_VALUE)
+					changed.await();
+				else
+					changed.awaitNanos(wait);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The amount of events waiting to be handed out
+	 */
+	int size() {
+		lock.lock();
+		try {
+			return pending.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Merges the type of a pending event with the type of a newer event.
+	 */
+	private static WatchEvent.Kind<?> merge(WatchEvent.Kind<?> older,
+			WatchEvent.Kind<?> newer) {
+		if (newer == ENTRY_DELETE)
+			return ENTRY_DELETE;
+		return older == ENTRY_CREATE ? ENTRY_CREATE : ENTRY_MODIFY;
+	}
+
+	/**
+	 * Summarises how many events were merged away.
+	 */
+	static String statistics() {
+		return "EventCoalescer[received=" + RECEIVED.get() + ", emitted="
+				+ EMITTED.get() + "]";
+	}
+
+	/**
+	 * The merged event of a single file.
+	 */
+	private static final class Pending {
+		private Event event;
+		private final long first;
+		private long last;
+		private long merged = 0;
+
+		private Pending(Event event, long now) {
+			this.event = event;
+			first = now;
+			last = now;
+		}
+
+		private long due(long window, long maxDelay) {
+			return Math.min(last + window, first + maxDelay);
+		}
+	}
+}
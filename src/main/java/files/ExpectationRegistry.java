@@ -0,0 +1,123 @@
+package files;
+
+import files.pipeline.EncryptionPipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The files the <code>FileSystemManager</code> expects to appear, by
+ * canonical path.<br>
+ * Each expectation can be consumed once for every time it was registered.
+ * Expectations that are not consumed within <code>timeout</code> ms are
+ * dropped, so a file that never arrives is not ignored forever.<br>
+ * Looking up a file that is not expected, which is by far the most common
+ * case, does not take any locks.
+ *
+ * @author Dennis
+ *
+ */
+final class ExpectationRegistry implements EncryptionPipeline.Expectations {
+
+	private final Map<String, Expectation> expected = new ConcurrentHashMap<>();
+	private final long timeout;
+	private final AtomicLong nextPurge;
+
+	/**
+	 * @param timeout
+	 *            How long an expectation is kept (ms)
+	 */
+	ExpectationRegistry(long timeout) {
+		this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+		nextPurge = new AtomicLong(System.nanoTime() + this.timeout);
+	}
+
+	/**
+	 * Registers that a file is expected to appear.
+	 */
+	@Override
+	public void expect(File file) {
+		long now = System.nanoTime();
+		long deadline = now + timeout;
+		expected.merge(key(file), new Expectation(1, deadline),
+				(old, one) -> new Expectation(old.expired(now) ? 1
+						: old.count + 1, deadline));
+		purge(now);
+	}
+
+	/**
+	 * Consumes an expectation for a file.
+	 *
+	 * @return true if the file was expected, false otherwise
+	 */
+	boolean consume(File file) {
+		String key = key(file);
+		if (!expected.containsKey(key))
+			return false;
+		long now = System.nanoTime();
+		boolean[] found = new boolean[1];
+		expected.computeIfPresent(key, (k, e) -> {
+			if (e.expired(now))
+				return null;
+			found[0] = true;
+			return e.count == 1 ? null : new Expectation(e.count - 1,
+					e.deadline);
+		});
+		return found[0];
+	}
+
+	/**
+	 * Takes back one expectation for a file, as it will not appear after
+	 * all.
+	 */
+	@Override
+	public void withdraw(File file) {
+		consume(file);
+	}
+
+	/**
+	 * @return The amount of files expected
+	 */
+	int size() {
+		return expected.size();
+	}
+
+	/**
+	 * Drops all expired expectations, at most once per timeout.
+	 */
+	private void purge(long now) {
+		long next = nextPurge.get();
+		if (now - next < 0 || !nextPurge.compareAndSet(next, now + timeout))
+			return;
+		expected.values().removeIf(e -> e.expired(now));
+	}
+
+	private static String key(File file) {
+		try {
+			return file.getCanonicalPath();
+		} catch (IOException e) {
+			return file.getAbsolutePath();
+		}
+	}
+
+	/**
+	 * Small bean for the expectations of a single file.
+	 */
+	private static final class Expectation {
+		private final int count;
+		private final long deadline;
+
+		private Expectation(int count, long deadline) {
+			this.count = count;
+			this.deadline = deadline;
+		}
+
+		private boolean expired(long now) {
+			return now - deadline > 0;
+		}
+	}
+}
@@ -1,23 +1,21 @@
 package files;
 
 import files.FolderMonitor.Event;
+import files.pipeline.EncryptionPipeline;
 import global.Logger;
 import global.PiCloudConstants;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.StandardWatchEventKinds;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
-import java.util.Optional;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.stream.Stream;
 
 import soc.model.FileMessage;
 
-public class FileSystemManager implements Observer, Runnable {
+public class FileSystemManager implements Observer, Runnable,
+		EncryptionPipeline.Listener {
 
 	public static final FileSystemManager INSTANCE;
 	private static final Thread THREAD;
@@ -29,16 +27,28 @@ public class FileSystemManager implements Observer, Runnable {
 		INSTANCE = new FileSystemManager();
 		THREAD = new Thread(INSTANCE);
 		THREAD.setName("FileSystemManager");
-		FolderMonitor.MONITORS.forEach(m -> m.addObserver(INSTANCE));
+		FolderMonitor.MONITORS.values().forEach(m -> {
+			TemporaryFile.removeStale(m.basePath);
+			observe(m);
+		});
 		THREAD.start();
 	}
 
-	private BlockingQueue<FolderMonitor> updatedMonitors;
-	private volatile Set<FileMessage> encryptedMessages, decryptedMessages;
+	private EventCoalescer events;
+	private final ExpectationRegistry expected;
+	private final EncryptionPipeline pipeline;
 
 	public static void register(String user) {
-		FolderMonitor.registerNewDirectory(user);
-		FolderMonitor.MONITORS.forEach(m -> m.addObserver(INSTANCE));
+		observe(FolderMonitor.registerNewDirectory(user));
+	}
+
+	/**
+	 * Starts observing a monitor, and takes the events it received before,
+	 * such as those found by its first reconciliation.
+	 */
+	private static void observe(FolderMonitor monitor) {
+		monitor.addObserver(INSTANCE);
+		INSTANCE.update(monitor, null);
 	}
 
 	public static void stop() {
@@ -46,19 +56,52 @@ public class FileSystemManager implements Observer, Runnable {
 		// Because the thread is probably blocked by the queue
 		THREAD.interrupt();
 		FolderMonitor.stopMonitors();
+		Logger.log(EventCoalescer.statistics());
 		try {
 			THREAD.join();
 		} catch (InterruptedException e) {
 			Logger.logError(e);
 		}
+		if (INSTANCE.pipeline != null) {
+			INSTANCE.pipeline.shutdown(PiCloudConstants.PIPELINE_SHUTDOWN_TIMEOUT);
+			Logger.log(INSTANCE.pipeline.statistics());
+		}
 		
 		//Remove leftover temporary files
 		TemporaryFile.cleanTemporaryFiles();
 	}
 
+	/**
+	 * Moves all new events of the monitor to the coalescer. Expected events
+	 * are dropped right away, so they cannot be merged with changes the user
+	 * makes to the same file.
+	 */
 	@Override
 	public void update(Observable monitor, Object ignored) {
-		updatedMonitors.offer((FolderMonitor) monitor);
+		Event event;
+		while ((event = ((FolderMonitor) monitor).poll()) != null)
+			if (!wasExpected(event.getFile()))
+				events.add(event);
+	}
+
+	/**
+	 * Records an encrypted file in the snapshot of its user's tree.
+	 */
+	@Override
+	public void encrypted(File file, String user, long size, long modified) {
+		FolderMonitor monitor = FolderMonitor.MONITORS.get(user);
+		if (monitor != null)
+			monitor.encrypted(file, size, modified);
+	}
+
+	/**
+	 * Removes a deleted file from the snapshot of its user's tree.
+	 */
+	@Override
+	public void removed(File file, String user) {
+		FolderMonitor monitor = FolderMonitor.MONITORS.get(user);
+		if (monitor != null)
+			monitor.removed(file);
 	}
 
 	/**
@@ -69,8 +112,8 @@ public class FileSystemManager implements Observer, Runnable {
 	 * @param msg
 	 *            A FileMessage containing the file to expect.
 	 */
-	public static synchronized void expectDecrypted(FileMessage msg) {
-		INSTANCE.decryptedMessages.add(msg);
+	public static void expectDecrypted(FileMessage msg) {
+		INSTANCE.expected.expect(msg.getFile());
 	}
 
 	/**
@@ -81,74 +124,103 @@ public class FileSystemManager implements Observer, Runnable {
 	 * @param msg
 	 *            A FileMessage containing the file to expect.
 	 */
-	public static synchronized void expectEncrypted(FileMessage msg) {
-		INSTANCE.encryptedMessages.add(msg);
+	public static void expectEncrypted(FileMessage msg) {
+		INSTANCE.expected.expect(msg.getFile());
+	}
+
+	/**
+	 * Writes the original content of a user's file, which is usually
+	 * encrypted, to another file.
+	 * 
+	 * @param in
+	 *            The file to decrypt
+	 * @param out
+	 *            The file to write the original content to
+	 * @throws IOException
+	 *             If the file cannot be decrypted
+	 */
+	public static void decrypt(File in, File out) throws IOException {
+		if (INSTANCE.pipeline == null)
+			throw new IOException("the blob store is not available");
+		INSTANCE.pipeline.decrypt(in, out);
 	}
 
 	/**
 	 * Checks whether the FileSystemManager was told to expect a file.<br>
 	 * This method will not return true multiple times without the
 	 * expectEncrypted or expectDecrypted methods being called with a
-	 * FileMessage containing this file.
+	 * FileMessage containing this file, and forgets files that were expected
+	 * more than <code>EXPECTATION_TIMEOUT</code> ms ago.
 	 * 
 	 * @param file
 	 *            The file to check.
 	 * @return true if this file was expected, false otherwise.
 	 */
 	private boolean wasExpected(File file) {
-		Optional<FileMessage> msg = Stream
-				.concat(encryptedMessages.stream(), decryptedMessages.stream())
-				.filter(fm -> fm.getFile().equals(file)).findAny();
-		if (msg.isPresent()) {
-			encryptedMessages.remove(msg.get());
-			decryptedMessages.remove(msg.get());
-			return true;
-		}
-		return false;
+		return file != null && expected.consume(file);
 	}
 
 	@Override
 	public void run() {
 		while (!stop) {
-			// get the oldest updated monitor
 			try {
-				FolderMonitor monitor = updatedMonitors.take();
-				Event event = monitor.poll();
-				File file = event.getFile();
-				if (file == null)
-					continue;// Should only be possible for OVERFLOW events,
-								// which are not enqueued.
-				if (event.getType() == StandardWatchEventKinds.ENTRY_CREATE) {
-					Logger.log(file.getAbsolutePath() + " created.");
-					if (wasExpected(file)) {
-						// Do nothing: we don't want cycles.
-					} else if (file.length() > PiCloudConstants.MAX_FILE_SIZE) {
-						Logger.logError("File " + file.getName()
-								+ " rejected! It's too large!");
-						file.delete();
-					} else {
-						// TODO: get this file over to the DE1
-						Logger.log("Sending " + file.getName()
-								+ " for encryption...");
-					}
-				} else if (event.getType() == StandardWatchEventKinds.ENTRY_DELETE) {
-					Logger.log(file.getAbsolutePath() + " deleted.");
-					// TODO: Something?
-				} else if (event.getType() == StandardWatchEventKinds.ENTRY_MODIFY) {
-					Logger.log(file.getAbsolutePath() + " modified.");
-				}
+				handle(events.take());
 			} catch (InterruptedException e) {
 			}
 		}
 	}
 
+	/**
+	 * Handles a batch of coalesced events, in the order the files were first
+	 * changed.
+	 */
+	private void handle(List<Event> batch) {
+		for (Event event : batch) {
+			File file = event.getFile();
+			if (file == null)
+				continue;// Should only be possible for OVERFLOW events,
+							// which are not enqueued.
+			if (event.getType() == StandardWatchEventKinds.ENTRY_CREATE
+					|| event.getType() == StandardWatchEventKinds.ENTRY_MODIFY) {
+				Logger.log(file.getAbsolutePath()
+						+ (event.getType() == StandardWatchEventKinds.ENTRY_CREATE ? " created."
+								: " modified."));
+				// A modified file goes through the pipeline again; only its
+				// changed chunks are encrypted.
+				if (PiCloudConstants.MAX_FILE_SIZE > 0
+						&& file.length() > PiCloudConstants.MAX_FILE_SIZE) {
+					Logger.logError("File " + file.getName()
+							+ " rejected! It's too large!");
+					file.delete();
+				} else if (pipeline != null) {
+					Logger.log("Sending " + file.getName()
+							+ " for encryption...");
+					pipeline.submit(file, event.getUser());
+				}
+			} else if (event.getType() == StandardWatchEventKinds.ENTRY_DELETE) {
+				Logger.log(file.getAbsolutePath() + " deleted.");
+				if (pipeline != null)
+					pipeline.removed(file, event.getUser());
+			}
+		}
+	}
+
 	/**
 	 * Singleton
 	 */
 	private FileSystemManager() {
-		updatedMonitors = new LinkedBlockingQueue<>();
-		encryptedMessages = new HashSet<>();
-		decryptedMessages = new HashSet<>();
+		events = new EventCoalescer(PiCloudConstants.EVENT_COALESCE_WINDOW,
+				PiCloudConstants.EVENT_COALESCE_MAX_DELAY,
+				PiCloudConstants.EVENT_BATCH_SIZE);
+		expected = new ExpectationRegistry(PiCloudConstants.EXPECTATION_TIMEOUT);
+		EncryptionPipeline pipeline = null;
+		try {
+			pipeline = new EncryptionPipeline(expected, this);
+		} catch (IOException e) {
+			Logger.logError("Unable to open the blob store; files will not be encrypted:");
+			Logger.logError(e);
+		}
+		this.pipeline = pipeline;
 		stop = false;
 	}
 
@@ -1,70 +1,87 @@
 package files;
 
-import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
-import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
-import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 import global.Logger;
 import global.PiCloudConstants;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.ClosedWatchServiceException;
-import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
 import java.sql.SQLException;
 import java.util.ArrayDeque;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import ssh.sftp.PiFileSystemFactory;
 import db.UserStatementMaker;
 
 /**
- * Observable class which stores any changes to a certain directory in a queue
- * for processing.
+ * Observable class which stores any changes to a user's directory, or any
+ * directory below it, in a queue for processing.<br>
+ * All directories are watched by a single shared <code>WatchBackend</code>
+ * thread, which hands each change to the monitor of the user it belongs to.
+ * <br>
+ * Each monitor keeps a <code>TreeSnapshot</code> of the files in its tree
+ * that were handled, so that changes the watcher missed, because it
+ * overflowed or because the server was down before they were handled, can be
+ * found by the <code>Reconciler</code>.
  * 
  * @author Dennis
  *
  */
-public class FolderMonitor extends Observable implements Runnable {
+public class FolderMonitor extends Observable {
 
-	public static final Set<FolderMonitor> MONITORS;
-	private static final Set<Thread> THREADS;
+	/**
+	 * The monitors of all users, by user name.
+	 */
+	public static final Map<String, FolderMonitor> MONITORS;
+	private static final WatchBackend WATCHER;
+	private static final Thread THREAD;
 
 	static {
-		MONITORS = new HashSet<>();
-		THREADS = new HashSet<>();
+		MONITORS = new ConcurrentHashMap<>();
+		WatchBackend watcher = null;
+		try {
+			watcher = WatchBackend.create();
+		} catch (IOException e) {
+			Logger.logError("Unable to create WatchService:");
+			Logger.logError(e);
+		}
+		WATCHER = watcher;
+		THREAD = new Thread(WATCHER);
+		THREAD.setName("FolderMonitor");
+		THREAD.setDaemon(true);
+		THREAD.start();
 		initialiseMonitors();
 	}
 
-	private WatchService service;
 	private Queue<Event> events;
-	private Path basePath;
-	private boolean stop = false;
+	private final String user;
+	Path basePath;
+	TreeSnapshot snapshot;
+	final AtomicBoolean reconcilePending = new AtomicBoolean(false);
 
 	/**
 	 * You should create these using the static methods.
 	 */
 	private FolderMonitor(String user) {
+		this.user = user;
 		events = new ArrayDeque<>();
-		new ArrayDeque<>();
 		try {
 			basePath = new File(PiFileSystemFactory.homeDirs.get(user))
 					.toPath();
-			service = FileSystems.getDefault().newWatchService();
-			basePath.register(service, ENTRY_CREATE, ENTRY_MODIFY,
-					ENTRY_DELETE, OVERFLOW);
+			snapshot = new TreeSnapshot(basePath, new File(
+					PiCloudConstants.SNAPSHOT_DIR, user + ".snap"));
+			WATCHER.watch(basePath, this);
 			Logger.log("Monitor created for " + user + " on " + basePath);
-		} catch (IOException e) {
-			Logger.logError("Unable to create WatchService for " + user + ":");
+			reconcile();
+		} catch (IOException | RuntimeException e) {
+			Logger.logError("Unable to watch the directory of " + user + ":");
 			Logger.logError(e);
 		}
 	}
@@ -89,53 +106,78 @@ public class FolderMonitor extends Observable implements Runnable {
 		return events.poll();
 	}
 
-	@Override
-	public void run() {
-		while (!stop) {
-			try {
-				// waits 1 second unless a key is available.
-				WatchKey key = service.poll(1, TimeUnit.SECONDS);
-				if (key == null)
-					continue;
-				List<WatchEvent<?>> events = key.pollEvents();
-				for (WatchEvent<?> ev : events) {
-					WatchEvent.Kind<?> type = ev.kind();
-
-					// Overflow means that an event was missed.
-					if (type == OVERFLOW) {
-						Logger.logError("An overflow occured in one of the FolderMonitors!");
-						key.reset();
-						continue;
-					}
-					Path path = (Path) ev.context();
-					File file = new File(basePath.toString() + "/" + path.getFileName().toString());
-					String[] parts = file.getName().split("\\.");
-					String ext = parts[parts.length - 1];
-					if (!ext.equals("inc")) {
-						if (ext.equals("dec")) {
-							if (type == ENTRY_CREATE) {
-								//DecryptCommand#decrypt() creates these now.
-								/*file = new TemporaryFile(
-										file.getAbsolutePath(),
-										PiCloudConstants.TEMP_FILE_DURATION);*/
-							}
-						} else {
-							offer(new Event(type, file));
-							setChanged();
-							notifyObservers();
-						}
-					}
-				}
-				key.reset();
-			} catch (InterruptedException | ClosedWatchServiceException e) {
-				Logger.logError(e);
-				continue;
-			}
-		}
+	/**
+	 * Called by the watcher when a file in this user's tree changed.
+	 * Encrypted (.inc) and decrypted (.dec) files are ignored; everything
+	 * else is enqueued and the observers are notified. The snapshot is only
+	 * updated once the change is handled.
+	 * 
+	 * @param type
+	 *            The kind of change
+	 * @param file
+	 *            The changed file
+	 */
+	void dispatch(WatchEvent.Kind<?> type, File file) {
+		if (isIgnored(file))
+			return;
+		offer(new Event(type, file, user));
+		setChanged();
+		notifyObservers();
+	}
+
+	/**
+	 * Called by the watcher when a directory in this user's tree was moved
+	 * away or deleted. The files the snapshot knows of below it are passed on
+	 * as deleted, as the watcher does not report them.
+	 * 
+	 * @param dir
+	 *            The directory
+	 */
+	void dispatchDeleted(File dir) {
+		if (snapshot != null)
+			snapshot.filesIn(dir).forEach(f -> dispatch(ENTRY_DELETE, f));
 	}
 
-	private void stop() {
-		stop = true;
+	/**
+	 * Records that a file in this user's tree was encrypted.
+	 *
+	 * @param file
+	 *            The file
+	 * @param size
+	 *            The size of the file the encryption left
+	 * @param modified
+	 *            The modification time of the file the encryption left
+	 */
+	void encrypted(File file, long size, long modified) {
+		if (snapshot != null)
+			snapshot.update(file, size, modified);
+	}
+
+	/**
+	 * Records that a file in this user's tree was removed.
+	 */
+	void removed(File file) {
+		if (snapshot != null)
+			snapshot.remove(file);
+	}
+
+	/**
+	 * Checks for changes the watcher missed in this user's tree, in the
+	 * background. Should be called when the watcher overflowed.
+	 */
+	void reconcile() {
+		Reconciler.reconcile(this);
+	}
+
+	/**
+	 * @return true for the encrypted (.inc) and decrypted (.dec) files, which
+	 *         are not passed on
+	 */
+	static boolean isIgnored(File file) {
+		String[] parts = file.getName().split("\\.");
+		String ext = parts[parts.length - 1];
+		// DecryptCommand#decrypt() creates the .dec files.
+		return ext.equals("inc") || ext.equals("dec");
 	}
 
 	/**
@@ -147,14 +189,7 @@ public class FolderMonitor extends Observable implements Runnable {
 		PiFileSystemFactory.init();
 		try {
 			List<String> names = UserStatementMaker.getUserNameList();
-			names.forEach(n -> {
-				FolderMonitor mon = new FolderMonitor(n);
-				MONITORS.add(mon);
-				Thread t = new Thread(mon);
-				t.setName("FolderMonitor-" + n);
-				THREADS.add(t);
-				t.start();
-			});
+			names.forEach(FolderMonitor::registerNewDirectory);
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
@@ -162,27 +197,26 @@ public class FolderMonitor extends Observable implements Runnable {
 
 	/**
 	 * This should be called when a new user is added.
+	 * 
+	 * @return The user's monitor
 	 */
-	public static void registerNewDirectory(String user) {
-		FolderMonitor mon = new FolderMonitor(user);
-		Thread t = new Thread(mon);
-		MONITORS.add(mon);
-		THREADS.add(t);
-		t.start();
+	public static FolderMonitor registerNewDirectory(String user) {
+		return MONITORS.computeIfAbsent(user, FolderMonitor::new);
 	}
 
 	/**
-	 * Stops all monitor threads.
+	 * Stops watching all directories.
 	 */
 	public static void stopMonitors() {
-		MONITORS.forEach(m -> m.stop());
+		if (WATCHER != null)
+			WATCHER.stop();
+		Reconciler.shutdown();
 		MONITORS.clear();
-		THREADS.forEach(t -> {
-			try {
-				t.join();
-			} catch (Exception e) {
-			}
-		});
+		try {
+			// Give the watcher a moment to notice; it is a daemon anyway.
+			THREAD.join(1000);
+		} catch (InterruptedException e) {
+		}
 	}
 
 	/**
@@ -193,10 +227,16 @@ public class FolderMonitor extends Observable implements Runnable {
 	protected static final class Event {
 		private WatchEvent.Kind<?> type;
 		private File file;
+		private String user;
+
+		Event(WatchEvent.Kind<?> type, File file) {
+			this(type, file, null);
+		}
 
-		private Event(WatchEvent.Kind<?> type, File file) {
+		Event(WatchEvent.Kind<?> type, File file, String user) {
 			this.type = type;
 			this.file = file;
+			this.user = user;
 		}
 
 		public WatchEvent.Kind<?> getType() {
@@ -206,5 +246,19 @@ public class FolderMonitor extends Observable implements Runnable {
 		public File getFile() {
 			return file;
 		}
+
+		/**
+		 * @return The user whose tree the file is in, or null if unknown
+		 */
+		public String getUser() {
+			return user;
+		}
+
+		/**
+		 * @return An event for the same file and user, of another type
+		 */
+		Event withType(WatchEvent.Kind<?> type) {
+			return new Event(type, file, user);
+		}
 	}
 }
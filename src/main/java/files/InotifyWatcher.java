@@ -0,0 +1,241 @@
+package files;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import global.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+
+/**
+ * Watches the directory trees of all users with Linux' inotify, through JNA.
+ * <br>
+ * Unlike a <code>WatchService</code>, inotify reports when a writer closes
+ * a file (<code>IN_CLOSE_WRITE</code>) and when a file is moved into a
+ * directory (<code>IN_MOVED_TO</code>), and nothing is reported while a file
+ * is being written, so every write is seen once, when it is complete. A
+ * file that was created (<code>IN_CREATE</code>) or moved in is reported as
+ * <code>ENTRY_CREATE</code>; closing a file that existed before the write is
+ * reported as <code>ENTRY_MODIFY</code>. A file moved over an existing one
+ * is reported as created all the same, as inotify does not tell.
+ * Deleted and moved out files are reported as <code>ENTRY_DELETE</code>.
+ * When a directory is moved out, inotify only reports the directory, so the
+ * files the snapshot knows of below it are reported as deleted instead.
+ *
+ * @author Dennis
+ *
+ */
+final class InotifyWatcher implements WatchBackend {
+
+	private static final int IN_CLOSE_WRITE = 0x8, IN_MOVED_FROM = 0x40,
+			IN_MOVED_TO = 0x80, IN_CREATE = 0x100, IN_DELETE = 0x200,
+			IN_Q_OVERFLOW = 0x4000, IN_IGNORED = 0x8000,
+			IN_ONLYDIR = 0x01000000, IN_ISDIR = 0x40000000;
+	private static final int MASK = IN_CLOSE_WRITE | IN_MOVED_TO
+			| IN_MOVED_FROM | IN_CREATE | IN_DELETE | IN_ONLYDIR;
+	private static final int EVENT_HEADER = 16;
+	private static final int EINTR = 4;
+
+	private final int fd;
+	private final Map<Integer, Directory> watches = new ConcurrentHashMap<>();
+	// Files created, but not yet closed after writing. Only used by run().
+	private final Set<Path> created = new HashSet<>();
+	private volatile boolean stop = false;
+
+	InotifyWatcher() throws IOException {
+		fd = Inotify.INSTANCE.inotify_init();
+		if (fd < 0)
+			throw new IOException("inotify_init failed, errno "
+					+ Native.getLastError());
+	}
+
+	@Override
+	public void watch(Path root, FolderMonitor owner) throws IOException {
+		register(root, owner, false);
+	}
+
+	/**
+	 * Adds a watch to every directory in a tree. If <code>announce</code> is
+	 * set, files already in the tree are passed on as created, because they
+	 * may have been written before the directory was watched.
+	 */
+	private void register(Path root, FolderMonitor owner, boolean announce)
+			throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir,
+					BasicFileAttributes attrs) throws IOException {
+				int wd = Inotify.INSTANCE.inotify_add_watch(fd,
+						dir.toString(), MASK);
+				if (wd < 0)
+					throw new IOException("Unable to watch " + dir
+							+ ", errno " + Native.getLastError());
+				watches.put(wd, new Directory(dir, owner));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) {
+				if (announce && attrs.isRegularFile())
+					owner.dispatch(ENTRY_CREATE, file.toFile());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		byte[] buf = new byte[64 * 1024];
+		ByteBuffer events = ByteBuffer.wrap(buf).order(ByteOrder.nativeOrder());
+		while (!stop) {
+			// Blocks until something happens.
+			int n = Inotify.INSTANCE.read(fd, buf, new NativeLong(buf.length))
+					.intValue();
+			if (n < 0 && Native.getLastError() == EINTR)
+				continue;
+			if (n <= 0) {
+				if (!stop)
+					Logger.logError("Reading inotify events failed, errno "
+							+ Native.getLastError());
+				break;
+			}
+			int pos = 0;
+			while (pos + EVENT_HEADER <= n) {
+				int wd = events.getInt(pos);
+				int mask = events.getInt(pos + 4);
+				int len = events.getInt(pos + 12);
+				String name = len == 0 ? "" : name(buf, pos + EVENT_HEADER,
+						len);
+				pos += EVENT_HEADER + len;
+				handle(wd, mask, name);
+			}
+		}
+		Inotify.INSTANCE.close(fd);
+	}
+
+	private void handle(int wd, int mask, String name) {
+		if ((mask & IN_Q_OVERFLOW) != 0) {
+			// The queue is shared, so any tree may have missed events.
+			Logger.logError("An overflow occured while watching folders! Reconciling...");
+			FolderMonitor.MONITORS.values().forEach(FolderMonitor::reconcile);
+			return;
+		}
+		if ((mask & IN_IGNORED) != 0) {
+			// The watch was removed, or its directory deleted.
+			watches.remove(wd);
+			return;
+		}
+		Directory dir = watches.get(wd);
+		if (dir == null || name.isEmpty())
+			return;
+		Path path = dir.path.resolve(name);
+		if ((mask & IN_ISDIR) != 0) {
+			if ((mask & (IN_CREATE | IN_MOVED_TO)) != 0) {
+				try {
+					register(path, dir.owner, true);
+				} catch (IOException e) {
+					Logger.logError("Unable to watch " + path + ": " + e);
+				}
+			} else if ((mask & IN_MOVED_FROM) != 0)
+				unregister(path, dir.owner);
+		} else if ((mask & IN_CREATE) != 0)
+			// Reported once it is closed.
+			created.add(path);
+		else if ((mask & IN_CLOSE_WRITE) != 0)
+			dir.owner.dispatch(created.remove(path) ? ENTRY_CREATE
+					: ENTRY_MODIFY, path.toFile());
+		else if ((mask & IN_MOVED_TO) != 0) {
+			created.remove(path);
+			dir.owner.dispatch(ENTRY_CREATE, path.toFile());
+		} else if ((mask & (IN_DELETE | IN_MOVED_FROM)) != 0) {
+			created.remove(path);
+			dir.owner.dispatch(ENTRY_DELETE, path.toFile());
+		}
+	}
+
+	/**
+	 * Removes the watches of a directory that was moved away and of the
+	 * directories below it, and passes its files on as deleted. If it was
+	 * moved within the tree, its <code>IN_MOVED_TO</code> follows, which
+	 * watches it again under its new path and passes its files on as created.
+	 */
+	private void unregister(Path root, FolderMonitor owner) {
+		// Removed right away, so events still queued for them are dropped.
+		watches.entrySet().removeIf(e -> {
+			if (!e.getValue().path.startsWith(root))
+				return false;
+			Inotify.INSTANCE.inotify_rm_watch(fd, e.getKey());
+			return true;
+		});
+		created.removeIf(p -> p.startsWith(root));
+		owner.dispatchDeleted(root.toFile());
+	}
+
+	/**
+	 * Reads the null-padded name of an event.
+	 */
+	private static String name(byte[] buf, int offset, int len) {
+		int end = offset;
+		while (end < offset + len && buf[end] != 0)
+			end++;
+		return new String(buf, offset, end - offset, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Removing the watches makes the kernel send <code>IN_IGNORED</code>
+	 * events, which wakes up the blocked <code>run()</code>.
+	 */
+	@Override
+	public void stop() {
+		stop = true;
+		for (Integer wd : watches.keySet())
+			Inotify.INSTANCE.inotify_rm_watch(fd, wd);
+	}
+
+	/**
+	 * Small bean for a watched directory.
+	 */
+	private static final class Directory {
+		private final Path path;
+		private final FolderMonitor owner;
+
+		private Directory(Path path, FolderMonitor owner) {
+			this.path = path;
+			this.owner = owner;
+		}
+	}
+
+	/**
+	 * The inotify functions of the C library.
+	 */
+	private static interface Inotify extends Library {
+		Inotify INSTANCE = (Inotify) Native.loadLibrary("c", Inotify.class);
+
+		public int inotify_init();
+
+		public int inotify_add_watch(int fd, String path, int mask);
+
+		public int inotify_rm_watch(int fd, int wd);
+
+		public NativeLong read(int fd, byte[] buf, NativeLong count);
+
+		public int close(int fd);
+	}
+}
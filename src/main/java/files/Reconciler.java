@@ -0,0 +1,106 @@
+package files;
+
+import files.FolderMonitor.Event;
+import global.Logger;
+import global.PiCloudConstants;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the changes a <code>FolderMonitor</code> missed, by comparing a scan
+ * of its tree with its <code>TreeSnapshot</code>, and passes them on as if
+ * they had been seen by the watcher.<br>
+ * This happens when a monitor is created, to catch up with changes made
+ * while the server was down, and whenever the watcher overflows. The first
+ * time a tree is scanned there is nothing to compare with, so the scan
+ * becomes its snapshot without any events.<br>
+ * Reconciliations run one at a time, on a single thread; the scans
+ * themselves walk the tree in parallel. The same thread saves changed
+ * snapshots every <code>SNAPSHOT_SAVE_INTERVAL</code> ms.
+ *
+ * @author Dennis
+ *
+ */
+final class Reconciler {
+
+	private static final ForkJoinPool POOL = new ForkJoinPool(
+			PiCloudConstants.RECONCILE_THREADS);
+	private static final ScheduledExecutorService EXECUTOR = Executors
+			.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "Reconciler");
+				t.setDaemon(true);
+				return t;
+			});
+
+	static {
+		EXECUTOR.scheduleWithFixedDelay(Reconciler::saveAll,
+				PiCloudConstants.SNAPSHOT_SAVE_INTERVAL,
+				PiCloudConstants.SNAPSHOT_SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Schedules a reconciliation of a monitor's tree. Requests for a monitor
+	 * that is already waiting for one are ignored.
+	 */
+	static void reconcile(FolderMonitor monitor) {
+		if (monitor.reconcilePending.compareAndSet(false, true))
+			EXECUTOR.execute(() -> run(monitor));
+	}
+
+	private static void run(FolderMonitor monitor) {
+		monitor.reconcilePending.set(false);
+		TreeSnapshot snapshot = monitor.snapshot;
+		if (snapshot == null || !Files.isDirectory(monitor.basePath))
+			return;
+		long start = System.nanoTime();
+		TreeSnapshot.Listing scan = snapshot.scan(POOL);
+		if (!snapshot.isInitialised()) {
+			snapshot.reset(scan);
+			Logger.log("Took a snapshot of " + monitor.basePath + ": "
+					+ scan.files.size() + " files");
+		} else {
+			List<Event> missed = snapshot.diff(scan);
+			missed.forEach(e -> monitor.dispatch(e.getType(), e.getFile()));
+			Logger.log("Reconciled " + monitor.basePath + ": "
+					+ scan.files.size() + " files, " + scan.unknown.size()
+					+ " unreadable paths, " + missed.size()
+					+ " missed changes in "
+					+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+					+ "ms");
+		}
+		save(monitor);
+	}
+
+	private static void saveAll() {
+		FolderMonitor.MONITORS.values().forEach(Reconciler::save);
+	}
+
+	private static void save(FolderMonitor monitor) {
+		if (monitor.snapshot == null)
+			return;
+		try {
+			monitor.snapshot.save();
+		} catch (IOException e) {
+			Logger.logError("Unable to save the snapshot of "
+					+ monitor.basePath + ": " + e);
+		}
+	}
+
+	/**
+	 * Stops reconciling, and saves all snapshots.
+	 */
+	static void shutdown() {
+		EXECUTOR.shutdownNow();
+		try {
+			EXECUTOR.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+		}
+		saveAll();
+	}
+}
@@ -1,86 +1,111 @@
 package files;
 
 import global.Logger;
+import global.PiCloudConstants;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
-import java.util.HashSet;
+import java.nio.file.Path;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
+/**
+ * A file which is removed after a given amount of seconds.<br>
+ * The removals of all temporary files are scheduled on a single shared
+ * <code>TimingWheel</code>, rather than on a thread per file.
+ *
+ * @author Dennis
+ *
+ */
 public class TemporaryFile extends File {
 
 	private static final long serialVersionUID = 4807843399170809945L;
-	public static final Set<TemporaryFile> ACTIVE_TEMPS = new HashSet<>();
-	private final long killTime;
-	private final FileDeleter deleter;
+	public static final Set<TemporaryFile> ACTIVE_TEMPS = ConcurrentHashMap
+			.newKeySet();
+	private static final TimingWheel REAPER = new TimingWheel(
+			"TemporaryFile Reaper", PiCloudConstants.TEMP_FILE_TICK,
+			PiCloudConstants.TEMP_FILE_WHEEL_SIZE);
+	private final transient TimingWheel.Timeout expiry;
 
 	public TemporaryFile(String pathname, int lifetime) {
 		super(pathname);
-		this.killTime = System.currentTimeMillis() + (lifetime * 1000);
-		deleter = new FileDeleter();
-		deleter.start();
 		ACTIVE_TEMPS.add(this);
+		expiry = REAPER.schedule(this::expire, lifetime, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Called by the reaper when the lifetime of this file is over. This can
+	 * happen before the constructor has set <code>expiry</code>, so it must
+	 * not use it; there is nothing left to cancel anyway.
+	 */
+	private void expire() {
+		Logger.log("Removing TemporaryFile " + getAbsolutePath());
+		try {
+			removeFile();
+		} catch (IOException e) {
+			Logger.logError(e);
+			deleteOnExit();
+		}
 	}
 
 	private void exit() {
-		deleter.exit();
+		Logger.log("Force-removing leftover temporary file "
+				+ getAbsolutePath());
+		try {
+			remove();
+		} catch (IOException e) {
+			Logger.logError(e);
+		}
 	}
 
 	public void remove() throws IOException {
+		expiry.cancel();
+		removeFile();
+	}
+
+	private void removeFile() throws IOException {
 		ACTIVE_TEMPS.remove(this);
 		try {
-		Files.delete(toPath().toAbsolutePath());
+			Files.delete(toPath().toAbsolutePath());
 		} catch (NoSuchFileException e) {
 			Logger.logError("Tried to delete absent temp file " + getAbsolutePath());
 		}
-		try {
-			deleter.interrupt();
-			deleter.join();
-		} catch (InterruptedException e) {
-		}
 	}
 
 	public static void cleanTemporaryFiles() {
 		ACTIVE_TEMPS.forEach(t -> t.exit());
 	}
 
-	private final class FileDeleter extends Thread {
-
-		private boolean done = false;
-
-		private void exit() {
-			Logger.log("Force-removing leftover temporary file "
-					+ getAbsolutePath());
-			try {
-				remove();
-			} catch (IOException e) {
-				Logger.logError(e);
-			}
-			done = true;
-		}
-
-		@Override
-		public void run() {
-			Thread.currentThread().setName("FileDeleter-" + getName());
-			Logger.log("Running FileDeleter on " + getAbsolutePath());
-			while (!done && isFile()) {
-				if (System.currentTimeMillis() >= killTime) {
-					Logger.log("Removing TemporaryFile " + getAbsolutePath());
-					try {
-						remove();
-					} catch (IOException e) {
-						Logger.logError(e);
-						deleteOnExit();
-					}
-					done = true;
-				} else {
-					try {
-						Thread.sleep(100);
-					} catch (InterruptedException e) {}
-				}
-			}
+	/**
+	 * Removes the decrypted (.dec) files in a directory tree which are not
+	 * active temporary files. These are left behind when the server stops
+	 * before their lifetime is over.<br>
+	 * This should be called when the program starts.
+	 *
+	 * @param root
+	 *            The directory to clean
+	 */
+	public static void removeStale(Path root) {
+		if (root == null || !Files.isDirectory(root))
+			return;
+		try (Stream<Path> files = Files.walk(root)) {
+			files.filter(p -> p.getFileName().toString().endsWith(".dec"))
+					.filter(p -> !ACTIVE_TEMPS.contains(p.toFile()))
+					.forEach(p -> {
+						try {
+							Files.deleteIfExists(p);
+							Logger.log("Removed stale temporary file " + p);
+						} catch (IOException e) {
+							Logger.logError("Unable to remove stale temporary file "
+									+ p + ": " + e);
+						}
+					});
+		} catch (IOException | RuntimeException e) {
+			Logger.logError("Unable to clean " + root + ": " + e);
 		}
 	}
-}
\ No newline at end of file
+}
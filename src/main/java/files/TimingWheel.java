@@ -0,0 +1,188 @@
+package files;
+
+import global.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A hashed timing wheel, which runs tasks after a delay on a single thread.
+ * <br>
+ * The wheel has a fixed amount of slots, each covering one tick. A task is
+ * put in the slot of the tick it is due in, so scheduling and cancelling are
+ * O(1), however many tasks there are. Every tick, the thread runs the due
+ * tasks in the current slot; tasks due in a later round of the wheel stay
+ * where they are. Tasks run at most one tick late.<br>
+ * While nothing is scheduled, the thread does not wake up at all.
+ *
+ * @author Dennis
+ *
+ */
+final class TimingWheel implements Runnable {
+
+	private final long tick;
+	private final Timeout[] slots;
+	private final int mask;
+	private final long start;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition scheduled = lock.newCondition();
+	private long processed = 0;
+	private int size = 0;
+
+	/**
+	 * Creates the wheel and starts its thread.
+	 *
+	 * @param name
+	 *            The name of the thread
+	 * @param tick
+	 *            The duration of a tick (ms)
+	 * @param slots
+	 *            The amount of slots, rounded up to a power of two
+	 */
+	TimingWheel(String name, long tick, int slots) {
+		this.tick = TimeUnit.MILLISECONDS.toNanos(tick);
+		int n = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+		this.slots = new Timeout[n];
+		mask = n - 1;
+		start = System.nanoTime();
+		Thread thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Schedules a task.
+	 *
+	 * @param task
+	 *            The task to run
+	 * @param delay
+	 *            How long to wait before running it
+	 * @param unit
+	 *            The unit of <code>delay</code>
+	 * @return A handle to cancel the task with
+	 */
+	Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		long elapsed = System.nanoTime() - start + unit.toNanos(delay);
+		// Round up, so a task never runs early.
+		Timeout t = new Timeout(task, (elapsed + tick - 1) / tick);
+		lock.lock();
+		try {
+			link(t, Math.max(t.due, processed + 1));
+			if (size++ == 0)
+				scheduled.signal();
+		} finally {
+			lock.unlock();
+		}
+		return t;
+	}
+
+	@Override
+	public void run() {
+		List<Runnable> due = new ArrayList<>();
+		while (true) {
+			lock.lock();
+			try {
+				long now = (System.nanoTime() - start) / tick;
+				// After a full round every slot has been visited.
+				for (long t = Math.max(processed + 1, now - mask); t <= now; t++)
+					expire(t, due);
+				processed = now;
+				if (due.isEmpty()) {
+					if (size == 0)
+						scheduled.await();
+					else
+						scheduled.awaitNanos(start + (now + 1) * tick
+								- System.nanoTime());
+				}
+			} catch (InterruptedException e) {
+				// Nothing to do: keep ticking.
+			} finally {
+				lock.unlock();
+			}
+			// The tasks run without the lock, so they cannot hold up
+			// schedule() and cancel().
+			for (Runnable task : due) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					Logger.logError(e);
+				}
+			}
+			due.clear();
+		}
+	}
+
+	/**
+	 * Takes the due tasks out of the slot of a tick. Called with the lock
+	 * held.
+	 */
+	private void expire(long now, List<Runnable> due) {
+		Timeout t = slots[(int) (now & mask)];
+		while (t != null) {
+			Timeout next = t.next;
+			if (t.due <= now) {
+				unlink(t);
+				size--;
+				due.add(t.task);
+			}
+			t = next;
+		}
+	}
+
+	private void link(Timeout t, long tick) {
+		int slot = (int) (tick & mask);
+		t.slot = slot;
+		t.next = slots[slot];
+		if (t.next != null)
+			t.next.prev = t;
+		slots[slot] = t;
+	}
+
+	private void unlink(Timeout t) {
+		if (t.prev != null)
+			t.prev.next = t.next;
+		else
+			slots[t.slot] = t.next;
+		if (t.next != null)
+			t.next.prev = t.prev;
+		t.prev = t.next = null;
+		t.slot = -1;
+	}
+
+	/**
+	 * A scheduled task.
+	 */
+	final class Timeout {
+		private final Runnable task;
+		private final long due;
+		private int slot = -1;
+		private Timeout prev, next;
+
+		private Timeout(Runnable task, long due) {
+			this.task = task;
+			this.due = due;
+		}
+
+		/**
+		 * Cancels the task, if it has not run yet.
+		 *
+		 * @return true if the task was cancelled, false if it already ran or
+		 *         was cancelled before
+		 */
+		boolean cancel() {
+			lock.lock();
+			try {
+				if (slot < 0)
+					return false;
+				unlink(this);
+				size--;
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package files;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import files.FolderMonitor.Event;
+import global.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The last known size and modification time of every file in a user's tree,
+ * kept on disk outside of the tree.<br>
+ * A file is only recorded once the <code>EncryptionPipeline</code> is done
+ * with it, so a change that was seen but not yet handled when the server
+ * stopped is still a difference after the restart. When events may have been
+ * missed, a fresh scan of the tree is compared with the snapshot to find out
+ * which. Parts of the tree that could not be scanned are left as they
+ * are in the snapshot, rather than taken for deleted.
+ *
+ * @author Dennis
+ *
+ */
+final class TreeSnapshot {
+
+	private final Path root;
+	private final File file;
+	private volatile boolean initialised;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private volatile boolean dirty = false;
+
+	/**
+	 * Loads the snapshot of a tree, if there is one.
+	 *
+	 * @param root
+	 *            The tree's root directory
+	 * @param file
+	 *            Where the snapshot is kept
+	 */
+	TreeSnapshot(Path root, File file) {
+		this.root = root;
+		this.file = file;
+		boolean loaded = false;
+		if (file.exists()) {
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file)))) {
+				int count = in.readInt();
+				for (int i = 0; i < count; i++)
+					entries.put(in.readUTF(), new Entry(in.readLong(),
+							in.readLong()));
+				loaded = true;
+			} catch (IOException e) {
+				Logger.logError("Unreadable snapshot " + file + ": " + e);
+				entries.clear();
+			}
+		}
+		initialised = loaded;
+	}
+
+	/**
+	 * @return true if the snapshot was read from disk or reset to a scan,
+	 *         false if it has never been complete
+	 */
+	boolean isInitialised() {
+		return initialised;
+	}
+
+	/**
+	 * Records the size and modification time of a file.
+	 */
+	void update(File changed, long size, long modified) {
+		entries.put(relative(changed), new Entry(size, modified));
+		dirty = true;
+	}
+
+	/**
+	 * Forgets a file.
+	 */
+	void remove(File deleted) {
+		if (entries.remove(relative(deleted)) != null)
+			dirty = true;
+	}
+
+	/**
+	 * @return The files the snapshot knows of in a directory, or below it
+	 */
+	List<File> filesIn(File dir) {
+		String prefix = relative(dir) + File.separator;
+		List<File> files = new ArrayList<>();
+		entries.keySet().forEach(path -> {
+			if (path.startsWith(prefix))
+				files.add(root.resolve(path).toFile());
+		});
+		return files;
+	}
+
+	/**
+	 * Replaces the snapshot with a scan, without reporting any differences.
+	 * Files in the parts of the tree the scan could not see are kept.
+	 */
+	void reset(Listing scan) {
+		entries.keySet().removeIf(path -> !scan.isUnknown(path));
+		entries.putAll(scan.files);
+		initialised = true;
+		dirty = true;
+	}
+
+	/**
+	 * Compares a scan of the tree with the snapshot.
+	 *
+	 * @param scan
+	 *            The result of <code>scan()</code>
+	 * @return The events that turn the snapshot into the scan: CREATE for new
+	 *         files and for files with a different size or modification time,
+	 *         since their new content has to be encrypted as well, and DELETE
+	 *         for files that are gone. Files the scan could not see are not
+	 *         reported as gone, as they may well be there.
+	 */
+	List<Event> diff(Listing scan) {
+		List<Event> events = new ArrayList<>();
+		scan.files.forEach((path, now) -> {
+			Entry then = entries.get(path);
+			if (then == null || !then.equals(now))
+				events.add(new Event(ENTRY_CREATE, root.resolve(path).toFile()));
+		});
+		entries.keySet().forEach(path -> {
+			if (!scan.files.containsKey(path) && !scan.isUnknown(path))
+				events.add(new Event(ENTRY_DELETE, root.resolve(path).toFile()));
+		});
+		return events;
+	}
+
+	/**
+	 * Writes the snapshot to disk, if it changed. The old snapshot is only
+	 * replaced once the new one is complete.
+	 *
+	 * @throws IOException
+	 *             If the snapshot cannot be written
+	 */
+	synchronized void save() throws IOException {
+		if (!dirty)
+			return;
+		dirty = false;
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getPath() + ".tmp");
+		List<Map.Entry<String, Entry>> copy = new ArrayList<>(
+				entries.entrySet());
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(copy.size());
+			for (Map.Entry<String, Entry> e : copy) {
+				out.writeUTF(e.getKey());
+				out.writeLong(e.getValue().size);
+				out.writeLong(e.getValue().modified);
+			}
+		} catch (IOException e) {
+			dirty = true;
+			throw e;
+		}
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Lists every file in the tree, walking the directories in parallel.
+	 *
+	 * @param pool
+	 *            The pool to walk the tree in
+	 * @return The files found, and the paths that could not be read
+	 */
+	Listing scan(ForkJoinPool pool) {
+		Listing scan = new Listing();
+		pool.invoke(new Scan(root, scan));
+		return scan;
+	}
+
+	private String relative(File f) {
+		return root.relativize(f.toPath()).toString();
+	}
+
+	/**
+	 * Lists a single directory, and forks a task per subdirectory.
+	 */
+	private final class Scan extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+		private final Listing scan;
+
+		private Scan(Path dir, Listing scan) {
+			this.dir = dir;
+			this.scan = scan;
+		}
+
+		@Override
+		protected void compute() {
+			List<Scan> subdirs = new ArrayList<>();
+			try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+				for (Path child : children)
+					add(child, subdirs);
+			} catch (NoSuchFileException e) {
+				// The directory was deleted while scanning it.
+			} catch (IOException | DirectoryIteratorException e) {
+				// Some of its files may not have been listed.
+				unknown(dir, e);
+			}
+			invokeAll(subdirs);
+		}
+
+		private void add(Path child, List<Scan> subdirs) {
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(child, BasicFileAttributes.class,
+						LinkOption.NOFOLLOW_LINKS);
+			} catch (NoSuchFileException e) {
+				// Deleted since it was listed.
+				return;
+			} catch (IOException e) {
+				unknown(child, e);
+				return;
+			}
+			if (attrs.isDirectory())
+				subdirs.add(new Scan(child, scan));
+			else if (attrs.isRegularFile()
+					&& !FolderMonitor.isIgnored(child.toFile()))
+				scan.files.put(root.relativize(child).toString(), new Entry(
+						attrs.size(), attrs.lastModifiedTime().toMillis()));
+		}
+
+		private void unknown(Path path, Exception e) {
+			Logger.logError("Unable to scan " + path + ": " + e);
+			scan.unknown.add(root.relativize(path).toString());
+		}
+	}
+
+	/**
+	 * Small bean for the result of a scan: the files that were found, and
+	 * the paths, relative to the root, that could not be read. Whatever is
+	 * at or below those paths is unknown.
+	 */
+	static final class Listing {
+		final Map<String, Entry> files = new ConcurrentHashMap<>();
+		final Set<String> unknown = ConcurrentHashMap.newKeySet();
+
+		/**
+		 * @return true if the scan could not see whether a file exists
+		 */
+		boolean isUnknown(String path) {
+			for (String u : unknown)
+				if (u.isEmpty() || path.equals(u)
+						|| path.startsWith(u + File.separator))
+					return true;
+			return false;
+		}
+	}
+
+	/**
+	 * The size and modification time of a file.
+	 */
+	static final class Entry {
+		private final long size, modified;
+
+		Entry(long size, long modified) {
+			this.size = size;
+			this.modified = modified;
+		}
+
+		public boolean equals(Object o) {
+			if (o instanceof Entry) {
+				Entry other = (Entry) o;
+				return other.size == size && other.modified == modified;
+			}
+			return false;
+		}
+
+		public int hashCode() {
+			return Long.hashCode(size) * 31 + Long.hashCode(modified);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package files;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import global.Logger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Watches the directory trees of all users with a single
+ * <code>WatchService</code>, on any platform.<br>
+ * Events for directories themselves are not passed on; when a directory is
+ * deleted or moved away, the files the snapshot knows of below it are
+ * passed on as deleted instead. Note that a file
+ * which is being written causes an <code>ENTRY_CREATE</code> when it is
+ * created, and <code>ENTRY_MODIFY</code> events while it is written.
+ *
+ * @author Dennis
+ *
+ */
+final class TreeWatcher implements WatchBackend {
+
+	private final WatchService service;
+	private final Map<WatchKey, Directory> keys = new ConcurrentHashMap<>();
+	private final Map<Path, WatchKey> dirs = new ConcurrentHashMap<>();
+	private volatile boolean stop = false;
+
+	TreeWatcher() throws IOException {
+		service = FileSystems.getDefault().newWatchService();
+	}
+
+	@Override
+	public void watch(Path root, FolderMonitor owner) throws IOException {
+		register(root, owner, false);
+	}
+
+	/**
+	 * Registers every directory in a tree. If <code>announce</code> is set,
+	 * files already in the tree are passed on as created, because they may
+	 * have been written before the directory was registered.
+	 */
+	private void register(Path root, FolderMonitor owner, boolean announce)
+			throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir,
+					BasicFileAttributes attrs) throws IOException {
+				WatchKey key = dir.register(service, ENTRY_CREATE,
+						ENTRY_MODIFY, ENTRY_DELETE, OVERFLOW);
+				keys.put(key, new Directory(dir, owner));
+				dirs.put(dir, key);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) {
+				if (announce && attrs.isRegularFile())
+					owner.dispatch(ENTRY_CREATE, file.toFile());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		while (!stop) {
+			WatchKey key;
+			try {
+				// Blocks until something happens, so an idle server does not
+				// wake up at all.
+				key = service.take();
+			} catch (InterruptedException e) {
+				continue;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+			Directory dir = keys.get(key);
+			if (dir == null) {
+				key.cancel();
+				continue;
+			}
+			for (WatchEvent<?> ev : key.pollEvents()) {
+				WatchEvent.Kind<?> type = ev.kind();
+
+				// Overflow means that an event was missed.
+				if (type == OVERFLOW) {
+					Logger.logError("An overflow occured while watching "
+							+ dir.path + "! Reconciling...");
+					dir.owner.reconcile();
+					continue;
+				}
+				Path path = dir.path.resolve((Path) ev.context());
+				if (Files.isDirectory(path)) {
+					if (type == ENTRY_CREATE) {
+						try {
+							register(path, dir.owner, true);
+						} catch (IOException e) {
+							Logger.logError("Unable to watch " + path + ": "
+									+ e);
+						}
+					}
+				} else if (type == ENTRY_DELETE && dirs.containsKey(path))
+					// A deleted directory can only be recognised by the
+					// fact that it was watched.
+					unregister(path, dir.owner);
+				else
+					dir.owner.dispatch(type, path.toFile());
+			}
+			// An invalid key means the directory is gone.
+			if (!key.reset()) {
+				keys.remove(key);
+				dirs.remove(dir.path, key);
+			}
+		}
+	}
+
+	/**
+	 * Cancels the keys of a directory that was deleted or moved away and of
+	 * the directories below it, and passes its files on as deleted.
+	 */
+	private void unregister(Path root, FolderMonitor owner) {
+		dirs.entrySet().removeIf(e -> {
+			if (!e.getKey().startsWith(root))
+				return false;
+			keys.remove(e.getValue());
+			e.getValue().cancel();
+			return true;
+		});
+		owner.dispatchDeleted(root.toFile());
+	}
+
+	@Override
+	public void stop() {
+		stop = true;
+		try {
+			service.close();
+		} catch (IOException e) {
+			Logger.logError(e);
+		}
+		keys.clear();
+		dirs.clear();
+	}
+
+	/**
+	 * Small bean for a watched directory.
+	 */
+	private static final class Directory {
+		private final Path path;
+		private final FolderMonitor owner;
+
+		private Directory(Path path, FolderMonitor owner) {
+			this.path = path;
+			this.owner = owner;
+		}
+	}
+}
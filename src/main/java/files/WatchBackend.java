@@ -0,0 +1,66 @@
+package files;
+
+import global.Logger;
+import global.PiCloudConstants;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import com.sun.jna.Platform;
+
+/**
+ * Watches the directory trees of users and hands every change to the
+ * <code>FolderMonitor</code> of the tree it happened in.<br>
+ * Implementations watch every directory in a tree, including directories
+ * created later, and report only changes to files, as
+ * <code>ENTRY_CREATE</code>, <code>ENTRY_MODIFY</code> or
+ * <code>ENTRY_DELETE</code>.
+ *
+ * @author Dennis
+ *
+ */
+interface WatchBackend extends Runnable {
+
+	/**
+	 * Starts watching a directory and everything below it.
+	 *
+	 * @param root
+	 *            The directory to watch
+	 * @param owner
+	 *            The monitor to hand the events to
+	 * @throws IOException
+	 *             If the directory cannot be watched
+	 */
+	void watch(Path root, FolderMonitor owner) throws IOException;
+
+	/**
+	 * Stops watching all directories, and ends <code>run()</code>.
+	 */
+	void stop();
+
+	/**
+	 * Creates the backend selected by <code>-Dpicloud.watch</code>:
+	 * <i>inotify</i>, <i>nio</i>, or <i>auto</i> (the default), which uses
+	 * inotify on Linux if it is available.
+	 *
+	 * @return The backend
+	 * @throws IOException
+	 *             If no backend can be created
+	 */
+	static WatchBackend create() throws IOException {
+		String backend = PiCloudConstants.WATCH_BACKEND;
+		if (backend.equals("inotify")
+				|| (backend.equals("auto") && Platform.isLinux())) {
+			try {
+				WatchBackend inotify = new InotifyWatcher();
+				Logger.log("Watching folders with inotify.");
+				return inotify;
+			} catch (IOException | LinkageError e) {
+				Logger.logError("inotify is not available, falling back to WatchService: "
+						+ e);
+			}
+		}
+		Logger.log("Watching folders with a WatchService.");
+		return new TreeWatcher();
+	}
+}
@@ -0,0 +1,582 @@
+package files.pipeline;
+
+import global.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Stores every distinct encrypted chunk once, named after the SHA-256 hash of
+ * its plain content.<br>
+ * The store keeps track of which chunks each encrypted file consists of, and
+ * counts the references to every chunk per owner. Files are recorded in a
+ * journal (<code>index</code>), which is replayed on startup; chunks are kept
+ * in directories named after the first two characters of their hash.<br>
+ * A chunk that is on its way through the <code>EncryptionPipeline</code> is
+ * pinned, so it cannot be removed before the file it belongs to is
+ * committed.<br>
+ * Once no file refers to a chunk anymore, it is kept for a grace period
+ * before <code>sweep()</code> removes it. A manifest is only a file in the
+ * user's tree, which can be moved or copied: the move is seen as a delete
+ * followed by a create, and the new path has to be able to claim the chunks
+ * again after the old one released them.
+ *
+ * @author Dennis
+ *
+ */
+final class BlobStore {
+
+	private static final byte FILE_PUT = 1, FILE_DEL = 2;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final File dir;
+	private final File journalFile;
+	private final long grace;
+	private final Map<String, Blob> blobs = new HashMap<>();
+	private final Map<String, Blob> unused = new HashMap<>();
+	private final Map<String, Refs> files = new HashMap<>();
+	private final AtomicLong reused = new AtomicLong();
+	private FileChannel journal;
+
+	/**
+	 * Opens (or creates) the store, and removes chunks no file referred to
+	 * during the grace period, such as those left behind when the server
+	 * stops while encrypting.
+	 *
+	 * @param dir
+	 *            The directory of the store
+	 * @param grace
+	 *            How long to keep chunks no file refers to (ms)
+	 * @throws IOException
+	 *             If the journal cannot be read or written
+	 */
+	BlobStore(File dir, long grace) throws IOException {
+		this.dir = dir;
+		this.grace = grace;
+		dir.mkdirs();
+		journalFile = new File(dir, "index");
+		long records = replay();
+		if (records > 2 * files.size() + 1024)
+			compact();
+		journal = FileChannel.open(journalFile.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		sweep();
+		Logger.log("Opened blob store " + dir.getAbsolutePath() + " ("
+				+ files.size() + " files, " + blobs.size() + " chunks)");
+	}
+
+	/**
+	 * Pins a chunk, if it is stored already.
+	 *
+	 * @param hash
+	 *            The hash of the plain chunk
+	 * @return The chunk, or null if it has to be encrypted first
+	 */
+	synchronized Blob acquire(byte[] hash) {
+		Blob blob = find(hex(hash));
+		if (blob == null)
+			return null;
+		blob.pins++;
+		reused.incrementAndGet();
+		return blob;
+	}
+
+	/**
+	 * Pins a chunk named by a manifest, if it is stored and belongs to the
+	 * owner. Unlike <code>acquire(byte[])</code>, the caller only knows the
+	 * hash of the chunk, not its content, so it may only claim chunks the
+	 * owner referred to before.
+	 *
+	 * @param entry
+	 *            The chunk in the manifest
+	 * @param owner
+	 *            The owner of the manifest
+	 * @return The chunk, or null if it is not available to the owner
+	 */
+	synchronized Blob acquire(Manifest.Entry entry, int owner) {
+		String key = hex(entry.getHash());
+		Blob blob = blobs.containsKey(key) ? blobs.get(key) : unused.get(key);
+		if (blob == null || !blob.ownedBy(owner))
+			return null;
+		find(key).pins++;
+		return blob;
+	}
+
+	/**
+	 * Looks up a chunk, taking it back from the unused chunks if needed.
+	 * Called with the lock held.
+	 */
+	private Blob find(String key) {
+		Blob blob = blobs.get(key);
+		if (blob == null) {
+			blob = unused.remove(key);
+			if (blob != null)
+				blobs.put(key, blob);
+		}
+		return blob;
+	}
+
+	/**
+	 * Stores an encrypted chunk, unless an identical one is stored already,
+	 * and pins it.
+	 *
+	 * @throws IOException
+	 *             If the chunk cannot be written
+	 */
+	void store(Manifest.Entry entry, byte[] data) throws IOException {
+		String key = hex(entry.getHash());
+		File file = file(key);
+		synchronized (this) {
+			Blob blob = find(key);
+			if (blob != null) {
+				blob.pins++;
+				return;
+			}
+		}
+		// Written before it is added, so a pinned chunk is always on disk.
+		file.getParentFile().mkdirs();
+		File tmp = File.createTempFile(key, ".tmp", file.getParentFile());
+		try {
+			Files.write(tmp.toPath(), data);
+			synchronized (this) {
+				Blob blob = find(key);
+				if (blob == null) {
+					Files.move(tmp.toPath(), file.toPath(),
+							StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.ATOMIC_MOVE);
+					blob = new Blob(entry);
+					blobs.put(key, blob);
+				}
+				blob.pins++;
+			}
+		} finally {
+			Files.deleteIfExists(tmp.toPath());
+		}
+	}
+
+	/**
+	 * Reads an encrypted chunk.
+	 *
+	 * @param hash
+	 *            The hash of the chunk
+	 * @return The chunk, as it was stored
+	 * @throws IOException
+	 *             If the chunk is not in the store, or cannot be read
+	 */
+	byte[] load(byte[] hash) throws IOException {
+		String key = hex(hash);
+		synchronized (this) {
+			if (!blobs.containsKey(key) && !unused.containsKey(key))
+				throw new FileNotFoundException("chunk " + key
+						+ " is not stored");
+		}
+		return Files.readAllBytes(file(key).toPath());
+	}
+
+	/**
+	 * Records the chunks of a file, and turns their pins into references. The
+	 * references of the previous version of the file are released afterwards,
+	 * so chunks both versions share are kept.<br>
+	 * The record is on disk when this returns. If it cannot be written,
+	 * nothing changes, and the chunks stay pinned.
+	 *
+	 * @param identifier
+	 *            The identifier of the file
+	 * @param owner
+	 *            The owner of the file
+	 * @param entries
+	 *            The chunks of the file, all of which are pinned
+	 * @throws IOException
+	 *             If the journal cannot be written
+	 */
+	synchronized void commit(String identifier, int owner,
+			List<Manifest.Entry> entries) throws IOException {
+		Refs refs = new Refs(identifier, owner, entries);
+		append(fileRecord(refs));
+		for (Manifest.Entry e : entries) {
+			Blob blob = blobs.get(hex(e.getHash()));
+			blob.pins--;
+			blob.refs.merge(owner, 1, Integer::sum);
+		}
+		Refs old = files.put(identifier, refs);
+		if (old != null)
+			dereference(old);
+	}
+
+	/**
+	 * Releases pins of chunks whose file was not committed.
+	 */
+	synchronized void unpin(List<Manifest.Entry> entries) {
+		for (Manifest.Entry e : entries) {
+			String key = hex(e.getHash());
+			Blob blob = blobs.get(key);
+			if (blob != null) {
+				blob.pins--;
+				removeIfUnused(key, blob);
+			}
+		}
+	}
+
+	/**
+	 * Forgets a file. The chunks no other file refers to are removed after
+	 * the grace period, unless they are claimed again.
+	 *
+	 * @param identifier
+	 *            The identifier of the file
+	 * @return true if the file was known
+	 * @throws IOException
+	 *             If the journal cannot be written
+	 */
+	synchronized boolean release(String identifier) throws IOException {
+		Refs refs = files.get(identifier);
+		if (refs == null)
+			return false;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(FILE_DEL);
+		record.writeUTF(identifier);
+		append(bytes);
+		files.remove(identifier);
+		dereference(refs);
+		return true;
+	}
+
+	/**
+	 * @return The chunks of a file, or null if it is not known
+	 */
+	synchronized List<Manifest.Entry> getEntries(String identifier) {
+		Refs refs = files.get(identifier);
+		return refs == null ? null : refs.entries;
+	}
+
+	/**
+	 * @return The amount of references from files of an owner to a chunk
+	 */
+	synchronized int references(byte[] hash, int owner) {
+		Blob blob = blobs.get(hex(hash));
+		return blob == null ? 0 : blob.refs.getOrDefault(owner, 0);
+	}
+
+	private void dereference(Refs refs) {
+		for (Manifest.Entry e : refs.entries) {
+			String key = hex(e.getHash());
+			Blob blob = blobs.get(key);
+			if (blob == null)
+				continue;
+			blob.release(refs.owner);
+			removeIfUnused(key, blob);
+		}
+	}
+
+	/**
+	 * Moves a chunk no file refers to to the unused chunks. Its file is
+	 * touched, so the grace period starts now, also after a restart.
+	 */
+	private void removeIfUnused(String key, Blob blob) {
+		if (blob.pins > 0 || !blob.refs.isEmpty())
+			return;
+		blobs.remove(key);
+		unused.put(key, blob);
+		if (!file(key).setLastModified(System.currentTimeMillis()))
+			Logger.logError("Unable to touch chunk " + key);
+	}
+
+	/**
+	 * Removes the chunks on disk that no file referred to during the grace
+	 * period. Should be called regularly.
+	 */
+	void sweep() {
+		long before = System.currentTimeMillis() - grace;
+		int removed = 0;
+		try (Stream<Path> paths = Files.walk(dir.toPath(), 2)) {
+			for (Path p : (Iterable<Path>) paths::iterator) {
+				if (!Files.isRegularFile(p)
+						|| p.getParent().equals(dir.toPath()))
+					continue;
+				String name = p.getFileName().toString();
+				synchronized (this) {
+					if (!blobs.containsKey(name)
+							&& p.toFile().lastModified() < before) {
+						unused.remove(name);
+						Files.deleteIfExists(p);
+						removed++;
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			Logger.logError("Unable to clean the blob store: " + e);
+		}
+		synchronized (this) {
+			// Also forgets chunks that were removed by hand.
+			unused.keySet().removeIf(k -> !file(k).exists());
+		}
+		if (removed > 0)
+			Logger.log("Removed " + removed + " unused chunks.");
+	}
+
+	/**
+	 * Appends a record to the journal, prefixed with its length, and syncs
+	 * it to disk. If that fails, the journal is cut back to where it was, so
+	 * it does not end in a partial record that later records would follow.
+	 */
+	private void append(ByteArrayOutputStream record) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4 + record.size());
+		buffer.putInt(record.size());
+		buffer.put(record.toByteArray());
+		buffer.flip();
+		long end = journal.size();
+		try {
+			while (buffer.hasRemaining())
+				journal.write(buffer);
+			journal.force(false);
+		} catch (IOException e) {
+			try {
+				journal.truncate(end);
+			} catch (IOException f) {
+				e.addSuppressed(f);
+			}
+			throw e;
+		}
+	}
+
+	private File file(String key) {
+		return new File(new File(dir, key.substring(0, 2)), key);
+	}
+
+	/**
+	 * Applies all records in the journal. A partially written record at the
+	 * end (e.g. after a power failure) is cut off. Every record is prefixed
+	 * with its length, so the end of the last complete record is known.
+	 *
+	 * @return The amount of records read
+	 */
+	private long replay() throws IOException {
+		if (!journalFile.exists())
+			return 0;
+		long records = 0;
+		long valid = 0;
+		long size = journalFile.length();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(journalFile)))) {
+			while (true) {
+				// Only the end of the file before a record is a clean end; in
+				// the middle of the length, it is a partial record too.
+				int first = in.read();
+				if (first == -1)
+					break;
+				int length = first << 24 | in.readUnsignedByte() << 16
+						| in.readUnsignedByte() << 8 | in.readUnsignedByte();
+				if (length <= 0)
+					throw new IOException("Corrupt blob journal length "
+							+ length + " at " + valid);
+				if (valid + 4 + length > size)
+					throw new EOFException();
+				byte[] record = new byte[length];
+				in.readFully(record);
+				DataInputStream r = new DataInputStream(
+						new ByteArrayInputStream(record));
+				int op = r.read();
+				if (op == FILE_PUT) {
+					String identifier = r.readUTF();
+					int owner = r.readInt();
+					int count = r.readInt();
+					List<Manifest.Entry> entries = new ArrayList<>(count);
+					for (int i = 0; i < count; i++)
+						entries.add(readEntry(r));
+					Refs old = files.put(identifier, new Refs(identifier,
+							owner, entries));
+					for (Manifest.Entry e : entries) {
+						String key = hex(e.getHash());
+						Blob blob = find(key);
+						if (blob == null) {
+							blob = new Blob(e);
+							blobs.put(key, blob);
+						}
+						blob.refs.merge(owner, 1, Integer::sum);
+					}
+					if (old != null)
+						dereferenceOnly(old);
+				} else if (op == FILE_DEL) {
+					Refs old = files.remove(r.readUTF());
+					if (old != null)
+						dereferenceOnly(old);
+				} else
+					throw new IOException("Corrupt blob journal record " + op
+							+ " at " + valid);
+				records++;
+				valid += 4 + length;
+			}
+		} catch (EOFException e) {
+			Logger.logError("Blob journal ends in an incomplete record; truncating to "
+					+ valid + " bytes.");
+			try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+				raf.setLength(valid);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Drops references while replaying; chunks without references are
+	 * removed from disk by <code>sweep()</code>, once their grace period is
+	 * over.
+	 */
+	private void dereferenceOnly(Refs refs) {
+		for (Manifest.Entry e : refs.entries) {
+			String key = hex(e.getHash());
+			Blob blob = blobs.get(key);
+			if (blob == null)
+				continue;
+			blob.release(refs.owner);
+			if (blob.refs.isEmpty())
+				unused.put(key, blobs.remove(key));
+		}
+	}
+
+	/**
+	 * Rewrites the journal so it only contains the current files.
+	 */
+	private void compact() throws IOException {
+		File tmp = new File(journalFile.getPath() + ".tmp");
+		try (FileOutputStream file = new FileOutputStream(tmp);
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(file))) {
+			for (Refs refs : files.values()) {
+				ByteArrayOutputStream record = fileRecord(refs);
+				out.writeInt(record.size());
+				record.writeTo(out);
+			}
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(tmp.toPath(), journalFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		Logger.log("Compacted blob store journal.");
+	}
+
+	private static ByteArrayOutputStream fileRecord(Refs refs)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(FILE_PUT);
+		record.writeUTF(refs.identifier);
+		record.writeInt(refs.owner);
+		record.writeInt(refs.entries.size());
+		for (Manifest.Entry e : refs.entries) {
+			record.write(e.getHash());
+			record.writeLong(e.getPlainLength());
+			record.writeInt(e.getLength());
+			record.writeInt(e.getStoredLength());
+			record.writeBoolean(e.isCompressed());
+		}
+		return bytes;
+	}
+
+	private static Manifest.Entry readEntry(DataInputStream in)
+			throws IOException {
+		byte[] hash = new byte[Manifest.HASH_LENGTH];
+		in.readFully(hash);
+		return new Manifest.Entry(in.readLong(), in.readInt(), in.readInt(),
+				in.readBoolean(), hash);
+	}
+
+	/**
+	 * Closes the journal.
+	 */
+	synchronized void close() {
+		try {
+			journal.close();
+		} catch (IOException e) {
+			Logger.logError(e);
+		}
+	}
+
+	/**
+	 * Summarises the contents of the store.
+	 */
+	synchronized String statistics() {
+		long stored = 0;
+		for (Blob blob : blobs.values())
+			stored += blob.stored;
+		return "BlobStore[files=" + files.size() + ", chunks=" + blobs.size()
+				+ ", unused=" + unused.size() + ", bytes=" + stored
+				+ ", reused=" + reused.get() + "]";
+	}
+
+	static String hex(byte[] hash) {
+		char[] out = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			out[2 * i] = HEX[(hash[i] >> 4) & 0xF];
+			out[2 * i + 1] = HEX[hash[i] & 0xF];
+		}
+		return new String(out);
+	}
+
+	/**
+	 * A stored chunk, with its references per owner.
+	 */
+	static final class Blob {
+		final Manifest.Entry entry;
+		final long stored;
+		private final Map<Integer, Integer> refs = new HashMap<>();
+		// The owners who referred to the chunk before, but no longer do.
+		private final Set<Integer> released = new HashSet<>();
+		private int pins = 0;
+
+		private Blob(Manifest.Entry entry) {
+			this.entry = entry;
+			stored = entry.getStoredLength();
+		}
+
+		private void release(int owner) {
+			if (refs.computeIfPresent(owner, (o, n) -> n == 1 ? null : n - 1) == null)
+				released.add(owner);
+		}
+
+		private boolean ownedBy(int owner) {
+			return refs.containsKey(owner) || released.contains(owner);
+		}
+	}
+
+	/**
+	 * Small bean for the chunks of a file.
+	 */
+	private static final class Refs {
+		private final String identifier;
+		private final int owner;
+		private final List<Manifest.Entry> entries;
+
+		private Refs(String identifier, int owner, List<Manifest.Entry> entries) {
+			this.identifier = identifier;
+			this.owner = owner;
+			this.entries = entries;
+		}
+	}
+}
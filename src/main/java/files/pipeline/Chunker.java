@@ -0,0 +1,122 @@
+package files.pipeline;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits a stream into chunks at positions chosen by its content, with a
+ * Gear rolling hash (as in FastCDC).<br>
+ * A chunk ends where the hash of the last 64 bytes matches a mask, so the
+ * boundaries move along with the data: inserting or removing bytes only
+ * changes the chunks around the change, and all other chunks, and therefore
+ * their hashes, stay the same. Chunks are at least <code>min</code> and at
+ * most <code>max</code> bytes. Up to the average size a stricter mask is
+ * used, and after it a looser one, which keeps most chunks close to the
+ * average.<br>
+ * Only <code>max</code> bytes of the stream are kept in memory.
+ *
+ * @author Dennis
+ *
+ */
+final class Chunker {
+
+	private static final long[] GEAR = new long[256];
+
+	static {
+		// A fixed seed: the boundaries must not change between runs.
+		Random random = new Random(0x5069436c6f7564L);
+		for (int i = 0; i < GEAR.length; i++)
+			GEAR[i] = random.nextLong();
+	}
+
+	private final InputStream in;
+	private final int min, avg, max;
+	private final long strict, loose;
+	private final byte[] buf;
+	private int filled = 0;
+	private boolean eof = false;
+
+	/**
+	 * @param in
+	 *            The stream to split
+	 * @param min
+	 *            The minimum chunk size
+	 * @param avg
+	 *            The average chunk size, a power of two
+	 * @param max
+	 *            The maximum chunk size
+	 */
+	Chunker(InputStream in, int min, int avg, int max) {
+		this.in = in;
+		this.min = min;
+		this.avg = avg;
+		this.max = max;
+		int bits = Integer.numberOfTrailingZeros(avg);
+		strict = mask(bits + 2);
+		loose = mask(bits - 2);
+		buf = new byte[max];
+	}
+
+	/**
+	 * @return The next chunk, or null at the end of the stream
+	 * @throws IOException
+	 *             If the stream cannot be read
+	 */
+	byte[] next() throws IOException {
+		fill();
+		if (filled == 0)
+			return null;
+		int cut = cut();
+		byte[] chunk = Arrays.copyOf(buf, cut);
+		System.arraycopy(buf, cut, buf, 0, filled - cut);
+		filled -= cut;
+		return chunk;
+	}
+
+	/**
+	 * Finds the end of the chunk at the start of the buffer.
+	 */
+	private int cut() {
+		if (filled <= min)
+			return filled;
+		int end = Math.min(filled, max);
+		int normal = Math.min(end, avg);
+		long hash = 0;
+		int i = min;
+		for (; i < normal; i++) {
+			hash = (hash << 1) + GEAR[buf[i] & 0xFF];
+			if ((hash & strict) == 0)
+				return i + 1;
+		}
+		for (; i < end; i++) {
+			hash = (hash << 1) + GEAR[buf[i] & 0xFF];
+			if ((hash & loose) == 0)
+				return i + 1;
+		}
+		return end;
+	}
+
+	private void fill() throws IOException {
+		int n;
+		while (!eof && filled < buf.length) {
+			n = in.read(buf, filled, buf.length - filled);
+			if (n < 0)
+				eof = true;
+			else
+				filled += n;
+		}
+	}
+
+	/**
+	 * @return A mask with <code>bits</code> bits set, spread over the upper
+	 *         bits of the hash, which depend on the most bytes
+	 */
+	private static long mask(int bits) {
+		long mask = 0;
+		for (int i = 0; i < bits; i++)
+			mask |= 1L << (63 - 2 * i);
+		return mask;
+	}
+}
@@ -0,0 +1,40 @@
+package files.pipeline;
+
+import java.io.IOException;
+
+/**
+ * Encrypts and decrypts the chunks of the <code>EncryptionPipeline</code>.
+ * The chunks are encrypted on the DE1 SoC (<code>SocCipher</code>); the
+ * pipeline itself does not depend on how.
+ *
+ * @author Dennis
+ *
+ */
+interface Cipher {
+
+	/**
+	 * Encrypts a chunk.
+	 *
+	 * @param data
+	 *            The chunk
+	 * @param length
+	 *            The amount of bytes of <code>data</code> to encrypt
+	 * @return The encrypted chunk, which may be padded
+	 * @throws IOException
+	 *             If the chunk cannot be encrypted
+	 */
+	byte[] encrypt(byte[] data, int length) throws IOException;
+
+	/**
+	 * Decrypts a chunk.
+	 *
+	 * @param data
+	 *            The encrypted chunk
+	 * @param length
+	 *            The length of the chunk before it was encrypted
+	 * @return The chunk, without padding
+	 * @throws IOException
+	 *             If the chunk cannot be decrypted
+	 */
+	byte[] decrypt(byte[] data, int length) throws IOException;
+}
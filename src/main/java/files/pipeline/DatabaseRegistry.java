@@ -0,0 +1,48 @@
+package files.pipeline;
+
+import files.FileDescriptor;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+
+import ssh.sftp.PiFileSystemFactory;
+import db.FileStatementMaker;
+import db.UnknownUserException;
+import db.UserStatementMaker;
+
+/**
+ * Keeps track of encrypted files in the database. Identifies a file by the
+ * name of its owner and its path in the owner's directory.
+ *
+ * @author Dennis
+ *
+ */
+final class DatabaseRegistry implements Registry {
+
+	@Override
+	public String identifier(File file, String user) {
+		String home = user == null ? null : PiFileSystemFactory.homeDirs
+				.get(user);
+		if (home == null)
+			return null;
+		Path relative = Paths.get(home).relativize(file.toPath());
+		return user + "/" + relative;
+	}
+
+	@Override
+	public int owner(String user) throws SQLException, UnknownUserException {
+		return UserStatementMaker.getId(user);
+	}
+
+	@Override
+	public void register(FileDescriptor fd) throws SQLException {
+		FileStatementMaker.putDescriptor(fd);
+	}
+
+	@Override
+	public void unregister(FileDescriptor fd) throws SQLException {
+		FileStatementMaker.deleteDescriptor(fd);
+	}
+}
@@ -0,0 +1,675 @@
+package files.pipeline;
+
+import files.FileDescriptor;
+import files.pipeline.Job.Chunk;
+import global.Logger;
+import global.PiCloudConstants;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import db.UnknownUserException;
+
+/**
+ * Encrypts new files on the DE1 SoC, in four stages:
+ * <ol>
+ * <li><b>Read</b>: reads the file as a stream of chunks, cut at positions
+ * chosen by a <code>Chunker</code></li>
+ * <li><b>Compress</b>: deflates each chunk, if <code>-Dpicloud.compress</code>
+ * is set</li>
+ * <li><b>Encrypt</b>: sends each chunk to the SoC</li>
+ * <li><b>Persist</b>: adds each chunk to the <code>BlobStore</code>; after
+ * the last one it replaces the file with its <code>Manifest</code>, and
+ * registers its <code>FileDescriptor</code></li>
+ * </ol>
+ * Chunks are identified by the hash of their plain content. A chunk which is
+ * in the store already, because the same data was uploaded before by any
+ * user, skips the compress, encrypt and persist stages: it only costs a hash
+ * and a reference in the store. As the chunk boundaries depend on the
+ * content, a modified file mostly consists of the same chunks as before, and
+ * only the chunks around the changes are encrypted and stored again.<br>
+ * A file that is a manifest already, because an encrypted file was moved or
+ * copied, is not encrypted again: the new path takes over the chunks the
+ * manifest names, which the store keeps for a while after the old path
+ * released them. Likewise, when data is appended to an encrypted file, only
+ * the appended data is read and encrypted.<br>
+ * Each stage has its own bounded queue and workers, so a large file only
+ * occupies the SoC one chunk at a time, and chunks of other files are
+ * encrypted in between. When a queue is full, the stage before it waits. As
+ * a consequence, the memory used by the pipeline is bounded by its queues,
+ * whatever the size of the files.<br>
+ * <code>submit()</code> never waits: submitted files wait in a list per
+ * user, and the users take turns to have a file read, whenever a read
+ * worker is free. So the thread handling the file events is not held up by
+ * a full pipeline, and a user with many files does not hold up the others.
+ *
+ * @author Dennis
+ *
+ */
+public final class EncryptionPipeline {
+
+	private final Expectations expect;
+	private final Listener listener;
+	private final Cipher cipher;
+	private final Registry registry;
+	private final BlobStore store;
+	private final Stage<Job> read;
+	private final Stage<Chunk> compress, encrypt, persist;
+	// The files waiting to be read, per user, in the order of their turns.
+	private final Map<String, Set<File>> waiting = new LinkedHashMap<>();
+	private final ScheduledExecutorService sweeper = Executors
+			.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "Blob Sweeper");
+				t.setDaemon(true);
+				return t;
+			});
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong encrypted = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * Creates the pipeline and starts its workers.
+	 *
+	 * @param expect
+	 *            Told about the changes the pipeline makes to files, so
+	 *            they can be ignored
+	 * @param listener
+	 *            Told about every file the pipeline is done with
+	 * @throws IOException
+	 *             If the blob store cannot be opened
+	 */
+	public EncryptionPipeline(Expectations expect, Listener listener)
+			throws IOException {
+		this(expect, listener, new File(PiCloudConstants.BLOB_DIR),
+				new SocCipher(), new DatabaseRegistry());
+	}
+
+	/**
+	 * Creates a pipeline that encrypts with the given cipher, and registers
+	 * files in the given registry.
+	 *
+	 * @param expect
+	 *            Told about the changes the pipeline makes to files, so
+	 *            they can be ignored
+	 * @param listener
+	 *            Told about every file the pipeline is done with
+	 * @param blobs
+	 *            The directory of the blob store
+	 * @param cipher
+	 *            Encrypts the chunks
+	 * @param registry
+	 *            Keeps track of the encrypted files
+	 * @throws IOException
+	 *             If the blob store cannot be opened
+	 */
+	EncryptionPipeline(Expectations expect, Listener listener, File blobs,
+			Cipher cipher, Registry registry) throws IOException {
+		this.expect = expect;
+		this.listener = listener;
+		this.cipher = cipher;
+		this.registry = registry;
+		store = new BlobStore(blobs, PiCloudConstants.BLOB_GRACE_PERIOD);
+		sweeper.scheduleWithFixedDelay(store::sweep,
+				PiCloudConstants.BLOB_SWEEP_INTERVAL,
+				PiCloudConstants.BLOB_SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+		int queue = PiCloudConstants.PIPELINE_QUEUE_SIZE;
+		read = new Stage<>("Read", PiCloudConstants.PIPELINE_READ_THREADS,
+				PiCloudConstants.PIPELINE_READ_THREADS, this::readNext,
+				this::fail);
+		compress = new Stage<>("Compress",
+				PiCloudConstants.PIPELINE_COMPRESS_THREADS, queue,
+				this::compress, (c, e) -> fail(c.job, e));
+		encrypt = new Stage<>("Encrypt",
+				PiCloudConstants.PIPELINE_ENCRYPT_THREADS, queue,
+				this::encrypt, (c, e) -> fail(c.job, e));
+		persist = new Stage<>("Persist",
+				PiCloudConstants.PIPELINE_PERSIST_THREADS, queue,
+				this::persist, (c, e) -> fail(c.job, e));
+	}
+
+	/**
+	 * Adds a file to the pipeline. A file that is waiting to be read already
+	 * is only read once.
+	 *
+	 * @param file
+	 *            The file to encrypt
+	 * @param user
+	 *            The owner of the file
+	 */
+	public void submit(File file, String user) {
+		synchronized (waiting) {
+			if (!waiting.computeIfAbsent(user, u -> new LinkedHashSet<>()).add(
+					file))
+				return;
+			active.incrementAndGet();
+		}
+		dispatch();
+	}
+
+	/**
+	 * Moves waiting files to the read stage while it has room, one file of
+	 * each user in turn.
+	 */
+	private void dispatch() {
+		synchronized (waiting) {
+			while (!waiting.isEmpty()) {
+				Map.Entry<String, Set<File>> turn = waiting.entrySet()
+						.iterator().next();
+				Iterator<File> files = turn.getValue().iterator();
+				if (!read.offer(new Job(files.next(), turn.getKey())))
+					return;
+				files.remove();
+				// To the back of the line.
+				waiting.remove(turn.getKey());
+				if (!turn.getValue().isEmpty())
+					waiting.put(turn.getKey(), turn.getValue());
+			}
+		}
+	}
+
+	private void readNext(Job job) throws Exception {
+		try {
+			read(job);
+		} finally {
+			dispatch();
+		}
+	}
+
+	private void read(Job job) throws Exception {
+		File file = job.file;
+		job.version();
+		long start = adopt(job);
+		if (start > 0 && start < job.size)
+			Logger.log(file + " was appended to; reading from " + start);
+		Stage<Chunk> next = PiCloudConstants.PIPELINE_COMPRESS ? compress
+				: encrypt;
+		MessageDigest sha = MessageDigest.getInstance("SHA-256");
+		long total = start;
+		try (FileInputStream in = new FileInputStream(file)) {
+			in.getChannel().position(start);
+			Chunker chunker = new Chunker(in,
+					PiCloudConstants.PIPELINE_CHUNK_MIN,
+					PiCloudConstants.PIPELINE_CHUNK_AVG,
+					PiCloudConstants.PIPELINE_CHUNK_MAX);
+			byte[] data;
+			int index = job.reused();
+			while ((data = chunker.next()) != null) {
+				if (job.hasFailed())
+					return;
+				Chunk chunk = job.chunk(index++, data, sha.digest(data));
+				total += data.length;
+				BlobStore.Blob blob = store.acquire(chunk.hash);
+				if (blob == null)
+					next.put(chunk);
+				else if (!job.pinned(blob.entry)) {
+					store.unpin(Collections.singletonList(blob.entry));
+					return;
+				} else
+					job.stored(chunk, blob.entry);
+			}
+		}
+		if (total != job.size) {
+			// It is still being written; its next event will bring it back.
+			fail(job, new IOException("it changed while it was read"));
+			return;
+		}
+		if (job.readDone())
+			complete(job);
+	}
+
+	/**
+	 * Takes over the chunks of the manifest at the start of a file, if there
+	 * is one: the file was moved or copied, or data was appended to it. Only
+	 * chunks the owner referred to before can be taken over, as anyone could
+	 * write a manifest naming the hashes of other users' chunks. If any of
+	 * them is not available, the whole file is encrypted as it is.
+	 *
+	 * @return The position in the file after the manifest, or 0 if no chunks
+	 *         were taken over
+	 */
+	private long adopt(Job job) throws Exception {
+		Manifest manifest = Manifest.readPrefix(job.file);
+		if (manifest == null)
+			return 0;
+		int owner = registry.owner(job.user);
+		List<Manifest.Entry> acquired = new ArrayList<>();
+		for (Manifest.Entry entry : manifest.getEntries()) {
+			if (store.acquire(entry, owner) == null) {
+				store.unpin(acquired);
+				return 0;
+			}
+			acquired.add(entry);
+		}
+		job.reuse(acquired, manifest.length() == job.size);
+		return manifest.length();
+	}
+
+	private void compress(Chunk chunk) throws InterruptedException {
+		if (chunk.job.hasFailed())
+			return;
+		Deflater deflater = new Deflater();
+		try {
+			deflater.setInput(chunk.data, 0, chunk.length);
+			deflater.finish();
+			byte[] out = new byte[chunk.length];
+			int n = deflater.deflate(out);
+			// Only keep the compressed form if it is actually smaller.
+			if (deflater.finished() && n < chunk.length) {
+				chunk.data = Arrays.copyOf(out, n);
+				chunk.length = n;
+				chunk.compressed = true;
+			}
+		} finally {
+			deflater.end();
+		}
+		encrypt.put(chunk);
+	}
+
+	private void encrypt(Chunk chunk) throws IOException, InterruptedException {
+		Job job = chunk.job;
+		if (job.hasFailed())
+			return;
+		chunk.data = cipher.encrypt(chunk.data, chunk.length);
+		persist.put(chunk);
+	}
+
+	private void persist(Chunk chunk) throws Exception {
+		Job job = chunk.job;
+		if (job.hasFailed())
+			return;
+		Manifest.Entry entry = chunk.entry();
+		store.store(entry, chunk.data);
+		if (!job.pinned(entry))
+			store.unpin(Collections.singletonList(entry));
+		else if (job.stored(chunk, entry))
+			complete(job);
+	}
+
+	/**
+	 * Finishes a job once all of its chunks are stored.
+	 */
+	private void complete(Job job) throws Exception {
+		if (job.hasFailed())
+			return;
+		File file = job.file;
+		if (!job.isVersion(file)) {
+			// Its next event will bring it back.
+			fail(job, new IOException("it changed while it was encrypted"));
+			return;
+		}
+		String identifier = registry.identifier(file, job.user);
+		if (identifier == null) {
+			fail(job, new IOException("unknown owner " + job.user));
+			return;
+		}
+		int owner = registry.owner(job.user);
+		job.finish();
+		// The chunks are committed, and on disk, before the file is replaced
+		// with its manifest, so a manifest never names chunks the store may
+		// remove.
+		if (!job.commit(store, identifier, owner))
+			return;
+		// The state of the file as the pipeline left it.
+		long length = job.size, modified = job.modified;
+		if (!job.adopted) {
+			length = job.output.length();
+			modified = job.output.lastModified();
+			// The chunks are committed, so there is nothing to unpin when
+			// the file is not replaced. Nothing is lost either: the file
+			// stays as it is, and its references are replaced when it is
+			// encrypted again.
+			String error;
+			try {
+				error = replace(job) ? null : "it changed while it was encrypted";
+			} catch (IOException e) {
+				error = e.toString();
+			}
+			if (error != null) {
+				Logger.logError("Unable to replace " + file
+						+ " with its manifest: " + error);
+				job.output.delete();
+				done();
+				return;
+			}
+		}
+		long size = job.manifest.getSize();
+		FileDescriptor fd = new FileDescriptor(identifier, owner, size);
+		try {
+			registry.register(fd);
+		} catch (SQLException e) {
+			// The file is encrypted all the same.
+			Logger.logError("Unable to register " + file + ": " + e);
+		}
+		if (job.adopted)
+			Logger.log("Took over " + file + " ("
+					+ job.manifest.getEntries().size() + " chunks)");
+		else {
+			encrypted.incrementAndGet();
+			bytes.addAndGet(size);
+			Logger.log("Encrypted " + file + " ("
+					+ job.manifest.getEntries().size() + " chunks) in "
+					+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+							- job.started) + "ms");
+		}
+		listener.encrypted(file, job.user, length, modified);
+		done();
+	}
+
+	/**
+	 * Replaces a file with its manifest, if it is still the version the job
+	 * read. The file is moved aside first, so a client cannot change it
+	 * between the check and the replacement. If it did change, it is put
+	 * back, and its event brings it back to the pipeline.
+	 *
+	 * @return false if the file changed
+	 * @throws IOException
+	 *             If the file could not be replaced; it is put back
+	 */
+	private boolean replace(Job job) throws IOException {
+		Path file = job.file.toPath(), aside = job.aside.toPath();
+		expect.expect(job.file);
+		try {
+			Files.move(file, aside, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			expect.withdraw(job.file);
+			throw e;
+		}
+		if (!job.isVersion(job.aside)) {
+			restore(job, false);
+			return false;
+		}
+		expect.expect(job.file);
+		try {
+			// Not over a file a client created in the meantime. An atomic
+			// move replaces whatever is there, so check first.
+			if (Files.exists(file, LinkOption.NOFOLLOW_LINKS))
+				throw new FileAlreadyExistsException(file.toString());
+			Files.move(job.output.toPath(), file,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			expect.withdraw(job.file);
+			restore(job, false);
+			throw e;
+		}
+		// A client that had the file open may have written to it since.
+		if (!job.isVersion(job.aside)) {
+			restore(job, true);
+			return false;
+		}
+		Files.delete(aside);
+		return true;
+	}
+
+	/**
+	 * Puts a file that was moved aside back in its place. Its event is not
+	 * expected, so it is encrypted again.
+	 *
+	 * @param replace
+	 *            Whether to replace the manifest; otherwise a file a client
+	 *            created in the meantime is kept, as it is newer
+	 */
+	private static void restore(Job job, boolean replace) throws IOException {
+		if (!replace
+				&& Files.exists(job.file.toPath(), LinkOption.NOFOLLOW_LINKS))
+			Files.delete(job.aside.toPath());
+		else
+			Files.move(job.aside.toPath(), job.file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Writes the original content of a file to <code>out</code>: the chunks
+	 * its manifest names are loaded from the store, decrypted on the SoC and
+	 * decompressed. A file that is not encrypted is copied as it is, and so
+	 * is data appended to an encrypted file that was not encrypted yet.
+	 *
+	 * @param in
+	 *            The (encrypted) file
+	 * @param out
+	 *            The file to write the original content to
+	 * @throws IOException
+	 *             If a chunk is missing or damaged, or the SoC did not
+	 *             answer
+	 */
+	public void decrypt(File in, File out) throws IOException {
+		Manifest manifest = Manifest.readPrefix(in);
+		if (manifest == null) {
+			Files.copy(in.toPath(), out.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			return;
+		}
+		MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		try (OutputStream os = new BufferedOutputStream(new FileOutputStream(
+				out))) {
+			for (Manifest.Entry entry : manifest.getEntries()) {
+				byte[] data = cipher.decrypt(store.load(entry.getHash()),
+						entry.getLength());
+				if (entry.isCompressed())
+					data = inflate(data, (int) entry.getPlainLength());
+				if (!Arrays.equals(sha.digest(data), entry.getHash()))
+					throw new IOException("a chunk of " + in + " is damaged");
+				os.write(data);
+			}
+			try (FileInputStream rest = new FileInputStream(in)) {
+				rest.getChannel().position(manifest.length());
+				byte[] buf = new byte[8192];
+				int n;
+				while ((n = rest.read(buf)) > 0)
+					os.write(buf, 0, n);
+			}
+		}
+	}
+
+	private static byte[] inflate(byte[] data, int length) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			byte[] out = new byte[length];
+			int n = 0;
+			while (n < length && !inflater.finished()) {
+				int read = inflater.inflate(out, n, length - n);
+				if (read == 0 && inflater.needsInput())
+					break;
+				n += read;
+			}
+			if (n != length)
+				throw new IOException("a chunk could not be decompressed");
+			return out;
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Forgets a deleted file: its descriptor is removed, and the chunks no
+	 * other file refers to are removed once the grace period is over. The
+	 * listener is told once this is done.
+	 * 
+	 * @param file
+	 *            The deleted file
+	 * @param user
+	 *            The owner of the file
+	 */
+	public void removed(File file, String user) {
+		synchronized (waiting) {
+			Set<File> files = waiting.get(user);
+			if (files != null && files.remove(file)) {
+				if (files.isEmpty())
+					waiting.remove(user);
+				done();
+			}
+		}
+		String identifier = registry.identifier(file, user);
+		if (identifier == null)
+			return;
+		try {
+			if (store.release(identifier))
+				registry.unregister(new FileDescriptor(identifier, registry
+						.owner(user), 0));
+		} catch (IOException | SQLException | UnknownUserException e) {
+			Logger.logError("Unable to remove " + file + ": " + e);
+			return;
+		}
+		listener.removed(file, user);
+	}
+
+	private void fail(Job job, Exception e) {
+		List<Manifest.Entry> pins = job.fail(e.toString());
+		if (pins != null) {
+			store.unpin(pins);
+			done();
+		}
+	}
+
+	private void done() {
+		if (active.decrementAndGet() == 0)
+			synchronized (this) {
+				notifyAll();
+			}
+	}
+
+	/**
+	 * Waits for the files in the pipeline to be encrypted.
+	 *
+	 * @param timeout
+	 *            How long to wait (ms)
+	 * @return true if the pipeline is empty
+	 */
+	boolean await(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (this) {
+			long left;
+			while (active.get() > 0
+					&& (left = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					wait(left);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+		return active.get() == 0;
+	}
+
+	/**
+	 * Waits for the files in the pipeline to be encrypted, and stops it.
+	 *
+	 * @param timeout
+	 *            How long to wait (ms)
+	 */
+	public void shutdown(long timeout) {
+		if (!await(timeout))
+			Logger.logError(active.get()
+					+ " files were not encrypted before shutting down.");
+		read.stop();
+		compress.stop();
+		encrypt.stop();
+		persist.stop();
+		sweeper.shutdownNow();
+		store.close();
+	}
+
+	/**
+	 * Summarises the work done by the pipeline.
+	 */
+	public String statistics() {
+		return "EncryptionPipeline[active=" + active.get() + ", encrypted="
+				+ encrypted.get() + ", bytes=" + bytes.get() + "] "
+				+ read.statistics() + " " + compress.statistics() + " "
+				+ encrypt.statistics() + " " + persist.statistics() + " "
+				+ store.statistics();
+	}
+
+	/**
+	 * Is told about the changes the pipeline makes to files, right before it
+	 * makes them, so their events are not mistaken for changes by the user.
+	 */
+	public interface Expectations {
+
+		/**
+		 * Called right before a file is changed.
+		 *
+		 * @param file
+		 *            The file that is about to change
+		 */
+		void expect(File file);
+
+		/**
+		 * Called when a change announced with <code>expect</code> was not
+		 * made after all.
+		 *
+		 * @param file
+		 *            The file that did not change
+		 */
+		void withdraw(File file);
+	}
+
+	/**
+	 * Is told about the files the pipeline is done with, so their new state
+	 * can be recorded. Not told about files that failed, which come back with
+	 * their next change.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called when a file is encrypted, or was encrypted already.
+		 *
+		 * @param file
+		 *            The file, which is a manifest now
+		 * @param user
+		 *            The owner of the file
+		 * @param size
+		 *            The size of the manifest
+		 * @param modified
+		 *            The modification time of the manifest
+		 */
+		void encrypted(File file, String user, long size, long modified);
+
+		/**
+		 * Called when a deleted file is forgotten.
+		 *
+		 * @param file
+		 *            The deleted file
+		 * @param user
+		 *            The owner of the file
+		 */
+		void removed(File file, String user);
+	}
+}
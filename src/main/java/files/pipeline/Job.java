@@ -0,0 +1,255 @@
+package files.pipeline;
+
+import global.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single file on its way through the <code>EncryptionPipeline</code>.<br>
+ * The file is read as a stream of chunks, which go through the compress,
+ * encrypt and persist stages on their own, and may finish in any order.
+ * Chunks which are in the <code>BlobStore</code> already skip those stages.
+ * Once the whole file is read and every chunk is stored, the job is
+ * finished.<br>
+ * Only the chunks in the stages are in memory, so the memory used does not
+ * depend on the size of the file.
+ *
+ * @author Dennis
+ *
+ */
+final class Job {
+
+	final File file;
+	final String user;
+	final File output;
+	// Where the file is moved while it is replaced with its manifest.
+	final File aside;
+	final long started = System.nanoTime();
+	long size, modified;
+	// The version of the file that was read.
+	private FileTime time;
+	private Object key;
+	Manifest manifest;
+	// Whether the file was a manifest already, so it need not be replaced.
+	boolean adopted = false;
+	private int reused = 0;
+	/*
+	 * The chunks read but not yet stored, plus one while reading, so the job
+	 * cannot finish before the last chunk is read.
+	 */
+	private final AtomicInteger pending = new AtomicInteger(1);
+	private final Map<Integer, Manifest.Entry> entries = new TreeMap<>();
+	private final List<Manifest.Entry> pins = new ArrayList<>();
+	private boolean failed = false;
+
+	Job(File file, String user) {
+		this.file = file;
+		this.user = user;
+		output = new File(file.getPath() + ".inc");
+		aside = new File(file.getPath() + ".old.inc");
+	}
+
+	/**
+	 * Records the version of the file that is about to be read.
+	 *
+	 * @throws IOException
+	 *             If the file cannot be read
+	 */
+	void version() throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(file.toPath(),
+				BasicFileAttributes.class);
+		size = attrs.size();
+		time = attrs.lastModifiedTime();
+		modified = time.toMillis();
+		key = attrs.fileKey();
+	}
+
+	/**
+	 * Checks whether a file is still the version that was read: the same
+	 * file, with the same size and modification time, to the precision of
+	 * the file system. As a file is only read once it has not changed for a
+	 * while, any later change gives it another modification time.
+	 *
+	 * @param f
+	 *            The file, or where it was moved to
+	 * @return false if it changed, or is gone
+	 */
+	boolean isVersion(File f) {
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+		} catch (IOException e) {
+			return false;
+		}
+		return attrs.size() == size && attrs.lastModifiedTime().equals(time)
+				&& Objects.equals(attrs.fileKey(), key);
+	}
+
+	/**
+	 * Creates the next chunk.
+	 *
+	 * @param index
+	 *            The position of the chunk in the file
+	 * @param data
+	 *            The content of the chunk
+	 * @param hash
+	 *            The hash of <code>data</code>
+	 */
+	Chunk chunk(int index, byte[] data, byte[] hash) {
+		pending.incrementAndGet();
+		return new Chunk(this, index, data, hash);
+	}
+
+	/**
+	 * Marks the file as completely read.
+	 *
+	 * @return true if all chunks were stored already
+	 */
+	boolean readDone() {
+		return pending.decrementAndGet() == 0;
+	}
+
+	/**
+	 * Registers that a chunk of this job is pinned in the store.
+	 *
+	 * @return false if the job failed, in which case the caller has to unpin
+	 *         the chunk itself
+	 */
+	synchronized boolean pinned(Manifest.Entry entry) {
+		if (failed)
+			return false;
+		pins.add(entry);
+		return true;
+	}
+
+	/**
+	 * Takes over the chunks of the manifest at the start of the file, e.g.
+	 * because an encrypted file was moved or copied, or appended to. The
+	 * chunks must be pinned by the caller. Only called before the first chunk
+	 * is read, so the job cannot have failed yet.
+	 *
+	 * @param entries
+	 *            The chunks of the manifest
+	 * @param whole
+	 *            Whether the manifest is the whole file
+	 */
+	synchronized void reuse(List<Manifest.Entry> entries, boolean whole) {
+		for (Manifest.Entry e : entries)
+			this.entries.put(reused++, e);
+		pins.addAll(entries);
+		adopted = whole;
+	}
+
+	/**
+	 * @return The amount of chunks taken over from a manifest
+	 */
+	synchronized int reused() {
+		return reused;
+	}
+
+	/**
+	 * Records a stored chunk.
+	 *
+	 * @return true if it was the last chunk
+	 */
+	boolean stored(Chunk chunk, Manifest.Entry entry) {
+		synchronized (this) {
+			entries.put(chunk.index, entry);
+		}
+		return pending.decrementAndGet() == 0;
+	}
+
+	/**
+	 * Writes the manifest to the output, unless the file is that manifest
+	 * already. Only called once all chunks are stored.
+	 */
+	synchronized void finish() throws IOException {
+		manifest = new Manifest(new ArrayList<>(entries.values()));
+		if (adopted)
+			return;
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(output)))) {
+			manifest.write(out);
+		}
+	}
+
+	/**
+	 * Commits the chunks of the file to the store, turning the pins of this
+	 * job into references. Once committed, a failure no longer unpins them.
+	 *
+	 * @return false if the job failed before
+	 * @throws IOException
+	 *             If the store cannot record the file; the chunks stay pinned
+	 */
+	synchronized boolean commit(BlobStore store, String identifier, int owner)
+			throws IOException {
+		if (failed)
+			return false;
+		store.commit(identifier, owner, manifest.getEntries());
+		pins.clear();
+		return true;
+	}
+
+	/**
+	 * Marks the job as failed, and removes its output. Only the first
+	 * failure is logged; the remaining chunks are skipped.
+	 *
+	 * @return The chunks to unpin, which is none once the job is committed,
+	 *         or null if the job failed before
+	 */
+	synchronized List<Manifest.Entry> fail(String reason) {
+		if (failed)
+			return null;
+		failed = true;
+		Logger.logError("Unable to encrypt " + file + ": " + reason);
+		output.delete();
+		return new ArrayList<>(pins);
+	}
+
+	synchronized boolean hasFailed() {
+		return failed;
+	}
+
+	/**
+	 * Small bean for a part of a file.
+	 */
+	static final class Chunk {
+		final Job job;
+		final int index;
+		final int plain;
+		final byte[] hash;
+		byte[] data;
+		int length;
+		boolean compressed = false;
+
+		private Chunk(Job job, int index, byte[] data, byte[] hash) {
+			this.job = job;
+			this.index = index;
+			this.data = data;
+			this.hash = hash;
+			plain = data.length;
+			length = data.length;
+		}
+
+		/**
+		 * @return The manifest entry of the encrypted chunk
+		 */
+		Manifest.Entry entry() {
+			return new Manifest.Entry(plain, length, data.length, compressed,
+					hash);
+		}
+	}
+}
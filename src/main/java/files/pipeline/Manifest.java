@@ -0,0 +1,227 @@
+package files.pipeline;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The chunk list of an encrypted file.<br>
+ * The encrypted chunks themselves are kept in the <code>BlobStore</code>; in
+ * the user's directory, an encrypted file is replaced by its manifest. It
+ * starts with <code>MAGIC</code>, followed by the manifest, and a footer with
+ * the position of the manifest and <code>MAGIC</code> again. The manifest
+ * lists, for every chunk, its length in the original file, its length before
+ * and after padding, whether it is compressed, and the SHA-256 hash of its
+ * plain content, which is also its name in the store.<br>
+ * Any file can start with <code>MAGIC</code>, so a file is only taken for a
+ * manifest if its whole layout is consistent. Data appended to a manifest
+ * (e.g. by a program writing a log) is recognised as well, so only the
+ * appended data has to be encrypted.
+ *
+ * @author Dennis
+ *
+ */
+public final class Manifest {
+
+	/**
+	 * Marks encrypted files.
+	 */
+	public static final byte[] MAGIC = "PiCloud2"
+			.getBytes(StandardCharsets.US_ASCII);
+	static final int HASH_LENGTH = 32;
+	private static final int HEADER = 8 + 4 + 8;
+	private static final int ENTRY = 8 + 4 + 4 + 1 + HASH_LENGTH;
+	private static final int FOOTER = 8 + 8;
+
+	private final List<Entry> entries = new ArrayList<>();
+	private long size = 0;
+
+	Manifest() {
+	}
+
+	Manifest(List<Entry> entries) {
+		entries.forEach(this::add);
+	}
+
+	void add(Entry entry) {
+		entries.add(entry);
+		size += entry.plain;
+	}
+
+	/**
+	 * @return The chunks, in order
+	 */
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * @return The size of the original file
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The length of the manifest when written
+	 */
+	long length() {
+		return HEADER + (long) ENTRY * entries.size() + FOOTER;
+	}
+
+	/**
+	 * Writes the encrypted form of a file.
+	 *
+	 * @param out
+	 *            The encrypted file
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.write(MAGIC);
+		out.writeInt(entries.size());
+		out.writeLong(size);
+		for (Entry e : entries) {
+			out.writeLong(e.plain);
+			out.writeInt(e.length);
+			out.writeInt(e.stored);
+			out.writeBoolean(e.compressed);
+			out.write(e.hash);
+		}
+		out.writeLong(MAGIC.length);
+		out.write(MAGIC);
+	}
+
+	/**
+	 * Reads the manifest of an encrypted file.
+	 *
+	 * @param file
+	 *            The encrypted file
+	 * @return The manifest
+	 * @throws IOException
+	 *             If the file cannot be read, or is not an encrypted file
+	 */
+	public static Manifest read(File file) throws IOException {
+		Manifest manifest = readPrefix(file);
+		if (manifest == null || manifest.length() != file.length())
+			throw new IOException(file + " is not encrypted");
+		return manifest;
+	}
+
+	/**
+	 * Reads the manifest at the start of a file, which may be followed by
+	 * other data. The file must start with a complete manifest: its header,
+	 * entries and footer must agree with each other.
+	 *
+	 * @param file
+	 *            The file
+	 * @return The manifest, which ends at <code>length()</code>, or null if
+	 *         the file does not start with a manifest
+	 * @throws IOException
+	 *             If the file cannot be read
+	 */
+	static Manifest readPrefix(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			long available = raf.length();
+			if (available < HEADER + FOOTER)
+				return null;
+			DataInputStream in = new DataInputStream(
+					Channels.newInputStream(raf.getChannel()));
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!isMagic(magic))
+				return null;
+			int count = in.readInt();
+			long size = in.readLong();
+			if (count < 0
+					|| HEADER + (long) ENTRY * count + FOOTER > available)
+				return null;
+			Manifest manifest = new Manifest();
+			for (int i = 0; i < count; i++) {
+				long plain = in.readLong();
+				int length = in.readInt();
+				int stored = in.readInt();
+				boolean compressed = in.readBoolean();
+				byte[] hash = new byte[HASH_LENGTH];
+				in.readFully(hash);
+				if (plain <= 0 || length <= 0 || stored < length)
+					return null;
+				manifest.add(new Entry(plain, length, stored, compressed, hash));
+			}
+			long offset = in.readLong();
+			in.readFully(magic);
+			if (offset != MAGIC.length || !isMagic(magic)
+					|| size != manifest.size)
+				return null;
+			return manifest;
+		}
+	}
+
+	/**
+	 * @return true if <code>data</code> starts with <code>MAGIC</code>
+	 */
+	private static boolean isMagic(byte[] data) {
+		if (data.length < MAGIC.length)
+			return false;
+		for (int i = 0; i < MAGIC.length; i++)
+			if (data[i] != MAGIC[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Small bean for a chunk in the manifest.
+	 */
+	public static final class Entry {
+		private final long plain;
+		private final int length, stored;
+		private final boolean compressed;
+		private final byte[] hash;
+
+		Entry(long plain, int length, int stored, boolean compressed,
+				byte[] hash) {
+			this.plain = plain;
+			this.length = length;
+			this.stored = stored;
+			this.compressed = compressed;
+			this.hash = hash;
+		}
+
+		/**
+		 * @return The size of the chunk in the original file
+		 */
+		public long getPlainLength() {
+			return plain;
+		}
+
+		/**
+		 * @return The size of the chunk before padding, after compression
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * @return The size of the encrypted chunk
+		 */
+		public int getStoredLength() {
+			return stored;
+		}
+
+		public boolean isCompressed() {
+			return compressed;
+		}
+
+		/**
+		 * @return The SHA-256 hash of the chunk in the original file
+		 */
+		public byte[] getHash() {
+			return hash.clone();
+		}
+	}
+}
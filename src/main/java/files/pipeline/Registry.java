@@ -0,0 +1,50 @@
+package files.pipeline;
+
+import files.FileDescriptor;
+
+import java.io.File;
+import java.sql.SQLException;
+
+import db.UnknownUserException;
+
+/**
+ * Keeps track of the files the <code>EncryptionPipeline</code> encrypted,
+ * and of who they belong to. Backed by the database
+ * (<code>DatabaseRegistry</code>).
+ *
+ * @author Dennis
+ *
+ */
+interface Registry {
+
+	/**
+	 * @return The identifier of a user's file, or null if the user is
+	 *         unknown
+	 */
+	String identifier(File file, String user);
+
+	/**
+	 * @return The id of a user
+	 * @throws SQLException
+	 *             If the user cannot be looked up
+	 * @throws UnknownUserException
+	 *             If there is no such user
+	 */
+	int owner(String user) throws SQLException, UnknownUserException;
+
+	/**
+	 * Adds the descriptor of a file, or replaces the previous one.
+	 *
+	 * @throws SQLException
+	 *             If the descriptor cannot be stored
+	 */
+	void register(FileDescriptor fd) throws SQLException;
+
+	/**
+	 * Removes the descriptor of a file.
+	 *
+	 * @throws SQLException
+	 *             If the descriptor cannot be removed
+	 */
+	void unregister(FileDescriptor fd) throws SQLException;
+}
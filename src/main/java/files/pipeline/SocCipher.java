@@ -0,0 +1,39 @@
+package files.pipeline;
+
+import global.PiCloudConstants;
+
+import java.io.IOException;
+
+import soc.controller.SocManager;
+import soc.model.Message;
+
+/**
+ * Encrypts and decrypts chunks on the DE1 SoC.
+ *
+ * @author Dennis
+ *
+ */
+final class SocCipher implements Cipher {
+
+	@Override
+	public byte[] encrypt(byte[] data, int length) throws IOException {
+		return send(new Message(data, length, false), true).getData();
+	}
+
+	@Override
+	public byte[] decrypt(byte[] data, int length) throws IOException {
+		return send(new Message(data, length, true), false).getActualData();
+	}
+
+	private static Message send(Message msg, boolean encrypt)
+			throws IOException {
+		SocManager soc = SocManager.instance;
+		if (soc == null)
+			throw new IOException("the SoC is not connected");
+		Message reply = soc.sendAndReceiveData(msg, encrypt,
+				PiCloudConstants.PIPELINE_ENCRYPT_TIMEOUT);
+		if (reply == null)
+			throw new IOException("the SoC did not answer");
+		return reply;
+	}
+}
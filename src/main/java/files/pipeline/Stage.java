@@ -0,0 +1,128 @@
+package files.pipeline;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * A stage of the <code>EncryptionPipeline</code>: a bounded queue, and a
+ * fixed amount of workers taking items from it.<br>
+ * <code>put()</code> blocks while the queue is full, so a slow stage holds
+ * up the stage before it; <code>offer()</code> does not wait.
+ *
+ * @author Dennis
+ *
+ * @param <T>
+ *            The type of item the stage processes
+ */
+final class Stage<T> {
+
+	private final String name;
+	private final BlockingQueue<T> queue;
+	private final Thread[] workers;
+	private final Worker<T> worker;
+	private final BiConsumer<T, Exception> onFailure;
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private volatile boolean stop = false;
+
+	/**
+	 * Creates the stage and starts its workers.
+	 *
+	 * @param name
+	 *            The name of the stage, used for its threads
+	 * @param threads
+	 *            The amount of workers
+	 * @param capacity
+	 *            The amount of items that may wait in the queue
+	 * @param worker
+	 *            What to do with an item
+	 * @param onFailure
+	 *            What to do with an item the worker failed on
+	 */
+	Stage(String name, int threads, int capacity, Worker<T> worker,
+			BiConsumer<T, Exception> onFailure) {
+		this.name = name;
+		this.worker = worker;
+		this.onFailure = onFailure;
+		queue = new ArrayBlockingQueue<>(capacity);
+		workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(this::work, name + " Worker " + (i + 1));
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Adds an item, waiting for room in the queue if needed.
+	 *
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting
+	 */
+	void put(T item) throws InterruptedException {
+		queue.put(item);
+	}
+
+	/**
+	 * Adds an item if there is room in the queue.
+	 *
+	 * @return false if the queue is full
+	 */
+	boolean offer(T item) {
+		return queue.offer(item);
+	}
+
+	private void work() {
+		while (!stop) {
+			T item;
+			try {
+				item = queue.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			try {
+				worker.process(item);
+				processed.incrementAndGet();
+			} catch (Exception e) {
+				failed.incrementAndGet();
+				onFailure.accept(item, e);
+			}
+		}
+	}
+
+	/**
+	 * Stops the workers. Items still in the queue are discarded.
+	 */
+	void stop() {
+		stop = true;
+		for (Thread t : workers)
+			t.interrupt();
+	}
+
+	/**
+	 * Summarises the amount of items processed.
+	 */
+	String statistics() {
+		return name + "[queued=" + queue.size() + ", processed="
+				+ processed.get() + ", failed=" + failed.get() + "]";
+	}
+
+	/**
+	 * What a stage does with its items.
+	 *
+	 * @param <T>
+	 *            The type of item
+	 */
+	interface Worker<T> {
+
+		/**
+		 * Processes an item, passing it on to the next stage if there is one.
+		 *
+		 * @throws Exception
+		 *             If the item cannot be processed
+		 */
+		void process(T item) throws Exception;
+	}
+}
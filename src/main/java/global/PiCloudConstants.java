@@ -1,6 +1,46 @@
 package global;
 
 public class PiCloudConstants {
-	public static final int MAX_FILE_SIZE = 52428800; //50MiB
+	public static final long MAX_FILE_SIZE = Long.getLong("picloud.max.file.size", 52428800L); //bytes, 0 for no limit
 	public static final int TEMP_FILE_DURATION = 30;
+	public static final long TEMP_FILE_TICK = 100; //ms
+	public static final int TEMP_FILE_WHEEL_SIZE = 512;
+	public static final int DB_POOL_SIZE = 4;
+	public static final long DB_POOL_TIMEOUT = 5000; //ms
+	public static final int DB_STATEMENT_CACHE_SIZE = 32;
+	public static final int DB_FETCH_SIZE = 256;
+	public static final int DB_BATCH_SIZE = 1000;
+	public static final int USER_CACHE_SIZE = 4096;
+	public static final int USER_ID_BLOCK_SIZE = 16;
+	public static final int DB_EXECUTOR_QUEUE_SIZE = 64;
+	public static final long DB_TASK_TIMEOUT = 10000; //ms
+	public static final long DB_SLOW_QUERY_THRESHOLD = 100; //ms
+	public static final int DESCRIPTOR_INDEX_SIZE = 100000;
+	public static final int PASSWORD_HASH_COST = Integer.getInteger("picloud.hash.cost", 1); //SHA3 rounds
+	public static final int HASH_THREADS = Runtime.getRuntime().availableProcessors();
+	public static final int HASH_QUEUE_SIZE = 32;
+	public static final long EVENT_COALESCE_WINDOW = 250; //ms
+	public static final long EVENT_COALESCE_MAX_DELAY = 5000; //ms
+	public static final int EVENT_BATCH_SIZE = 256;
+	public static final long EXPECTATION_TIMEOUT = 60000; //ms
+	public static final String SNAPSHOT_DIR = System.getProperty("picloud.snapshots", "snapshots");
+	public static final long SNAPSHOT_SAVE_INTERVAL = 30000; //ms
+	public static final int RECONCILE_THREADS = Runtime.getRuntime().availableProcessors();
+	public static final int PIPELINE_QUEUE_SIZE = 64;
+	public static final int PIPELINE_CHUNK_MIN = 16384; //bytes
+	public static final int PIPELINE_CHUNK_AVG = 65536; //bytes, a power of two
+	public static final int PIPELINE_CHUNK_MAX = 262144; //bytes
+	public static final int PIPELINE_READ_THREADS = 2;
+	public static final int PIPELINE_COMPRESS_THREADS = Runtime.getRuntime().availableProcessors();
+	public static final int PIPELINE_ENCRYPT_THREADS = 1; //the SoC handles one message at a time
+	public static final int PIPELINE_PERSIST_THREADS = 2;
+	public static final long PIPELINE_ENCRYPT_TIMEOUT = 10000; //ms
+	public static final long PIPELINE_SHUTDOWN_TIMEOUT = 5000; //ms
+	public static final boolean PIPELINE_COMPRESS = Boolean.getBoolean("picloud.compress");
+	public static final String BLOB_DIR = System.getProperty("picloud.blobs", "blobs");
+	public static final long BLOB_GRACE_PERIOD = 3600000; //ms, how long unreferenced chunks are kept
+	public static final long BLOB_SWEEP_INTERVAL = 600000; //ms
+	public static final String WATCH_BACKEND = System.getProperty("picloud.watch", "auto"); //auto, inotify or nio
+	public static final String STORAGE_BACKEND = System.getProperty("picloud.storage", "postgres"); //postgres or embedded
+	public static final String EMBEDDED_STORAGE_FILE = System.getProperty("picloud.storage.file", "piCloud.db");
 }
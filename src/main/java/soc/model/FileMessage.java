@@ -1,28 +1,48 @@
 package soc.model;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 
+/**
+ * A file which can be sent to the DE1 as a single <code>Message</code>.<br>
+ * The file is only read when the message is asked for, so a FileMessage can
+ * also be used to refer to a file of any size. Large files should be
+ * encrypted by the <code>EncryptionPipeline</code>, one chunk at a time.
+ */
 public class FileMessage {
 
-	private final Message msg;
 	private final File file;
 	private final int id;
+	private final boolean encrypted;
+	private Message msg;
 
 	public FileMessage(File file, int id, boolean encrypted) throws IOException {
-		if (file.length() > Integer.MAX_VALUE)
-			throw new IllegalArgumentException("File too long!");
-		FileInputStream fis = new FileInputStream(file);
-		byte[] data = new byte[(int) file.length()];
-		fis.read(data);
-		fis.close();
 		this.id = id;
 		this.file = file;
-		msg = new Message(data, encrypted);
+		this.encrypted = encrypted;
 	}
 
-	public Message getMessage() {
+	/**
+	 * Reads the file into a message, the first time this is called.
+	 * 
+	 * @throws IOException
+	 *             If the file cannot be read
+	 * @throws IllegalArgumentException
+	 *             If the file does not fit in a single message
+	 */
+	public synchronized Message getMessage() throws IOException {
+		if (msg == null) {
+			if (file.length() > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("File too long!");
+			byte[] data = new byte[(int) file.length()];
+			try (DataInputStream in = new DataInputStream(new FileInputStream(
+					file))) {
+				in.readFully(data);
+			}
+			msg = new Message(data, encrypted);
+		}
 		return msg;
 	}
 
@@ -1,15 +1,17 @@
 package ssh;
 
 import global.Logger;
+import global.PiCloudConstants;
 
-import java.sql.SQLException;
-import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.sshd.server.PasswordAuthenticator;
 import org.apache.sshd.server.session.ServerSession;
 
-import db.UnknownUserException;
-import db.UserStatementMaker;
+import db.AsyncDatabase;
 
 public class Authenticator implements PasswordAuthenticator {
 
@@ -32,13 +34,20 @@ public class Authenticator implements PasswordAuthenticator {
 
 		boolean valid = false;
 
+		// sshd needs the answer before this returns, so wait for it, but only
+		// for a bounded time. When the database is overloaded the check is
+		// rejected straight away instead of piling up more waiting threads.
+		CompletableFuture<Boolean> check = AsyncDatabase.checkPassword(
+				username, password.getBytes());
 		try {
-			int id = UserStatementMaker.getId(username);
-			byte[] saltedPass = UserStatementMaker.saltPass(id,
-					password.getBytes());
-			byte[] storedPass = UserStatementMaker.getPass(id);
-			valid = Arrays.equals(saltedPass, storedPass);
-		} catch (SQLException | UnknownUserException e) {
+			valid = check.get(PiCloudConstants.DB_TASK_TIMEOUT,
+					TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			Logger.logError("Error during login: " + e.getCause());
+			return false;
+		} catch (InterruptedException | TimeoutException e) {
+			// The client is rejected, so the check can stop as well.
+			check.cancel(true);
 			Logger.logError("Error during login: " + e);
 			return false;
 		}
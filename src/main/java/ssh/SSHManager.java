@@ -39,7 +39,7 @@ import ssh.sftp.PiFileSystemFactory;
  */
 import com.sun.jna.Platform;
 
-import db.DatabaseManager;
+import db.Storage;
 
 /**
  * Controller for the SSH/SFTP server
@@ -74,7 +74,7 @@ public class SSHManager {
 		Thread.currentThread().setName("StartupThread");
 		Logger.init();
 		FileSystemManager.init();
-		DatabaseManager.init();
+		Storage.init();
 		if (Platform.isLinux())
 			SocManager.init();
 		SSH = SshServer.setUpDefaultServer();
@@ -6,15 +6,14 @@ import global.Logger;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.sql.SQLException;
 import java.util.List;
+import java.util.concurrent.CompletionException;
 
 import org.apache.sshd.server.Environment;
 import org.apache.sshd.server.ExitCallback;
 
 import ssh.sftp.PiFileSystemFactory;
-import db.UnknownUserException;
-import db.UserStatementMaker;
+import db.AsyncDatabase;
 
 /**
  * Command to create a new user.
@@ -40,22 +39,26 @@ public class CreateUserCommand extends PiCommand {
 	}
 	
 	/**
-	 * Runs the command.
+	 * Runs the command. The account is created on the database executor, so
+	 * this returns immediately; the exit callback is invoked when the account
+	 * has been created, or creating it failed.
 	 */
 	public void start(Environment env) throws IOException {
 		if (!canRun())
 			return;
-		try {
-			UserStatementMaker.createAccount(args[1], args[2].getBytes());
-			Logger.log("New user account created: " + args[1] + " -- id="
-					+ UserStatementMaker.getId(args[1]));
-			PiFileSystemFactory.register(args[1]);
-			FileSystemManager.register(args[1]);
-		} catch (SQLException | UnknownUserException e) {
-			Logger.logError("Failed to create user: " + e);
-		} finally {
-			exit.onExit(0);
-		}
+		AsyncDatabase.createAccount(args[1], args[2].getBytes())
+				.thenAccept(id -> {
+					Logger.log("New user account created: " + args[1]
+							+ " -- id=" + id);
+					PiFileSystemFactory.register(args[1]);
+					FileSystemManager.register(args[1]);
+				}).whenComplete((v, e) -> {
+					if (e != null)
+						Logger.logError("Failed to create user: "
+								+ (e instanceof CompletionException ? e
+										.getCause() : e));
+					exit.onExit(0);
+				});
 	}
 
 	@Override
@@ -1,5 +1,6 @@
 package ssh.command;
 
+import files.FileSystemManager;
 import files.TemporaryFile;
 import global.Logger;
 import global.PiCloudConstants;
@@ -8,7 +9,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.Files;
 import java.util.List;
 
 import org.apache.sshd.server.Environment;
@@ -70,10 +70,9 @@ public class DecryptCommand extends PiCommand {
 			return;
 		}
 		
-		
-		//TODO
 		TemporaryFile decrypted = decrypt(f);
-		Logger.log("Decrypted: " + decrypted.getAbsolutePath());
+		if (decrypted != null)
+			Logger.log("Decrypted: " + decrypted.getAbsolutePath());
 		exit.onExit(0);
 	}
 
@@ -89,12 +88,20 @@ public class DecryptCommand extends PiCommand {
 		return null;
 	}
 
+	/**
+	 * Writes the original content of a file next to it, with the extension
+	 * <code>.dec</code>, for a limited time.
+	 * 
+	 * @return The decrypted file, or null if it could not be decrypted
+	 */
 	private TemporaryFile decrypt (File in) {
 		File res = new File(in.getAbsolutePath() + ".dec");
 		try {
-			Files.copy(in.toPath(), res.toPath());
+			FileSystemManager.decrypt(in, res);
 		} catch (IOException e) {
-			e.printStackTrace();
+			Logger.logError("Unable to decrypt " + in + ": " + e);
+			res.delete();
+			return null;
 		}
 		return new TemporaryFile(res.getAbsolutePath(), PiCloudConstants.TEMP_FILE_DURATION);
 	}
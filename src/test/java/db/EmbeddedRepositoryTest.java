@@ -0,0 +1,119 @@
+package db;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import files.FileDescriptor;
+
+public class EmbeddedRepositoryTest {
+
+	private static final byte[] PASS = { 1, 2, 3 }, SALT = { 4, 5 };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File journal() {
+		return new File(folder.getRoot(), "journal");
+	}
+
+	@Test
+	public void testReplay() throws IOException, SQLException {
+		EmbeddedRepository repo = EmbeddedRepository.open(journal());
+		int alice = repo.createAccount("alice", PASS, SALT);
+		int bob = repo.createAccount("bob", PASS, SALT);
+		Assert.assertTrue(repo.deleteAccount(bob));
+		Assert.assertEquals(2, repo.addDescriptors(Arrays.asList(
+				new FileDescriptor("alice/a", alice, 10), new FileDescriptor(
+						"alice/b", alice, 20))).size());
+		Assert.assertNotNull(repo.deleteDescriptor(new FileDescriptor(
+				"alice/a", alice, 0)));
+		repo.close();
+
+		repo = EmbeddedRepository.open(journal());
+		Assert.assertEquals(alice, repo.findId("alice"));
+		Assert.assertEquals(UserRepository.NO_USER, repo.findId("bob"));
+		Assert.assertArrayEquals(SALT, repo.getSalt(alice));
+		Assert.assertNull(repo.getDescriptor("alice/a".getBytes()));
+		Assert.assertEquals(20, repo.getDescriptor("alice/b".getBytes())
+				.getSize());
+		Assert.assertEquals(1, repo.getOwnedFiles(alice).size());
+		repo.close();
+	}
+
+	@Test
+	public void testTornJournal() throws IOException, SQLException {
+		EmbeddedRepository repo = EmbeddedRepository.open(journal());
+		int alice = repo.createAccount("alice", PASS, SALT);
+		repo.close();
+		long length = journal().length();
+		// A descriptor record that ends in its identifier.
+		try (FileOutputStream out = new FileOutputStream(journal(), true)) {
+			out.write(new byte[] { 3, 0, 7, 'a' });
+		}
+
+		repo = EmbeddedRepository.open(journal());
+		Assert.assertEquals(length, journal().length());
+		Assert.assertEquals(alice, repo.findId("alice"));
+		repo.addDescriptor(new FileDescriptor("alice/a", alice, 10));
+		repo.close();
+
+		repo = EmbeddedRepository.open(journal());
+		Assert.assertEquals(10, repo.getDescriptor("alice/a".getBytes())
+				.getSize());
+		repo.close();
+	}
+
+	@Test
+	public void testNextIdAfterCompaction() throws IOException, SQLException {
+		EmbeddedRepository repo = EmbeddedRepository.open(journal());
+		int alice = repo.createAccount("alice", PASS, SALT);
+		int bob = repo.createAccount("bob", PASS, SALT);
+		repo.deleteAccount(bob);
+		for (int i = 0; i < 1100; i++)
+			repo.putDescriptor(new FileDescriptor("alice/a", alice, i));
+		repo.close();
+		long length = journal().length();
+
+		repo = EmbeddedRepository.open(journal());
+		Assert.assertTrue(journal().length() < length);
+		Assert.assertEquals(1099, repo.getDescriptor("alice/a".getBytes())
+				.getSize());
+		// The id of the deleted user stays taken.
+		Assert.assertEquals(bob + 1, repo.createAccount("carol", PASS, SALT));
+		repo.close();
+
+		repo = EmbeddedRepository.open(journal());
+		Assert.assertEquals(bob + 1, repo.findId("carol"));
+		Assert.assertEquals(bob + 2, repo.createAccount("dave", PASS, SALT));
+		repo.close();
+	}
+
+	@Test
+	public void testPutReplaces() throws IOException, SQLException {
+		EmbeddedRepository repo = EmbeddedRepository.open(journal());
+		int alice = repo.createAccount("alice", PASS, SALT);
+		Assert.assertNull(repo.putDescriptor(new FileDescriptor("alice/a",
+				alice, 10)));
+		Assert.assertEquals(10, repo.putDescriptor(
+				new FileDescriptor("alice/a", alice, 20)).getSize());
+		// Adding does not replace.
+		Assert.assertFalse(repo.addDescriptor(new FileDescriptor("alice/a",
+				alice, 30)));
+		Assert.assertEquals(1, repo.getOwnedFiles(alice).size());
+		repo.close();
+
+		repo = EmbeddedRepository.open(journal());
+		Assert.assertEquals(20, repo.getDescriptor("alice/a".getBytes())
+				.getSize());
+		Assert.assertEquals(1, repo.getOwnedFiles(alice).size());
+		repo.close();
+	}
+}
@@ -0,0 +1,115 @@
+package db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Measures password checks per second, on the calling threads and on the
+ * <code>PasswordHasher</code> pool, and simulates a login storm to show how
+ * many attempts the pool refuses.<br>
+ * Does not need a database; run with <i>[iterations] [threads] [cost]</i>.
+ *
+ * @author Dennis
+ *
+ */
+public class HashingBenchmark {
+
+	private static final byte[] PASS = "benchmark".getBytes();
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int cost = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+		byte[] salt = PasswordHasher.generateSalt();
+		Credentials credentials = new Credentials(PasswordHasher.hash(PASS,
+				salt, cost), salt);
+
+		// Warm up the JIT and the per-thread digests.
+		direct(iterations / 10, threads, credentials);
+		pooled(iterations / 10, threads, credentials);
+
+		System.out.printf("Cost %d, %d threads%n", cost, threads);
+		System.out.printf("Calling threads: %.1f checks/s%n",
+				direct(iterations, threads, credentials));
+		System.out.printf("Hashing pool:    %.1f checks/s%n",
+				pooled(iterations, threads, credentials));
+		storm(iterations, credentials);
+		System.out.println(PasswordHasher.statistics());
+	}
+
+	/**
+	 * Every thread checks passwords itself.
+	 *
+	 * @return The amount of checks per second
+	 */
+	private static double direct(int iterations, int threads,
+			Credentials credentials) throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		int perThread = Math.max(1, iterations / threads);
+		long start = System.nanoTime();
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(() -> {
+				for (int j = 0; j < perThread; j++)
+					if (!PasswordHasher.verify(PASS, credentials))
+						throw new IllegalStateException("Check failed!");
+			});
+			workers[i].start();
+		}
+		for (Thread t : workers)
+			t.join();
+		return perThread * threads / ((System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Every thread hands its checks to the pool and waits for each, like the
+	 * SSH authenticator does.
+	 *
+	 * @return The amount of checks per second
+	 */
+	private static double pooled(int iterations, int threads,
+			Credentials credentials) throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		int perThread = Math.max(1, iterations / threads);
+		long start = System.nanoTime();
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(() -> {
+				for (int j = 0; j < perThread; j++)
+					if (!PasswordHasher.verifyAsync(PASS, credentials).join())
+						throw new IllegalStateException("Check failed!");
+			});
+			workers[i].start();
+		}
+		for (Thread t : workers)
+			t.join();
+		return perThread * threads / ((System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Submits all checks at once, as a burst of logins would.
+	 */
+	private static void storm(int attempts, Credentials credentials) {
+		long start = System.nanoTime();
+		List<CompletableFuture<Boolean>> futures = new ArrayList<>(attempts);
+		for (int i = 0; i < attempts; i++)
+			futures.add(PasswordHasher.verifyAsync(PASS, credentials));
+		int accepted = 0, rejected = 0;
+		for (CompletableFuture<Boolean> future : futures) {
+			try {
+				future.join();
+				accepted++;
+			} catch (CompletionException e) {
+				if (!(e.getCause() instanceof RejectedExecutionException))
+					throw e;
+				rejected++;
+			}
+		}
+		double ms = (System.nanoTime() - start) / 1e6;
+		System.out.printf(
+				"Storm of %d: %d checked, %d rejected early, %.1f ms%n",
+				attempts, accepted, rejected, ms);
+	}
+}
@@ -0,0 +1,88 @@
+package db;
+
+import java.util.Arrays;
+
+/**
+ * Compares login throughput of the old three-query password check (getId,
+ * saltPass, getPass) with the single-query
+ * <code>UserStatementMaker.checkPassword</code>.<br>
+ * Needs a running database; run with <i>[iterations] [threads]</i>.
+ *
+ * @author Dennis
+ *
+ */
+public class LoginBenchmark {
+
+	private static final String NAME = "BenchmarkUser";
+	private static final byte[] PASS = "benchmark".getBytes();
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+		int uid = UserStatementMaker.createAccount(NAME, PASS);
+		try {
+			// Warm up the pool, statement caches and JIT.
+			run(iterations / 10, threads, LoginBenchmark::legacyLogin);
+			run(iterations / 10, threads, LoginBenchmark::login);
+
+			double legacy = run(iterations, threads,
+					LoginBenchmark::legacyLogin);
+			double single = run(iterations, threads, LoginBenchmark::login);
+			System.out.printf("getId + saltPass + getPass: %.1f logins/s%n",
+					legacy);
+			System.out.printf("checkPassword:              %.1f logins/s%n",
+					single);
+			System.out.printf("Speedup:                    %.2fx%n", single
+					/ legacy);
+			System.out.println(DatabaseManager.getPool());
+			System.out.println(StatementCache.statistics());
+		} finally {
+			UserStatementMaker.deleteAccount(uid);
+		}
+	}
+
+	private static boolean legacyLogin() throws Exception {
+		int id = UserStatementMaker.getId(NAME);
+		byte[] salted = UserStatementMaker.saltPass(id, PASS);
+		return Arrays.equals(salted, UserStatementMaker.getPass(id));
+	}
+
+	private static boolean login() throws Exception {
+		return UserStatementMaker.checkPassword(NAME, PASS);
+	}
+
+	/**
+	 * Runs <code>iterations</code> logins spread over <code>threads</code>
+	 * threads.
+	 *
+	 * @return The amount of logins per second
+	 */
+	private static double run(int iterations, int threads, Login login)
+			throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		int perThread = Math.max(1, iterations / threads);
+		long start = System.nanoTime();
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(() -> {
+				try {
+					for (int j = 0; j < perThread; j++)
+						if (!login.attempt())
+							throw new IllegalStateException("Login failed!");
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+			workers[i].start();
+		}
+		for (Thread t : workers)
+			t.join();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		return perThread * threads / seconds;
+	}
+
+	@FunctionalInterface
+	private interface Login {
+		boolean attempt() throws Exception;
+	}
+}
@@ -0,0 +1,95 @@
+package files;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import files.FolderMonitor.Event;
+
+import java.io.File;
+import java.nio.file.WatchEvent;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EventCoalescerTest {
+
+	private static final File FILE = new File("a.txt");
+
+	/**
+	 * Adds the events for one file and returns the merged type.
+	 */
+	private static WatchEvent.Kind<?> merge(WatchEvent.Kind<?>... types)
+			throws InterruptedException {
+		EventCoalescer coalescer = new EventCoalescer(0, 0, 16);
+		for (WatchEvent.Kind<?> type : types)
+			coalescer.add(new Event(type, FILE, "user"));
+		List<Event> batch = coalescer.take();
+		Assert.assertEquals(1, batch.size());
+		Assert.assertEquals(FILE, batch.get(0).getFile());
+		Assert.assertEquals("user", batch.get(0).getUser());
+		return batch.get(0).getType();
+	}
+
+	@Test
+	public void testNewFile() throws InterruptedException {
+		Assert.assertEquals(ENTRY_CREATE, merge(ENTRY_CREATE, ENTRY_MODIFY));
+		Assert.assertEquals(ENTRY_CREATE,
+				merge(ENTRY_CREATE, ENTRY_MODIFY, ENTRY_MODIFY));
+	}
+
+	@Test
+	public void testCreatedThenDeleted() throws InterruptedException {
+		// A CREATE may be a file moved over an existing one, so the DELETE
+		// is always passed on.
+		Assert.assertEquals(ENTRY_DELETE, merge(ENTRY_CREATE, ENTRY_DELETE));
+		Assert.assertEquals(ENTRY_DELETE,
+				merge(ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE));
+	}
+
+	@Test
+	public void testExistingFile() throws InterruptedException {
+		Assert.assertEquals(ENTRY_MODIFY, merge(ENTRY_MODIFY, ENTRY_MODIFY));
+		Assert.assertEquals(ENTRY_DELETE, merge(ENTRY_MODIFY, ENTRY_DELETE));
+		Assert.assertEquals(ENTRY_MODIFY, merge(ENTRY_DELETE, ENTRY_CREATE));
+		Assert.assertEquals(ENTRY_MODIFY, merge(ENTRY_MODIFY, ENTRY_CREATE));
+	}
+
+	@Test
+	public void testReplacedThenDeleted() throws InterruptedException {
+		// The file existed before, so it must still be reported as deleted.
+		Assert.assertEquals(ENTRY_DELETE,
+				merge(ENTRY_DELETE, ENTRY_CREATE, ENTRY_DELETE));
+		Assert.assertEquals(ENTRY_DELETE,
+				merge(ENTRY_MODIFY, ENTRY_CREATE, ENTRY_DELETE));
+		Assert.assertEquals(ENTRY_MODIFY, merge(ENTRY_DELETE, ENTRY_CREATE,
+				ENTRY_DELETE, ENTRY_CREATE));
+	}
+
+	@Test
+	public void testBatches() throws InterruptedException {
+		EventCoalescer coalescer = new EventCoalescer(0, 0, 2);
+		for (String name : new String[] { "a", "b", "c" })
+			coalescer.add(new Event(ENTRY_CREATE, new File(name), "user"));
+		List<Event> first = coalescer.take();
+		Assert.assertEquals(2, first.size());
+		Assert.assertEquals(new File("a"), first.get(0).getFile());
+		Assert.assertEquals(new File("b"), first.get(1).getFile());
+		List<Event> second = coalescer.take();
+		Assert.assertEquals(1, second.size());
+		Assert.assertEquals(new File("c"), second.get(0).getFile());
+		Assert.assertEquals(0, coalescer.size());
+	}
+
+	@Test
+	public void testQuietWindow() throws InterruptedException {
+		EventCoalescer coalescer = new EventCoalescer(200, 10000, 16);
+		long start = System.nanoTime();
+		coalescer.add(new Event(ENTRY_CREATE, FILE, "user"));
+		List<Event> batch = coalescer.take();
+		long waited = (System.nanoTime() - start) / 1000000;
+		Assert.assertEquals(1, batch.size());
+		Assert.assertTrue("Event was handed out after " + waited + "ms",
+				waited >= 190);
+	}
+}
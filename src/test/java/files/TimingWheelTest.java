@@ -0,0 +1,83 @@
+package files;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+	@Test
+	public void testRunsAfterDelay() throws InterruptedException {
+		TimingWheel wheel = new TimingWheel("Test Wheel", 10, 8);
+		CountDownLatch ran = new CountDownLatch(1);
+		long start = System.nanoTime();
+		wheel.schedule(ran::countDown, 100, TimeUnit.MILLISECONDS);
+		Assert.assertTrue(ran.await(2, TimeUnit.SECONDS));
+		long waited = (System.nanoTime() - start) / 1000000;
+		Assert.assertTrue("Task ran after " + waited + "ms", waited >= 100);
+	}
+
+	@Test
+	public void testLaterRound() throws InterruptedException {
+		// 8 slots of 10ms: a delay of 250ms needs several rounds.
+		TimingWheel wheel = new TimingWheel("Test Wheel", 10, 8);
+		CountDownLatch ran = new CountDownLatch(1);
+		long start = System.nanoTime();
+		wheel.schedule(ran::countDown, 250, TimeUnit.MILLISECONDS);
+		Assert.assertTrue(ran.await(2, TimeUnit.SECONDS));
+		long waited = (System.nanoTime() - start) / 1000000;
+		Assert.assertTrue("Task ran after " + waited + "ms", waited >= 250);
+	}
+
+	@Test
+	public void testZeroDelay() throws InterruptedException {
+		TimingWheel wheel = new TimingWheel("Test Wheel", 10, 8);
+		CountDownLatch ran = new CountDownLatch(1);
+		wheel.schedule(ran::countDown, 0, TimeUnit.MILLISECONDS);
+		Assert.assertTrue(ran.await(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException {
+		TimingWheel wheel = new TimingWheel("Test Wheel", 10, 8);
+		AtomicInteger ran = new AtomicInteger();
+		TimingWheel.Timeout cancelled = wheel.schedule(ran::incrementAndGet,
+				50, TimeUnit.MILLISECONDS);
+		CountDownLatch later = new CountDownLatch(1);
+		wheel.schedule(later::countDown, 100, TimeUnit.MILLISECONDS);
+		Assert.assertTrue(cancelled.cancel());
+		Assert.assertFalse(cancelled.cancel());
+		Assert.assertTrue(later.await(2, TimeUnit.SECONDS));
+		Assert.assertEquals(0, ran.get());
+	}
+
+	@Test
+	public void testCancelAfterRun() throws InterruptedException {
+		TimingWheel wheel = new TimingWheel("Test Wheel", 10, 8);
+		CountDownLatch ran = new CountDownLatch(1);
+		TimingWheel.Timeout t = wheel.schedule(ran::countDown, 10,
+				TimeUnit.MILLISECONDS);
+		Assert.assertTrue(ran.await(1, TimeUnit.SECONDS));
+		Assert.assertFalse(t.cancel());
+	}
+
+	@Test
+	public void testManyTasks() throws InterruptedException {
+		TimingWheel wheel = new TimingWheel("Test Wheel", 5, 64);
+		int count = 10000;
+		CountDownLatch ran = new CountDownLatch(count / 2);
+		AtomicInteger cancelledRan = new AtomicInteger();
+		for (int i = 0; i < count; i++) {
+			if (i % 2 == 0)
+				wheel.schedule(ran::countDown, i % 500, TimeUnit.MILLISECONDS);
+			else
+				wheel.schedule(cancelledRan::incrementAndGet, 100 + i % 500,
+						TimeUnit.MILLISECONDS).cancel();
+		}
+		Assert.assertTrue(ran.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(0, cancelledRan.get());
+	}
+}
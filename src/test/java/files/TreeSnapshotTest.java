@@ -0,0 +1,81 @@
+package files;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import files.FolderMonitor.Event;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TreeSnapshotTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static String path(String... parts) {
+		return String.join(File.separator, parts);
+	}
+
+	private TreeSnapshot snapshot(Path root) throws IOException {
+		TreeSnapshot snapshot = new TreeSnapshot(root, new File(
+				folder.newFolder(), "snapshot"));
+		snapshot.update(root.resolve(path("a", "x")).toFile(), 1, 1);
+		snapshot.update(root.resolve(path("a", "b", "y")).toFile(), 1, 1);
+		snapshot.update(root.resolve(path("ab")).toFile(), 1, 1);
+		snapshot.update(root.resolve(path("c")).toFile(), 1, 1);
+		return snapshot;
+	}
+
+	@Test
+	public void testDiff() throws IOException {
+		Path root = folder.newFolder("tree").toPath();
+		TreeSnapshot snapshot = snapshot(root);
+		TreeSnapshot.Listing scan = new TreeSnapshot.Listing();
+		scan.files.put(path("a", "x"), new TreeSnapshot.Entry(1, 1));
+		scan.files.put(path("c"), new TreeSnapshot.Entry(2, 1));
+		scan.files.put(path("d"), new TreeSnapshot.Entry(1, 1));
+
+		List<Event> events = snapshot.diff(scan);
+		Assert.assertEquals(4, events.size());
+		for (Event e : events) {
+			String name = e.getFile().getName();
+			Assert.assertEquals(name.equals("c") || name.equals("d")
+					? ENTRY_CREATE : ENTRY_DELETE, e.getType());
+		}
+	}
+
+	@Test
+	public void testUnknown() throws IOException {
+		Path root = folder.newFolder("tree").toPath();
+		TreeSnapshot snapshot = snapshot(root);
+		// The directory a could not be listed.
+		TreeSnapshot.Listing scan = new TreeSnapshot.Listing();
+		scan.files.put(path("c"), new TreeSnapshot.Entry(1, 1));
+		scan.unknown.add("a");
+
+		List<Event> events = snapshot.diff(scan);
+		Assert.assertEquals(1, events.size());
+		Assert.assertEquals(ENTRY_DELETE, events.get(0).getType());
+		Assert.assertEquals("ab", events.get(0).getFile().getName());
+
+		// Only the files that could be seen are replaced.
+		snapshot.reset(scan);
+		Assert.assertTrue(snapshot.diff(scan).isEmpty());
+		Assert.assertEquals(2, snapshot.filesIn(root.resolve("a").toFile())
+				.size());
+		Assert.assertEquals(3, snapshot.diff(new TreeSnapshot.Listing())
+				.size());
+
+		// Nothing could be listed at all.
+		scan = new TreeSnapshot.Listing();
+		scan.unknown.add("");
+		Assert.assertTrue(snapshot.diff(scan).isEmpty());
+	}
+}
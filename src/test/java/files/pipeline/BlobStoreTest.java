@@ -0,0 +1,191 @@
+package files.pipeline;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BlobStoreTest {
+
+	private static final long GRACE = 3600000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static Manifest.Entry entry(int id) {
+		byte[] hash = new byte[Manifest.HASH_LENGTH];
+		hash[0] = (byte) id;
+		return new Manifest.Entry(10, 10, 16, false, hash);
+	}
+
+	private static byte[] data(int id) {
+		byte[] data = new byte[16];
+		Arrays.fill(data, (byte) id);
+		return data;
+	}
+
+	/**
+	 * Stores and commits a file consisting of the given chunks.
+	 */
+	private static void put(BlobStore store, String identifier, int owner,
+			Manifest.Entry... entries) throws IOException {
+		for (Manifest.Entry e : entries)
+			store.store(e, data(e.getHash()[0]));
+		store.commit(identifier, owner, Arrays.asList(entries));
+	}
+
+	private File chunk(Manifest.Entry entry) {
+		String key = BlobStore.hex(entry.getHash());
+		return new File(new File(folder.getRoot(), key.substring(0, 2)), key);
+	}
+
+	@Test
+	public void testReferences() throws IOException {
+		BlobStore store = new BlobStore(folder.getRoot(), GRACE);
+		Manifest.Entry a = entry(1), b = entry(2);
+		put(store, "u/x", 1, a, b);
+		put(store, "u/y", 1, a);
+		Assert.assertEquals(2, store.references(a.getHash(), 1));
+		Assert.assertEquals(1, store.references(b.getHash(), 1));
+		Assert.assertArrayEquals(data(1), store.load(a.getHash()));
+
+		// A new version only releases the chunks it no longer names.
+		put(store, "u/x", 1, a);
+		Assert.assertEquals(2, store.references(a.getHash(), 1));
+		Assert.assertEquals(0, store.references(b.getHash(), 1));
+
+		Assert.assertTrue(store.release("u/y"));
+		Assert.assertFalse(store.release("u/y"));
+		Assert.assertEquals(1, store.references(a.getHash(), 1));
+		store.close();
+	}
+
+	@Test
+	public void testUnpin() throws IOException {
+		BlobStore store = new BlobStore(folder.getRoot(), GRACE);
+		Manifest.Entry a = entry(1);
+		store.store(a, data(1));
+		Assert.assertNotNull(store.acquire(a.getHash()));
+		store.unpin(Collections.nCopies(2, a));
+		// Never committed, so nobody may take it over by its hash.
+		Assert.assertNull(store.acquire(a, 1));
+		Assert.assertNotNull(store.acquire(a.getHash()));
+		store.close();
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+		BlobStore store = new BlobStore(folder.getRoot(), GRACE);
+		Manifest.Entry a = entry(1), b = entry(2);
+		put(store, "u/x", 1, a, b);
+		put(store, "u/y", 2, b);
+		put(store, "u/z", 1, a);
+		store.release("u/z");
+		store.close();
+
+		store = new BlobStore(folder.getRoot(), GRACE);
+		List<Manifest.Entry> entries = store.getEntries("u/x");
+		Assert.assertEquals(2, entries.size());
+		Assert.assertArrayEquals(b.getHash(), entries.get(1).getHash());
+		Assert.assertNull(store.getEntries("u/z"));
+		Assert.assertEquals(1, store.references(a.getHash(), 1));
+		Assert.assertEquals(1, store.references(b.getHash(), 2));
+		store.close();
+	}
+
+	@Test
+	public void testTornJournal() throws IOException {
+		BlobStore store = new BlobStore(folder.getRoot(), GRACE);
+		put(store, "u/x", 1, entry(1));
+		store.close();
+		File journal = new File(folder.getRoot(), "index");
+		long length = journal.length();
+		// Part of the length of the next record.
+		try (FileOutputStream out = new FileOutputStream(journal, true)) {
+			out.write(new byte[] { 0, 0 });
+		}
+
+		store = new BlobStore(folder.getRoot(), GRACE);
+		Assert.assertEquals(length, journal.length());
+		Assert.assertNotNull(store.getEntries("u/x"));
+		put(store, "u/y", 1, entry(2));
+		store.close();
+
+		store = new BlobStore(folder.getRoot(), GRACE);
+		Assert.assertNotNull(store.getEntries("u/y"));
+		store.close();
+	}
+
+	@Test
+	public void testCompact() throws IOException {
+		BlobStore store = new BlobStore(folder.getRoot(), GRACE);
+		Manifest.Entry a = entry(1), b = entry(2);
+		for (int i = 0; i < 1100; i++)
+			put(store, "u/x", 1, i % 2 == 0 ? a : b);
+		store.close();
+		File journal = new File(folder.getRoot(), "index");
+		long length = journal.length();
+
+		store = new BlobStore(folder.getRoot(), GRACE);
+		Assert.assertTrue(journal.length() < length);
+		Assert.assertArrayEquals(b.getHash(), store.getEntries("u/x").get(0)
+				.getHash());
+		Assert.assertEquals(1, store.references(b.getHash(), 1));
+		store.close();
+	}
+
+	@Test
+	public void testGracePeriod() throws IOException {
+		BlobStore store = new BlobStore(folder.getRoot(), GRACE);
+		Manifest.Entry a = entry(1);
+		put(store, "u/x", 1, a);
+		store.release("u/x");
+		store.sweep();
+		Assert.assertTrue(chunk(a).exists());
+
+		// Moving a file: only its owner can take its chunks over.
+		Assert.assertNull(store.acquire(a, 2));
+		Assert.assertNotNull(store.acquire(a, 1));
+		store.commit("u/y", 1, Collections.singletonList(a));
+		Assert.assertEquals(1, store.references(a.getHash(), 1));
+		store.close();
+	}
+
+	@Test
+	public void testSweep() throws IOException, InterruptedException {
+		BlobStore store = new BlobStore(folder.getRoot(), 0);
+		Manifest.Entry a = entry(1), b = entry(2);
+		put(store, "u/x", 1, a, b);
+		store.release("u/x");
+		put(store, "u/y", 1, b);
+		Thread.sleep(10);
+		store.sweep();
+		Assert.assertFalse(chunk(a).exists());
+		Assert.assertTrue(chunk(b).exists());
+		Assert.assertNull(store.acquire(a, 1));
+		store.close();
+	}
+
+	@Test
+	public void testLeftovers() throws IOException, InterruptedException {
+		// A chunk that was stored, but never committed.
+		Manifest.Entry a = entry(1);
+		File leftover = chunk(a);
+		leftover.getParentFile().mkdirs();
+		try (FileOutputStream out = new FileOutputStream(leftover)) {
+			out.write(data(1));
+		}
+		Thread.sleep(10);
+		new BlobStore(folder.getRoot(), GRACE).close();
+		Assert.assertTrue(leftover.exists());
+		new BlobStore(folder.getRoot(), 0).close();
+		Assert.assertFalse(leftover.exists());
+	}
+}
@@ -0,0 +1,100 @@
+package files.pipeline;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ChunkerTest {
+
+	private static final int MIN = 1024, AVG = 4096, MAX = 16384;
+
+	private static List<byte[]> split(byte[] data) throws IOException {
+		Chunker chunker = new Chunker(new ByteArrayInputStream(data), MIN,
+				AVG, MAX);
+		List<byte[]> chunks = new ArrayList<>();
+		byte[] chunk;
+		while ((chunk = chunker.next()) != null)
+			chunks.add(chunk);
+		return chunks;
+	}
+
+	private static byte[] random(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	/**
+	 * @return The amount of chunks of <code>b</code> that are not in
+	 *         <code>a</code>
+	 */
+	private static int changed(List<byte[]> a, List<byte[]> b) {
+		Set<ByteBuffer> old = new HashSet<>();
+		a.forEach(c -> old.add(ByteBuffer.wrap(c)));
+		int changed = 0;
+		for (byte[] c : b)
+			if (!old.contains(ByteBuffer.wrap(c)))
+				changed++;
+		return changed;
+	}
+
+	@Test
+	public void testSizes() throws IOException {
+		byte[] data = random(256 * 1024, 1);
+		List<byte[]> chunks = split(data);
+		ByteArrayOutputStream joined = new ByteArrayOutputStream();
+		for (int i = 0; i < chunks.size(); i++) {
+			byte[] c = chunks.get(i);
+			Assert.assertTrue(c.length <= MAX);
+			if (i < chunks.size() - 1)
+				Assert.assertTrue(c.length >= MIN);
+			joined.write(c);
+		}
+		Assert.assertArrayEquals(data, joined.toByteArray());
+		Assert.assertTrue(chunks.size() > 256 * 1024 / MAX);
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		Assert.assertTrue(split(new byte[0]).isEmpty());
+		Assert.assertEquals(1, split(new byte[MIN / 2]).size());
+	}
+
+	@Test
+	public void testDeterministic() throws IOException {
+		byte[] data = random(128 * 1024, 2);
+		Assert.assertEquals(0, changed(split(data), split(data.clone())));
+	}
+
+	@Test
+	public void testInsert() throws IOException {
+		byte[] data = random(256 * 1024, 3);
+		byte[] inserted = new byte[data.length + 100];
+		int at = data.length / 2;
+		System.arraycopy(data, 0, inserted, 0, at);
+		System.arraycopy(random(100, 4), 0, inserted, at, 100);
+		System.arraycopy(data, at, inserted, at + 100, data.length - at);
+		List<byte[]> before = split(data), after = split(inserted);
+		// Only the chunks around the insertion change.
+		Assert.assertTrue(changed(before, after) <= 3);
+		Assert.assertTrue(Math.abs(before.size() - after.size()) <= 2);
+	}
+
+	@Test
+	public void testAppend() throws IOException {
+		byte[] data = random(256 * 1024, 5);
+		byte[] appended = new byte[data.length + 5000];
+		System.arraycopy(data, 0, appended, 0, data.length);
+		System.arraycopy(random(5000, 6), 0, appended, data.length, 5000);
+		Assert.assertTrue(changed(split(data), split(appended)) <= 2);
+	}
+}
@@ -0,0 +1,293 @@
+package files.pipeline;
+
+import files.FileDescriptor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import db.UnknownUserException;
+
+public class EncryptionPipelineTest {
+
+	private static final long TIMEOUT = 10000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final AtomicInteger encrypted = new AtomicInteger();
+	// The files the pipeline is done with, and their size as it left them.
+	private final Map<File, Long> handled = new ConcurrentHashMap<>();
+	// While set, encrypting waits for it.
+	private volatile CountDownLatch gate;
+	// While set, run when the owner of a file is looked up.
+	private volatile Runnable lookup;
+	private final Map<String, Long> registered = new ConcurrentHashMap<>();
+	private EncryptionPipeline pipeline;
+
+	/**
+	 * Inverts the bits of a chunk, and pads it to a multiple of 16 bytes.
+	 */
+	private final Cipher cipher = new Cipher() {
+		@Override
+		public byte[] encrypt(byte[] data, int length) throws IOException {
+			try {
+				if (gate != null)
+					gate.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			encrypted.incrementAndGet();
+			byte[] out = new byte[(length + 15) / 16 * 16];
+			for (int i = 0; i < length; i++)
+				out[i] = (byte) ~data[i];
+			return out;
+		}
+
+		@Override
+		public byte[] decrypt(byte[] data, int length) {
+			byte[] out = new byte[length];
+			for (int i = 0; i < length; i++)
+				out[i] = (byte) ~data[i];
+			return out;
+		}
+	};
+
+	private final Registry registry = new Registry() {
+		@Override
+		public String identifier(File file, String user) {
+			return user + "/" + file.getName();
+		}
+
+		@Override
+		public int owner(String user) throws UnknownUserException {
+			if (lookup != null)
+				lookup.run();
+			if (user.equals("alice"))
+				return 1;
+			if (user.equals("bob"))
+				return 2;
+			throw new UnknownUserException(user);
+		}
+
+		@Override
+		public void register(FileDescriptor fd) {
+			registered.put(fd.getIdentifier(), fd.getSize());
+		}
+
+		@Override
+		public void unregister(FileDescriptor fd) {
+			registered.remove(fd.getIdentifier());
+		}
+	};
+
+	private final EncryptionPipeline.Listener listener = new EncryptionPipeline.Listener() {
+		@Override
+		public void encrypted(File file, String user, long size, long modified) {
+			handled.put(file, size);
+		}
+
+		@Override
+		public void removed(File file, String user) {
+			handled.remove(file);
+		}
+	};
+
+	private final EncryptionPipeline.Expectations expect = new EncryptionPipeline.Expectations() {
+		@Override
+		public void expect(File file) {
+		}
+
+		@Override
+		public void withdraw(File file) {
+		}
+	};
+
+	@Before
+	public void setUp() throws IOException {
+		pipeline = new EncryptionPipeline(expect, listener,
+				folder.newFolder("blobs"), cipher, registry);
+	}
+
+	@After
+	public void tearDown() {
+		pipeline.shutdown(TIMEOUT);
+	}
+
+	private void encrypt(File file, String user) throws InterruptedException {
+		pipeline.submit(file, user);
+		Assert.assertTrue(pipeline.await(TIMEOUT));
+	}
+
+	private byte[] decrypt(File file) throws IOException {
+		File out = new File(file.getPath() + ".dec");
+		pipeline.decrypt(file, out);
+		return Files.readAllBytes(out.toPath());
+	}
+
+	private static byte[] random(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	private static void append(File file, byte[] data) throws IOException {
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			out.write(data);
+		}
+	}
+
+	@Test
+	public void testAppend() throws Exception {
+		File file = folder.newFile("log");
+		byte[] data = random(1024 * 1024, 1);
+		Files.write(file.toPath(), data);
+		encrypt(file, "alice");
+		Manifest manifest = Manifest.read(file);
+		Assert.assertEquals(encrypted.get(), manifest.getEntries().size());
+		Assert.assertEquals(Long.valueOf(data.length), registered.get("alice/log"));
+
+		byte[] more = random(5000, 2);
+		append(file, more);
+		encrypted.set(0);
+		encrypt(file, "alice");
+		// Only the appended data is encrypted.
+		Assert.assertEquals(1, encrypted.get());
+		Assert.assertEquals(manifest.getEntries().size() + 1, Manifest
+				.read(file).getEntries().size());
+		Assert.assertEquals(Long.valueOf(data.length + more.length),
+				registered.get("alice/log"));
+		Assert.assertEquals(Long.valueOf(file.length()), handled.get(file));
+
+		byte[] all = Arrays.copyOf(data, data.length + more.length);
+		System.arraycopy(more, 0, all, data.length, more.length);
+		Assert.assertArrayEquals(all, decrypt(file));
+	}
+
+	@Test
+	public void testAppendBeforeEncrypted() throws Exception {
+		File file = folder.newFile("log");
+		byte[] data = random(100000, 3);
+		Files.write(file.toPath(), data);
+		encrypt(file, "alice");
+		byte[] more = random(100, 4);
+		append(file, more);
+		byte[] all = Arrays.copyOf(data, data.length + more.length);
+		System.arraycopy(more, 0, all, data.length, more.length);
+		Assert.assertArrayEquals(all, decrypt(file));
+	}
+
+	@Test
+	public void testMagicPrefix() throws Exception {
+		File file = folder.newFile("upload");
+		byte[] data = ("PiCloud2 is not a manifest")
+				.getBytes(StandardCharsets.US_ASCII);
+		Files.write(file.toPath(), data);
+		encrypt(file, "alice");
+		Assert.assertEquals(1, encrypted.get());
+		Manifest.read(file);
+		Assert.assertArrayEquals(data, decrypt(file));
+	}
+
+	@Test
+	public void testSubmitDoesNotWait() throws Exception {
+		gate = new CountDownLatch(1);
+		long started = System.nanoTime();
+		for (int i = 0; i < 300; i++) {
+			File file = folder.newFile("f" + i);
+			Files.write(file.toPath(), random(100, i));
+			pipeline.submit(file, i % 3 == 0 ? "alice" : "bob");
+		}
+		// Files that are still waiting are not read twice.
+		for (int i = 0; i < 300; i++)
+			pipeline.submit(new File(folder.getRoot(), "f" + i),
+					i % 3 == 0 ? "alice" : "bob");
+		Assert.assertTrue(System.nanoTime() - started < TimeUnit.SECONDS
+				.toNanos(5));
+		Assert.assertFalse(pipeline.await(100));
+		gate.countDown();
+		Assert.assertTrue(pipeline.await(TIMEOUT));
+		Assert.assertEquals(300, registered.size());
+		Assert.assertTrue(encrypted.get() < 400);
+	}
+
+	@Test
+	public void testChangedWhileEncrypted() throws Exception {
+		File file = folder.newFile("doc");
+		Files.write(file.toPath(), random(5000, 7));
+		Files.setLastModifiedTime(file.toPath(),
+				FileTime.fromMillis(System.currentTimeMillis() - 10000));
+		byte[] changed = random(5000, 8);
+		// Rewritten right before it would be replaced, with the same length.
+		lookup = () -> {
+			lookup = null;
+			try {
+				Files.write(file.toPath(), changed);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		};
+		encrypt(file, "alice");
+		Assert.assertNull(Manifest.readPrefix(file));
+		Assert.assertArrayEquals(changed, Files.readAllBytes(file.toPath()));
+		Assert.assertFalse(new File(file.getPath() + ".old.inc").exists());
+		Assert.assertFalse(new File(file.getPath() + ".inc").exists());
+		Assert.assertFalse(handled.containsKey(file));
+
+		encrypt(file, "alice");
+		Assert.assertNotNull(Manifest.readPrefix(file));
+		Assert.assertFalse(new File(file.getPath() + ".old.inc").exists());
+		Assert.assertArrayEquals(changed, decrypt(file));
+	}
+
+	@Test
+	public void testMove() throws Exception {
+		File file = folder.newFile("a");
+		byte[] data = random(300000, 5);
+		Files.write(file.toPath(), data);
+		encrypt(file, "alice");
+		int chunks = encrypted.get();
+
+		File moved = new File(folder.getRoot(), "b");
+		Files.move(file.toPath(), moved.toPath());
+		pipeline.removed(file, "alice");
+		encrypt(moved, "alice");
+		Assert.assertEquals(chunks, encrypted.get());
+		Assert.assertNull(registered.get("alice/a"));
+		Assert.assertEquals(Long.valueOf(data.length), registered.get("alice/b"));
+		Assert.assertNull(handled.get(file));
+		Assert.assertEquals(Long.valueOf(moved.length()), handled.get(moved));
+		Assert.assertArrayEquals(data, decrypt(moved));
+	}
+
+	@Test
+	public void testForeignManifest() throws Exception {
+		File file = folder.newFile("secret");
+		Files.write(file.toPath(), random(300000, 6));
+		encrypt(file, "alice");
+
+		// Another user cannot claim the chunks by copying the manifest.
+		File copy = folder.newFile("copy");
+		byte[] manifest = Files.readAllBytes(file.toPath());
+		Files.write(copy.toPath(), manifest);
+		encrypt(copy, "bob");
+		Assert.assertArrayEquals(manifest, decrypt(copy));
+	}
+}